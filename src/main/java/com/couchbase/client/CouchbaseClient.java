@@ -36,6 +36,7 @@ import com.couchbase.client.protocol.views.ViewFetcherOperationImpl;
 import com.couchbase.client.protocol.views.ViewOperation.ViewCallback;
 import com.couchbase.client.protocol.views.ViewResponse;
 import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewScan;
 import com.couchbase.client.protocol.views.ViewsFetcherOperation;
 import com.couchbase.client.protocol.views.ViewsFetcherOperationImpl;
 import com.couchbase.client.vbucket.Reconfigurable;
@@ -46,21 +47,27 @@ import com.couchbase.client.vbucket.config.VBucket;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -76,17 +83,22 @@ import net.spy.memcached.OperationTimeoutException;
 import net.spy.memcached.PersistTo;
 import net.spy.memcached.ReplicateTo;
 import net.spy.memcached.compat.CloseUtil;
+import net.spy.memcached.internal.CheckedOperationTimeoutException;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.GetOperation;
 import net.spy.memcached.ops.GetlOperation;
 import net.spy.memcached.ops.ObserveOperation;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationCallback;
+import net.spy.memcached.ops.OperationState;
 import net.spy.memcached.ops.OperationStatus;
 import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.entity.NStringEntity;
 
 /**
  * A client for Couchbase Server.
@@ -101,7 +113,14 @@ public class CouchbaseClient extends MemcachedClient
   public static final String MODE_PREFIX;
   private static final String MODE_ERROR;
 
-  private ViewConnection vconn;
+  private volatile ViewConnection vconn;
+  private final Object vconnLock = new Object();
+  private final boolean viewsEnabled;
+  private boolean vconnShutDown = false;
+  private ScheduledExecutorService fetchTimer;
+  private final ViewResultCache viewCache;
+  private final DesignDocumentCache designDocCache;
+  private final long viewTimeout;
   protected volatile boolean reconfiguring = false;
 
   /**
@@ -226,11 +245,14 @@ public class CouchbaseClient extends MemcachedClient
   public CouchbaseClient(CouchbaseConnectionFactory cf)
     throws IOException {
     super(cf, AddrUtil.getAddresses(cf.getVBucketConfig().getServers()));
-    List<InetSocketAddress> addrs =
-      AddrUtil.getAddressesFromURL(cf.getVBucketConfig().getCouchServers());
 
     getLogger().info(MODE_ERROR);
-    vconn = cf.createViewConnection(addrs);
+    viewsEnabled = cf.isViewEnabled();
+    viewCache = cf.getViewResultCache();
+    viewTimeout = cf.getViewTimeout();
+    long ddocTtl = cf.getDesignDocumentCacheTtl();
+    designDocCache = ddocTtl > 0
+        ? new DesignDocumentCache(ddocTtl, TimeUnit.MILLISECONDS) : null;
     cf.getConfigurationProvider().subscribe(cf.getBucketName(), this);
   }
 
@@ -248,7 +270,11 @@ public class CouchbaseClient extends MemcachedClient
       cbcf.requestConfigReconnect(cbcf.getBucketName(), this);
     }
     try {
-      vconn.reconfigure(bucket);
+      synchronized (vconnLock) {
+        if (vconn != null) {
+          vconn.reconfigure(bucket);
+        }
+      }
       if (mconn instanceof CouchbaseConnection) {
         CouchbaseConnection cbConn = (CouchbaseConnection) mconn;
         cbConn.reconfigure(bucket);
@@ -289,10 +315,14 @@ public class CouchbaseClient extends MemcachedClient
   public HttpFuture<View> asyncGetView(String designDocumentName,
       final String viewName) {
     designDocumentName = MODE_PREFIX + designDocumentName;
+    if (designDocCache != null) {
+      return designDocCache.getView(this, designDocumentName, viewName);
+    }
     String bucket = ((CouchbaseConnectionFactory)connFactory).getBucketName();
     String uri = "/" + bucket + "/_design/" + designDocumentName;
     final CountDownLatch couchLatch = new CountDownLatch(1);
-    final HttpFuture<View> crv = new HttpFuture<View>(couchLatch, 60000);
+    final HttpFuture<View> crv =
+        new HttpFuture<View>(couchLatch, viewTimeout);
 
     final HttpRequest request =
         new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
@@ -308,7 +338,7 @@ public class CouchbaseClient extends MemcachedClient
 
               @Override
               public void complete() {
-                couchLatch.countDown();
+                crv.signalComplete();
               }
 
               @Override
@@ -316,6 +346,7 @@ public class CouchbaseClient extends MemcachedClient
                 view = v;
               }
             });
+    op.setTimeout(viewTimeout);
     crv.setOperation(op);
     addOp(op);
     assert crv != null : "Problem retrieving view";
@@ -340,16 +371,15 @@ public class CouchbaseClient extends MemcachedClient
    */
   public HttpFuture<List<View>> asyncGetViews(String designDocumentName) {
     designDocumentName = MODE_PREFIX + designDocumentName;
-    String bucket = ((CouchbaseConnectionFactory)connFactory).getBucketName();
-    String uri = "/" + bucket + "/_design/" + designDocumentName;
+    if (designDocCache != null) {
+      return designDocCache.getViews(this, designDocumentName);
+    }
     final CountDownLatch couchLatch = new CountDownLatch(1);
     final HttpFuture<List<View>> crv =
-        new HttpFuture<List<View>>(couchLatch, 60000);
+        new HttpFuture<List<View>>(couchLatch, viewTimeout);
 
-    final HttpRequest request =
-        new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
-    final HttpOperation op = new ViewsFetcherOperationImpl(request, bucket,
-        designDocumentName, new ViewsFetcherOperation.ViewsFetcherCallback() {
+    final HttpOperation op = createViewsFetcherOperation(designDocumentName,
+        new ViewsFetcherOperation.ViewsFetcherCallback() {
           private List<View> views = null;
 
           @Override
@@ -359,7 +389,7 @@ public class CouchbaseClient extends MemcachedClient
 
           @Override
           public void complete() {
-            couchLatch.countDown();
+            crv.signalComplete();
           }
 
           @Override
@@ -372,6 +402,46 @@ public class CouchbaseClient extends MemcachedClient
     return crv;
   }
 
+  /**
+   * Creates the operation that fetches the views of a design document.
+   *
+   * @param designDocumentName the full name of the design document.
+   * @param callback the callback receiving the views.
+   * @return an operation that can be passed to addOp.
+   */
+  HttpOperation createViewsFetcherOperation(String designDocumentName,
+      ViewsFetcherOperation.ViewsFetcherCallback callback) {
+    String bucket = ((CouchbaseConnectionFactory)connFactory).getBucketName();
+    String uri = "/" + bucket + "/_design/" + designDocumentName;
+    HttpRequest request =
+        new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+    HttpOperation op = new ViewsFetcherOperationImpl(request, bucket,
+        designDocumentName, callback);
+    op.setTimeout(viewTimeout);
+    return op;
+  }
+
+  /**
+   * Drops the cached views of a design document, so that the next lookup
+   * of one of its views fetches the design document from the cluster.
+   *
+   * @param designDocumentName the name of the design document.
+   */
+  public void invalidateDesignDocument(String designDocumentName) {
+    if (designDocCache != null) {
+      designDocCache.invalidate(MODE_PREFIX + designDocumentName);
+    }
+  }
+
+  /**
+   * Gets the cache of design documents used by getView and getViews.
+   *
+   * @return the design document cache or null if caching is disabled.
+   */
+  public DesignDocumentCache getDesignDocumentCache() {
+    return designDocCache;
+  }
+
   /**
    * Gets access to a view contained in a design document from the cluster.
    *
@@ -415,7 +485,9 @@ public class CouchbaseClient extends MemcachedClient
   }
 
   public HttpFuture<ViewResponse> asyncQuery(View view, Query query) {
-    if (query.willReduce()) {
+    if (viewCache != null && viewCache.isCacheable(view, query)) {
+      return viewCache.get(this, view, query);
+    } else if (query.willReduce()) {
       return asyncQueryAndReduce(view, query);
     } else if (query.willIncludeDocs()) {
       return asyncQueryAndIncludeDocs(view, query);
@@ -445,30 +517,27 @@ public class CouchbaseClient extends MemcachedClient
     String uri = viewUri + queryToRun;
     getLogger().info("lookin for:" + uri);
     final CountDownLatch couchLatch = new CountDownLatch(1);
-    final ViewFuture crv = new ViewFuture(couchLatch, 60000);
+    final long timeout = getViewTimeout(query);
+    final long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeout);
+    final ViewFuture crv = new ViewFuture(couchLatch, timeout);
 
-    final HttpRequest request =
-        new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+    final HttpRequest request = createViewRequest(view, query);
     final HttpOperation op = new DocsOperationImpl(request, new ViewCallback() {
       private ViewResponse vr = null;
 
       @Override
       public void receivedStatus(OperationStatus status) {
-        if (vr != null) {
-          Collection<String> ids = new LinkedList<String>();
-          Iterator<ViewRow> itr = vr.iterator();
-          while (itr.hasNext()) {
-            ids.add(itr.next().getId());
-          }
-          crv.set(vr, asyncGetBulk(ids), status);
-        } else {
-          crv.set(null, null, status);
-        }
+        crv.set(vr, status);
       }
 
       @Override
       public void complete() {
-        couchLatch.countDown();
+        if (vr != null) {
+          fetchDocuments(crv, vr, deadline);
+        } else {
+          crv.signalComplete();
+        }
       }
 
       @Override
@@ -476,10 +545,124 @@ public class CouchbaseClient extends MemcachedClient
         vr = response;
       }
     });
+    op.setTimeout(timeout);
     crv.setOperation(op);
     addOp(op);
     return crv;
   }
+  /**
+   * Fetch the documents of the rows of a view response with one multiget
+   * per node, and complete the future once all of them have arrived. The
+   * listeners of the future can then read the result without blocking.
+   * Gets still outstanding at the deadline of the view query are timed out,
+   * so the future always completes.
+   */
+  private void fetchDocuments(final ViewFuture crv, ViewResponse vr,
+      long deadline) {
+    Map<MemcachedNode, Collection<String>> keysByNode =
+        new HashMap<MemcachedNode, Collection<String>>();
+    for (ViewRow row : vr) {
+      MemcachedNode node = mconn.getLocator().getPrimary(row.getId());
+      Collection<String> keys = keysByNode.get(node);
+      if (keys == null) {
+        keys = new ArrayList<String>();
+        keysByNode.put(node, keys);
+      }
+      keys.add(row.getId());
+    }
+    final Map<String, Object> docs = new ConcurrentHashMap<String, Object>();
+    if (keysByNode.isEmpty()) {
+      crv.setDocuments(docs);
+      crv.signalComplete();
+      return;
+    }
+    final AtomicBoolean finished = new AtomicBoolean();
+    final List<Operation> gets = new ArrayList<Operation>();
+    Map<MemcachedNode, Operation> ops = new HashMap<MemcachedNode, Operation>();
+    GetOperation.Callback cb = new GetOperation.Callback() {
+      public void receivedStatus(OperationStatus status) {
+        // Missing documents are left out of the result.
+      }
+
+      public void gotData(String k, int flags, byte[] data) {
+        Object doc = transcoder.decode(new CachedData(flags, data,
+            transcoder.getMaxSize()));
+        if (doc != null) {
+          docs.put(k, doc);
+        }
+      }
+
+      public void complete() {
+        // A get that is timed out while its response arrives completes
+        // twice, so check that every get has ended instead of counting.
+        for (Operation get : gets) {
+          if (get.getState() != OperationState.COMPLETE
+              && !get.isTimedOut() && !get.isCancelled()) {
+            return;
+          }
+        }
+        if (!finished.compareAndSet(false, true)) {
+          return;
+        }
+        for (Operation get : gets) {
+          if (get.hasErrored()) {
+            crv.setDocumentsError(get.getException());
+          } else if (get.isCancelled()) {
+            crv.setDocumentsError(new RuntimeException("Cancelled"));
+          } else if (get.isTimedOut()) {
+            crv.setDocumentsError(new CheckedOperationTimeoutException(
+                "Timed out fetching the documents of the rows", get));
+          }
+        }
+        crv.setDocuments(docs);
+        crv.signalComplete();
+      }
+    };
+    for (Map.Entry<MemcachedNode, Collection<String>> e
+        : keysByNode.entrySet()) {
+      Operation get = opFact.get(e.getValue(), cb);
+      gets.add(get);
+      ops.put(e.getKey(), get);
+    }
+    ScheduledExecutorService timer = getFetchTimer();
+    if (timer != null) {
+      timer.schedule(new Runnable() {
+        public void run() {
+          for (Operation get : gets) {
+            if (get.getState() != OperationState.COMPLETE) {
+              get.timeOut();
+            }
+          }
+        }
+      }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+    mconn.addOperations(ops);
+  }
+
+  /**
+   * Get the timer that times out the document fetches of view queries.
+   *
+   * @return the timer, or null once the client is shut down
+   */
+  private ScheduledExecutorService getFetchTimer() {
+    synchronized (vconnLock) {
+      if (vconnShutDown) {
+        return null;
+      }
+      if (fetchTimer == null) {
+        fetchTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "View document fetch timer");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      }
+      return fetchTimer;
+    }
+  }
+
 
   /**
    * Asynchronously queries a Couchbase view and returns the result.
@@ -493,15 +676,12 @@ public class CouchbaseClient extends MemcachedClient
    */
   private HttpFuture<ViewResponse> asyncQueryAndExcludeDocs(View view,
       Query query) {
-    String uri = view.getURI() + query.toString();
     final CountDownLatch couchLatch = new CountDownLatch(1);
     final HttpFuture<ViewResponse> crv =
-        new HttpFuture<ViewResponse>(couchLatch, 60000);
+        new HttpFuture<ViewResponse>(couchLatch, getViewTimeout(query));
 
-    final HttpRequest request =
-        new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
     final HttpOperation op =
-        new NoDocsOperationImpl(request, new ViewCallback() {
+        createViewOperation(view, query, new ViewCallback() {
           private ViewResponse vr = null;
 
           @Override
@@ -511,7 +691,7 @@ public class CouchbaseClient extends MemcachedClient
 
           @Override
           public void complete() {
-            couchLatch.countDown();
+            crv.signalComplete();
           }
 
           @Override
@@ -534,18 +714,12 @@ public class CouchbaseClient extends MemcachedClient
    */
   private HttpFuture<ViewResponse> asyncQueryAndReduce(final View view,
       final Query query) {
-    if (!view.hasReduce()) {
-      throw new RuntimeException("This view doesn't contain a reduce function");
-    }
-    String uri = view.getURI() + query.toString();
     final CountDownLatch couchLatch = new CountDownLatch(1);
     final HttpFuture<ViewResponse> crv =
-        new HttpFuture<ViewResponse>(couchLatch, 60000);
+        new HttpFuture<ViewResponse>(couchLatch, getViewTimeout(query));
 
-    final HttpRequest request =
-        new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
     final HttpOperation op =
-        new ReducedOperationImpl(request, new ViewCallback() {
+        createViewOperation(view, query, new ViewCallback() {
           private ViewResponse vr = null;
 
           @Override
@@ -555,7 +729,7 @@ public class CouchbaseClient extends MemcachedClient
 
           @Override
           public void complete() {
-            couchLatch.countDown();
+            crv.signalComplete();
           }
 
           @Override
@@ -568,6 +742,79 @@ public class CouchbaseClient extends MemcachedClient
     return crv;
   }
 
+  /**
+   * Creates the HTTP request of a view query. Queries restricted to a list
+   * of keys are sent as a POST with the keys in the body.
+   *
+   * @param view the view to run the query against.
+   * @param query the type of query to run against the view.
+   * @return the request.
+   */
+  private HttpRequest createViewRequest(View view, Query query) {
+    String uri = view.getURI() + query.toString();
+    String keys = query.getKeysJson();
+    if (keys == null) {
+      return new BasicHttpRequest("GET", uri, HttpVersion.HTTP_1_1);
+    }
+    BasicHttpEntityEnclosingRequest request =
+        new BasicHttpEntityEnclosingRequest("POST", uri, HttpVersion.HTTP_1_1);
+    try {
+      NStringEntity entity = new NStringEntity(keys, "UTF-8");
+      entity.setContentType("application/json");
+      request.setEntity(entity);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Could not encode the view keys", e);
+    }
+    return request;
+  }
+
+  /**
+   * Creates the operation that queries a view without fetching the
+   * documents of its rows. The operation reduces the results if the query
+   * asks for it.
+   *
+   * @param view the view to run the query against.
+   * @param query the type of query to run against the view.
+   * @param callback the callback receiving the view response.
+   * @return an operation that can be passed to addOp.
+   */
+  HttpOperation createViewOperation(View view, Query query,
+      ViewCallback callback) {
+    HttpRequest request = createViewRequest(view, query);
+    HttpOperation op;
+    if (query.willReduce()) {
+      if (!view.hasReduce()) {
+        throw new RuntimeException("This view doesn't contain a reduce "
+            + "function");
+      }
+      op = new ReducedOperationImpl(request, callback);
+    } else {
+      op = new NoDocsOperationImpl(request, callback);
+    }
+    op.setTimeout(getViewTimeout(query));
+    return op;
+  }
+
+  /**
+   * Gets the time a view query may take before it is aborted.
+   *
+   * @param query the query, which may set its own timeout.
+   * @return the timeout in milliseconds.
+   */
+  long getViewTimeout(Query query) {
+    return query.getTimeout() > 0 ? query.getTimeout() : viewTimeout;
+  }
+
+  /**
+   * Gets the time a view request may take before it is aborted, unless the
+   * query sets its own timeout.
+   *
+   * @return the timeout in milliseconds.
+   */
+  long getViewTimeout() {
+    return viewTimeout;
+  }
+
   /**
    * Queries a Couchbase view and returns the result.
    * The result can be accessed row-wise via an iterator.
@@ -605,13 +852,120 @@ public class CouchbaseClient extends MemcachedClient
     return new Paginator(this, view, query, docsPerPage);
   }
 
+  /**
+   * A paginated query that requests the given number of pages ahead of the
+   * page being read, so that the next pages are already in flight when the
+   * current one is used up.
+   *
+   * @param view the view to query against.
+   * @param query the query for this request.
+   * @param docsPerPage the amount of documents per page.
+   * @param prefetchPages the number of pages to request ahead.
+   * @return A Paginator (iterator) to use for reading the results of the query.
+   */
+  public Paginator paginatedQuery(View view, Query query, int docsPerPage,
+      int prefetchPages) {
+    return new Paginator(this, view, query, docsPerPage, prefetchPages);
+  }
+
+  /**
+   * A parallel scan splits the key range of a query at the given keys and
+   * pages through all sub-ranges at the same time. The rows can be read in
+   * key order through the returned iterator, or handed to a callback as
+   * they arrive.
+   *
+   * @param view the view to query against.
+   * @param query the query for this request.
+   * @param splitKeys the keys at which to split the range.
+   * @param docsPerPage the amount of documents per page of each sub-range.
+   * @return A ViewScan to use for reading the results of the query.
+   * @throws IllegalArgumentException if the query sets a limit or skip.
+   */
+  public ViewScan parallelQuery(View view, Query query,
+      List<String> splitKeys, int docsPerPage) {
+    return new ViewScan(this, view, query, splitKeys, docsPerPage);
+  }
+
+  /**
+   * A parallel scan over the given number of sub-ranges of about the same
+   * size, sampled from the view before the scan starts.
+   *
+   * @param view the view to query against.
+   * @param query the query for this request.
+   * @param partitions the number of sub-ranges to scan in parallel.
+   * @param docsPerPage the amount of documents per page of each sub-range.
+   * @return A ViewScan to use for reading the results of the query.
+   * @throws IllegalArgumentException if the query sets a limit or skip.
+   */
+  public ViewScan parallelQuery(View view, Query query, int partitions,
+      int docsPerPage) {
+    return new ViewScan(this, view, query,
+        ViewScan.sampleSplitKeys(this, view, query, partitions), docsPerPage);
+  }
+
+  /**
+   * Get the view connection statistics of every node serving views.
+   *
+   * The statistics describe the HTTP connection pool of each node, such as
+   * the number of open and idle connections, the number of requests waiting
+   * for a connection and how long requests have waited, as well as the
+   * response bytes received and, for compressed responses, decoded.
+   * The map is empty until the first view request opens the connections.
+   *
+   * @return a map of statistics keyed by node address
+   */
+  public Map<SocketAddress, Map<String, String>> getViewStats() {
+    ViewConnection vc = vconn;
+    if (vc == null) {
+      return new HashMap<SocketAddress, Map<String, String>>();
+    }
+    return vc.getStats();
+  }
+
   /**
    * Adds an operation to the queue where it waits to be sent to Couchbase. This
    * function is for internal use only.
    */
   public void addOp(final HttpOperation op) {
-    vconn.checkState();
-    vconn.addOp(op);
+    ViewConnection vc = getViewConnection();
+    vc.checkState();
+    vc.addOp(op);
+  }
+
+  /**
+   * Gets the connection to the view nodes, opening it on first use so that
+   * clients which never use views don't pay for it.
+   *
+   * @return the view connection.
+   * @throws IllegalStateException if views are disabled or the client is
+   *           shut down.
+   */
+  private ViewConnection getViewConnection() {
+    ViewConnection vc = vconn;
+    if (vc != null) {
+      return vc;
+    }
+    if (!viewsEnabled) {
+      throw new IllegalStateException("Views are disabled for this client");
+    }
+    synchronized (vconnLock) {
+      if (vconnShutDown) {
+        throw new IllegalStateException("Shutting down");
+      }
+      if (vconn == null) {
+        CouchbaseConnectionFactory cf =
+            (CouchbaseConnectionFactory) connFactory;
+        List<InetSocketAddress> addrs = AddrUtil.getAddressesFromURL(
+            cf.getVBucketConfig().getCouchServers());
+        try {
+          vconn = cf.createViewConnection(addrs);
+        } catch (IOException e) {
+          throw new RuntimeException("Could not connect to the view nodes",
+              e);
+        }
+      }
+      return vconn;
+    }
   }
 
 
@@ -1046,7 +1400,19 @@ public class CouchbaseClient extends MemcachedClient
       shutdownResult = super.shutdown(timeout, unit);
       CouchbaseConnectionFactory cf = (CouchbaseConnectionFactory) connFactory;
       cf.getConfigurationProvider().shutdown();
-      vconn.shutdown();
+      ViewConnection vc;
+      ScheduledExecutorService timer;
+      synchronized (vconnLock) {
+        vconnShutDown = true;
+        vc = vconn;
+        timer = fetchTimer;
+      }
+      if (vc != null) {
+        vc.shutdown();
+      }
+      if (timer != null) {
+        timer.shutdown();
+      }
     } catch (IOException ex) {
       Logger.getLogger(
          CouchbaseClient.class.getName()).log(Level.SEVERE,
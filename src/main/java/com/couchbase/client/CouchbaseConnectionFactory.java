@@ -91,6 +91,55 @@ public class CouchbaseConnectionFactory extends BinaryConnectionFactory {
    */
   public static final long DEFAULT_MIN_RECONNECT_INTERVAL = 1100;
 
+  /**
+   * Default maximum number of HTTP connections opened to each node for view
+   * requests.
+   */
+  public static final int DEFAULT_VIEW_CONNS_PER_NODE = 10;
+
+  /**
+   * Default number of view connections opened to each node at startup and
+   * kept open while idle.
+   */
+  public static final int DEFAULT_VIEW_MIN_IDLE_CONNS = 1;
+
+  /**
+   * Default maximum number of view requests per node that may wait for a
+   * connection before new requests are rejected.
+   */
+  public static final int DEFAULT_VIEW_MAX_PENDING_REQUESTS = 16384;
+
+  /**
+   * Default time in milliseconds after which idle view connections above the
+   * minimum are closed.
+   */
+  public static final long DEFAULT_VIEW_CONN_IDLE_TIMEOUT = 60000;
+
+  /**
+   * Default time in milliseconds the views of a design document are cached.
+   * The cache is off unless a time is set, since cached design documents
+   * don't show changes made to them until they expire.
+   */
+  public static final long DEFAULT_DESIGN_DOC_CACHE_TTL = 0;
+
+  /**
+   * Default time in milliseconds a view request may take before it is
+   * aborted.
+   */
+  public static final long DEFAULT_VIEW_TIMEOUT = 60000;
+
+  /**
+   * Default number of times a view request is sent to another node after
+   * the node it was sent to failed.
+   */
+  public static final int DEFAULT_VIEW_RETRIES = 2;
+
+  /**
+   * Default number of threads dispatching the I/O events of the view
+   * connections.
+   */
+  public static final int DEFAULT_VIEW_IO_THREADS = 2;
+
   private volatile ConfigurationProvider configurationProvider;
   private final String bucket;
   private final String pass;
@@ -150,6 +199,96 @@ public class CouchbaseConnectionFactory extends BinaryConnectionFactory {
     return new ViewConnection(this, addrs, getInitialObservers());
   }
 
+  /**
+   * Create the load balancer that chooses the node for each view operation.
+   *
+   * @return a LeastOutstandingViewLoadBalancer
+   */
+  public ViewLoadBalancer createViewLoadBalancer() {
+    return new LeastOutstandingViewLoadBalancer();
+  }
+
+  /**
+   * Get the time the views of a design document are cached for getView and
+   * getViews.
+   *
+   * @return the time to live in milliseconds, 0 if not cached
+   */
+  public long getDesignDocumentCacheTtl() {
+    return DEFAULT_DESIGN_DOC_CACHE_TTL;
+  }
+
+  /**
+   * Get the time a view request may take before it is aborted, unless the
+   * query sets its own timeout.
+   *
+   * @return the timeout in milliseconds
+   */
+  public long getViewTimeout() {
+    return DEFAULT_VIEW_TIMEOUT;
+  }
+
+  /**
+   * Get the number of times a view request is sent to another node after
+   * the node it was sent to failed. Only requests that are safe to repeat
+   * are retried, and only within their timeout.
+   *
+   * @return the number of retries
+   */
+  public int getViewRetries() {
+    return DEFAULT_VIEW_RETRIES;
+  }
+
+  /**
+   * Get the number of threads dispatching the I/O events of the view
+   * connections to all nodes.
+   *
+   * @return the number of I/O threads
+   */
+  public int getViewIOThreads() {
+    return DEFAULT_VIEW_IO_THREADS;
+  }
+
+  /**
+   * Check whether the view connections use an I/O reactor shared by all
+   * clients in the JVM instead of one of their own.
+   *
+   * @return true if the I/O reactor is shared
+   */
+  public boolean isViewIOReactorShared() {
+    return false;
+  }
+
+  /**
+   * Check whether the client may query views. The view connections are
+   * opened on the first view request, so clients that never use views don't
+   * open them either way.
+   *
+   * @return true if views may be used
+   */
+  public boolean isViewEnabled() {
+    return true;
+  }
+
+  /**
+   * Check whether view responses are requested with gzip or deflate
+   * compression.
+   *
+   * @return true if view responses may be compressed
+   */
+  public boolean isViewCompressionEnabled() {
+    return false;
+  }
+
+  /**
+   * Get the cache that serves repeated view queries, if any.
+   *
+   * @return the view result cache or null if view results are not cached
+   */
+  public ViewResultCache getViewResultCache() {
+    return null;
+  }
+
   @Override
   public NodeLocator createLocator(List<MemcachedNode> nodes) {
     Config config = getVBucketConfig();
@@ -288,6 +427,46 @@ public class CouchbaseConnectionFactory extends BinaryConnectionFactory {
     return false;
   }
 
+  /**
+   * Returns the maximum number of HTTP connections opened to each node for
+   * view requests.
+   *
+   * @return the number of view connections per node
+   */
+  public int getViewConnsPerNode() {
+    return DEFAULT_VIEW_CONNS_PER_NODE;
+  }
+
+  /**
+   * Returns the number of view connections opened to each node at startup
+   * and kept open while idle.
+   *
+   * @return the minimum number of idle view connections per node
+   */
+  public int getViewMinIdleConns() {
+    return DEFAULT_VIEW_MIN_IDLE_CONNS;
+  }
+
+  /**
+   * Returns the maximum number of view requests per node that may wait for a
+   * connection.
+   *
+   * @return the maximum number of pending view requests per node
+   */
+  public int getViewMaxPendingRequests() {
+    return DEFAULT_VIEW_MAX_PENDING_REQUESTS;
+  }
+
+  /**
+   * Returns the time in milliseconds after which idle view connections above
+   * the minimum are closed.
+   *
+   * @return the view connection idle timeout
+   */
+  public long getViewConnIdleTimeout() {
+    return DEFAULT_VIEW_CONN_IDLE_TIMEOUT;
+  }
+
   /**
    * Will return the minimum reconnect interval in milliseconds.
    *
@@ -49,6 +49,26 @@ public class CouchbaseConnectionFactoryBuilder extends ConnectionFactoryBuilder{
   private Config vBucketConfig;
   private long reconnThresholdTimeMsecs =
     CouchbaseConnectionFactory.DEFAULT_MIN_RECONNECT_INTERVAL;
+  private int viewConns =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_CONNS_PER_NODE;
+  private int viewMinIdleConns =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_MIN_IDLE_CONNS;
+  private int viewMaxPending =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_MAX_PENDING_REQUESTS;
+  private long viewIdleTimeoutMsecs =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_CONN_IDLE_TIMEOUT;
+  private ViewLoadBalancer viewBalancer;
+  private ViewResultCache viewCache;
+  private boolean viewCompression = false;
+  private long designDocCacheTtlMsecs =
+    CouchbaseConnectionFactory.DEFAULT_DESIGN_DOC_CACHE_TTL;
+  private long viewTimeoutMsecs =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_TIMEOUT;
+  private int viewRetries = CouchbaseConnectionFactory.DEFAULT_VIEW_RETRIES;
+  private int viewIOThreads =
+    CouchbaseConnectionFactory.DEFAULT_VIEW_IO_THREADS;
+  private boolean viewIOReactorShared = false;
+  private boolean viewEnabled = true;
 
   public Config getVBucketConfig() {
     return vBucketConfig;
@@ -62,6 +82,173 @@ public class CouchbaseConnectionFactoryBuilder extends ConnectionFactoryBuilder{
     reconnThresholdTimeMsecs = TimeUnit.MILLISECONDS.convert(time, unit);
   }
 
+  /**
+   * Set the maximum number of HTTP connections opened to each node for view
+   * requests.
+   *
+   * @param conns the number of view connections per node
+   */
+  public void setViewConnsPerNode(int conns) {
+    if (conns < 1) {
+      throw new IllegalArgumentException("At least one view connection per"
+          + " node is needed");
+    }
+    viewConns = conns;
+  }
+
+  /**
+   * Set the number of view connections opened to each node at startup and
+   * kept open while idle.
+   *
+   * @param conns the minimum number of idle view connections per node
+   */
+  public void setViewMinIdleConns(int conns) {
+    if (conns < 0) {
+      throw new IllegalArgumentException("Minimum idle view connections"
+          + " cannot be negative");
+    }
+    viewMinIdleConns = conns;
+  }
+
+  /**
+   * Set the maximum number of view requests per node that may wait for a
+   * connection before new requests are rejected.
+   *
+   * @param requests the maximum number of pending view requests per node
+   */
+  public void setViewMaxPendingRequests(int requests) {
+    if (requests < 1) {
+      throw new IllegalArgumentException("At least one pending view request"
+          + " must be allowed");
+    }
+    viewMaxPending = requests;
+  }
+
+  /**
+   * Set the time after which idle view connections above the minimum are
+   * closed. A time of 0 keeps idle connections open.
+   *
+   * @param time the idle timeout
+   * @param unit the unit of the idle timeout
+   */
+  public void setViewConnIdleTimeout(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("View connection idle timeout"
+          + " cannot be negative");
+    }
+    viewIdleTimeoutMsecs = TimeUnit.MILLISECONDS.convert(time, unit);
+  }
+
+  /**
+   * Set the load balancer that chooses the node for each view operation.
+   *
+   * @param balancer the view load balancer
+   */
+  public void setViewLoadBalancer(ViewLoadBalancer balancer) {
+    viewBalancer = balancer;
+  }
+
+  /**
+   * Request view responses with gzip or deflate compression. This trades
+   * CPU time for less network traffic, which pays off for large results
+   * sent over slow links.
+   *
+   * @param compression true to ask for compressed view responses
+   */
+  public void setViewCompression(boolean compression) {
+    viewCompression = compression;
+  }
+
+  /**
+   * Set the cache that serves repeated view queries. View results are not
+   * cached unless a cache is set.
+   *
+   * @param cache the view result cache
+   */
+  public void setViewResultCache(ViewResultCache cache) {
+    viewCache = cache;
+  }
+
+  /**
+   * Set the time the views of a design document are cached for getView and
+   * getViews. A time of 0 disables the cache.
+   *
+   * @param time the time to live
+   * @param unit the unit of the time to live
+   */
+  public void setDesignDocumentCacheTtl(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("The design document cache time"
+          + " to live cannot be negative");
+    }
+    designDocCacheTtlMsecs = TimeUnit.MILLISECONDS.convert(time, unit);
+  }
+
+  /**
+   * Set the time a view request may take before it is aborted and its
+   * connection freed. Queries may override this with Query.setTimeout.
+   *
+   * @param time the timeout
+   * @param unit the unit of the timeout
+   */
+  public void setViewTimeout(long time, TimeUnit unit) {
+    if (time <= 0) {
+      throw new IllegalArgumentException("The view timeout must be"
+          + " positive");
+    }
+    viewTimeoutMsecs = TimeUnit.MILLISECONDS.convert(time, unit);
+  }
+
+  /**
+   * Set the number of times a view request is sent to another node after
+   * the node it was sent to failed. A value of 0 disables retries.
+   *
+   * @param retries the number of retries
+   */
+  public void setViewRetries(int retries) {
+    if (retries < 0) {
+      throw new IllegalArgumentException("The number of view retries cannot"
+          + " be negative");
+    }
+    viewRetries = retries;
+  }
+
+  /**
+   * Set the number of threads dispatching the I/O events of the view
+   * connections. The threads serve all view nodes.
+   *
+   * @param threads the number of I/O threads
+   */
+  public void setViewIOThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one view I/O thread is"
+          + " needed");
+    }
+    viewIOThreads = threads;
+  }
+
+  /**
+   * Share the I/O reactor of the view connections with all other clients in
+   * the JVM that share it. The reactor is created by the first such client
+   * with its number of I/O threads, and shut down with the last one.
+   *
+   * @param shared true to use the JVM-wide I/O reactor
+   */
+  public void setViewIOReactorShared(boolean shared) {
+    viewIOReactorShared = shared;
+  }
+
+  /**
+   * Allow or forbid view requests. Clients that only use key-value
+   * operations can turn views off to make sure no view connections are
+   * opened.
+   *
+   * @param enabled false to reject view requests
+   */
+  public void setViewEnabled(boolean enabled) {
+    viewEnabled = enabled;
+  }
+
   /**
    * Get the CouchbaseConnectionFactory set up with the provided parameters.
    * Note that a CouchbaseConnectionFactory requires the failure mode is set
@@ -190,6 +377,72 @@ public class CouchbaseConnectionFactoryBuilder extends ConnectionFactoryBuilder{
         return reconnThresholdTimeMsecs;
       }
 
+      @Override
+      public int getViewConnsPerNode() {
+        return viewConns;
+      }
+
+      @Override
+      public int getViewMinIdleConns() {
+        return viewMinIdleConns;
+      }
+
+      @Override
+      public int getViewMaxPendingRequests() {
+        return viewMaxPending;
+      }
+
+      @Override
+      public long getViewConnIdleTimeout() {
+        return viewIdleTimeoutMsecs;
+      }
+
+      @Override
+      public ViewLoadBalancer createViewLoadBalancer() {
+        return viewBalancer == null ? super.createViewLoadBalancer()
+            : viewBalancer;
+      }
+
+      @Override
+      public long getDesignDocumentCacheTtl() {
+        return designDocCacheTtlMsecs;
+      }
+
+      @Override
+      public long getViewTimeout() {
+        return viewTimeoutMsecs;
+      }
+
+      @Override
+      public int getViewRetries() {
+        return viewRetries;
+      }
+
+      @Override
+      public int getViewIOThreads() {
+        return viewIOThreads;
+      }
+
+      @Override
+      public boolean isViewIOReactorShared() {
+        return viewIOReactorShared;
+      }
+
+      @Override
+      public boolean isViewEnabled() {
+        return viewEnabled;
+      }
+
+      @Override
+      public boolean isViewCompressionEnabled() {
+        return viewCompression;
+      }
+
+      @Override
+      public ViewResultCache getViewResultCache() {
+        return viewCache;
+      }
+
     };
   }
 }
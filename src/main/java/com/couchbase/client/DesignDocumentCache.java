@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.internal.SharedHttpFuture;
+import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewsFetcherOperation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.ops.OperationStatus;
+
+/**
+ * A cache of the views defined by each design document.
+ *
+ * Looking up a view requires fetching and parsing its whole design
+ * document, so the views of each design document are kept for a time to
+ * live and both getView and getViews are answered from them. A lookup of a
+ * view that isn't in a cached design document reloads the design document,
+ * so newly added views are found right away. Concurrent loads of the same
+ * design document share a single request.
+ */
+public class DesignDocumentCache {
+
+  private final long ttl;
+  private final Map<String, CacheEntry> entries;
+  private final Map<String, Load> loads;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Create a design document cache.
+   *
+   * @param ttl the time the views of a design document are kept
+   * @param unit the unit of the time to live
+   */
+  public DesignDocumentCache(long ttl, TimeUnit unit) {
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("The time to live must be positive");
+    }
+    this.ttl = unit.toNanos(ttl);
+    this.entries = new HashMap<String, CacheEntry>();
+    this.loads = new HashMap<String, Load>();
+  }
+
+  /**
+   * Get the views of a design document.
+   *
+   * @param client the client used to load the design document on a miss
+   * @param designDocumentName the full name of the design document
+   * @return a future holding the views of the design document
+   */
+  HttpFuture<List<View>> getViews(CouchbaseClient client,
+      String designDocumentName) {
+    SharedHttpFuture<List<View>> future;
+    HttpOperation start = null;
+    synchronized (this) {
+      CacheEntry entry = getEntry(designDocumentName);
+      if (entry != null) {
+        hits.incrementAndGet();
+        return new SharedHttpFuture<List<View>>(entry.views, entry.status,
+            entry.op);
+      }
+      misses.incrementAndGet();
+      Load load = loads.get(designDocumentName);
+      if (load == null) {
+        load = new Load(designDocumentName);
+        start = client.createViewsFetcherOperation(designDocumentName, load);
+        load.op = start;
+        loads.put(designDocumentName, load);
+      }
+      future = new SharedHttpFuture<List<View>>(load.op,
+          client.getViewTimeout());
+      load.viewsWaiters.add(future);
+    }
+    if (start != null) {
+      dispatch(client, start);
+    }
+    return future;
+  }
+
+  /**
+   * Get a view of a design document.
+   *
+   * @param client the client used to load the design document on a miss
+   * @param designDocumentName the full name of the design document
+   * @param viewName the name of the view
+   * @return a future holding the view or null if it doesn't exist
+   */
+  HttpFuture<View> getView(CouchbaseClient client,
+      String designDocumentName, String viewName) {
+    SharedHttpFuture<View> future;
+    HttpOperation start = null;
+    synchronized (this) {
+      CacheEntry entry = getEntry(designDocumentName);
+      View view = entry == null ? null : find(entry.views, viewName);
+      if (view != null) {
+        hits.incrementAndGet();
+        return new SharedHttpFuture<View>(view, entry.status, entry.op);
+      }
+      misses.incrementAndGet();
+      Load load = loads.get(designDocumentName);
+      if (load == null) {
+        load = new Load(designDocumentName);
+        start = client.createViewsFetcherOperation(designDocumentName, load);
+        load.op = start;
+        loads.put(designDocumentName, load);
+      }
+      future = new SharedHttpFuture<View>(load.op,
+          client.getViewTimeout());
+      load.viewWaiters.put(future, viewName);
+    }
+    if (start != null) {
+      dispatch(client, start);
+    }
+    return future;
+  }
+
+  private void dispatch(CouchbaseClient client, HttpOperation op) {
+    try {
+      client.addOp(op);
+    } catch (RuntimeException e) {
+      Load load = (Load) op.getCallback();
+      op.cancel();
+      load.receivedStatus(new OperationStatus(false, e.getMessage()));
+      load.complete();
+      throw e;
+    }
+  }
+
+  private CacheEntry getEntry(String designDocumentName) {
+    CacheEntry entry = entries.get(designDocumentName);
+    if (entry != null && entry.expires - System.nanoTime() <= 0) {
+      entries.remove(designDocumentName);
+      return null;
+    }
+    return entry;
+  }
+
+  private static View find(List<View> views, String viewName) {
+    if (views != null) {
+      for (View v : views) {
+        if (v.getViewName().equals(viewName)) {
+          return v;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Drop the cached views of a design document. A load of the design
+   * document that is in flight won't fill the cache.
+   *
+   * @param designDocumentName the full name of the design document
+   */
+  synchronized void invalidate(String designDocumentName) {
+    entries.remove(designDocumentName);
+    loads.remove(designDocumentName);
+  }
+
+  /**
+   * Drop the cached views of all design documents.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    loads.clear();
+  }
+
+  synchronized void store(String designDocumentName, List<View> views,
+      OperationStatus status, HttpOperation op) {
+    entries.put(designDocumentName, new CacheEntry(
+        Collections.unmodifiableList(views), status, op,
+        System.nanoTime() + ttl));
+  }
+
+  /**
+   * Get the number of lookups answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of lookups that had to load the design document.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Get the number of cached design documents.
+   *
+   * @return the number of cached design documents
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  private static final class CacheEntry {
+    private final List<View> views;
+    private final OperationStatus status;
+    private final HttpOperation op;
+    private final long expires;
+
+    private CacheEntry(List<View> views, OperationStatus status,
+        HttpOperation op, long expires) {
+      this.views = views;
+      this.status = status;
+      this.op = op;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * A load of a design document shared by every lookup that missed while
+   * it was in flight.
+   */
+  private final class Load
+      implements ViewsFetcherOperation.ViewsFetcherCallback {
+    private final String designDocumentName;
+    private final List<SharedHttpFuture<List<View>>> viewsWaiters =
+        new ArrayList<SharedHttpFuture<List<View>>>();
+    private final Map<SharedHttpFuture<View>, String> viewWaiters =
+        new LinkedHashMap<SharedHttpFuture<View>, String>();
+    private HttpOperation op;
+    private List<View> views;
+    private OperationStatus status;
+
+    private Load(String designDocumentName) {
+      this.designDocumentName = designDocumentName;
+    }
+
+    @Override
+    public void gotData(List<View> v) {
+      views = v;
+    }
+
+    @Override
+    public void receivedStatus(OperationStatus s) {
+      status = s;
+    }
+
+    @Override
+    public void complete() {
+      List<SharedHttpFuture<List<View>>> listDone;
+      Map<SharedHttpFuture<View>, String> viewDone;
+      boolean ok = views != null && status != null && status.isSuccess()
+          && !op.isCancelled() && !op.hasErrored() && !op.isTimedOut();
+      synchronized (DesignDocumentCache.this) {
+        if (loads.get(designDocumentName) == this) {
+          loads.remove(designDocumentName);
+          if (ok) {
+            store(designDocumentName, views, status, op);
+          }
+        }
+        listDone = new ArrayList<SharedHttpFuture<List<View>>>(viewsWaiters);
+        viewDone = new LinkedHashMap<SharedHttpFuture<View>, String>(
+            viewWaiters);
+        viewsWaiters.clear();
+        viewWaiters.clear();
+      }
+      for (SharedHttpFuture<List<View>> waiter : listDone) {
+        waiter.complete(views, status);
+      }
+      for (Map.Entry<SharedHttpFuture<View>, String> e : viewDone.entrySet()) {
+        e.getKey().complete(find(views, e.getValue()), status);
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Stores tap checkpoints as one properties file per stream in a directory.
+ *
+ * A new file is written next to the old one and then renamed over it, so a
+ * crash while storing leaves the previous checkpoints in place.
+ */
+public class FileTapCheckpointStore implements TapCheckpointStore {
+
+  private static final String SUFFIX = ".checkpoints";
+
+  private final File dir;
+
+  /**
+   * Create a store in the given directory, creating it if needed.
+   *
+   * @param dir the directory to keep the files in
+   * @throws IOException if the directory can not be created
+   */
+  public FileTapCheckpointStore(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory " + dir);
+    }
+    this.dir = dir;
+  }
+
+  private File file(String name) {
+    if (name == null || name.length() == 0 || name.indexOf('/') >= 0
+        || name.indexOf(File.separatorChar) >= 0) {
+      throw new IllegalArgumentException("Invalid tap stream name: " + name);
+    }
+    return new File(dir, name + SUFFIX);
+  }
+
+  public Map<Short, Long> load(String name) throws IOException {
+    Map<Short, Long> checkpoints = new HashMap<Short, Long>();
+    File f = file(name);
+    if (!f.exists()) {
+      return checkpoints;
+    }
+    Properties props = new Properties();
+    FileInputStream in = new FileInputStream(f);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    for (String vb : props.stringPropertyNames()) {
+      try {
+        checkpoints.put(Short.valueOf(vb),
+            Long.valueOf(props.getProperty(vb)));
+      } catch (NumberFormatException e) {
+        throw new IOException("Corrupt checkpoint file " + f + ": " + vb);
+      }
+    }
+    return checkpoints;
+  }
+
+  public void store(String name, Map<Short, Long> checkpoints)
+    throws IOException {
+    File f = file(name);
+    File tmp = new File(dir, name + SUFFIX + ".tmp");
+    Properties props = new Properties();
+    for (Map.Entry<Short, Long> e : checkpoints.entrySet()) {
+      props.setProperty(e.getKey().toString(), e.getValue().toString());
+    }
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      props.store(out, "Tap checkpoints of " + name);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(f)) {
+      // Some platforms do not rename over an existing file.
+      if (!f.delete() || !tmp.renameTo(f)) {
+        throw new IOException("Could not replace checkpoint file " + f);
+      }
+    }
+  }
+}
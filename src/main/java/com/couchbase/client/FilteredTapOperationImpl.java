@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.TapOperation;
+import net.spy.memcached.protocol.binary.TapOperationImpl;
+import net.spy.memcached.tapmessage.RequestMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapRequestFlag;
+import net.spy.memcached.tapmessage.TapResponseFlag;
+
+/**
+ * A tap operation that runs a filter over each received frame before it is
+ * decoded.
+ *
+ * Frames are read into one reusable buffer. Only frames accepted by the
+ * filter are copied into a ResponseMessage and passed to the callback, so
+ * rejected messages cost no allocation.
+ */
+class FilteredTapOperationImpl extends TapOperationImpl {
+
+  private static final int HEADER_LENGTH = 24;
+  private static final int INITIAL_FRAME_SIZE = 4096;
+
+  private final String id;
+  private final RequestMessage message;
+  private final TapMessageFilter filter;
+  private final TapMessageView view = new TapMessageView();
+  private ByteBuffer frame = ByteBuffer.allocate(INITIAL_FRAME_SIZE);
+  private int length;
+
+  FilteredTapOperationImpl(String id, RequestMessage message,
+      TapMessageFilter filter, TapOperation.Callback cb) {
+    super(cb);
+    this.id = id;
+    this.message = message;
+    this.filter = filter;
+  }
+
+  @Override
+  public void initialize() {
+    message.setFlags(TapRequestFlag.FIX_BYTEORDER);
+    message.setName(id != null ? id : UUID.randomUUID().toString());
+    setBuffer(message.getBytes());
+  }
+
+  @Override
+  public void readFromBuffer(ByteBuffer data) throws IOException {
+    while (data.remaining() > 0) {
+      if (length == 0) {
+        length = HEADER_LENGTH;
+        frame.clear();
+      }
+      int n = Math.min(data.remaining(), length - frame.position());
+      int limit = data.limit();
+      data.limit(data.position() + n);
+      frame.put(data);
+      data.limit(limit);
+      if (frame.position() < length) {
+        continue;
+      }
+      if (length == HEADER_LENGTH) {
+        length += frame.getInt(8);
+        if (length > frame.capacity()) {
+          ByteBuffer grown = ByteBuffer.allocate(length);
+          frame.flip();
+          grown.put(frame);
+          frame = grown;
+        }
+        if (length > HEADER_LENGTH) {
+          continue;
+        }
+      }
+      frame.flip();
+      deliver(view.wrap(frame));
+      length = 0;
+    }
+  }
+
+  private void deliver(TapMessageView m) {
+    TapOperation.Callback cb = (TapOperation.Callback) getCallback();
+    if (m.hasFlag(TapResponseFlag.TAP_ACK)) {
+      cb.gotAck(getHandlingNode(), m.getOpcode(), m.getOpaque());
+    }
+    if (m.is(TapOpcode.OPAQUE) || m.is(TapOpcode.NOOP)) {
+      return;
+    }
+    if (filter.accept(m)) {
+      cb.gotData(m.copy());
+    } else if (cb instanceof Callback) {
+      ((Callback) cb).rejected();
+    }
+  }
+
+  /**
+   * A callback that is told when a message was dropped by the filter.
+   */
+  interface Callback extends TapOperation.Callback {
+    /**
+     * Called instead of gotData for a rejected message, after gotAck if
+     * the message asked for an ack.
+     */
+    void rejected();
+  }
+
+  public void streamClosed(OperationState state) {
+    transitionState(state);
+  }
+
+  @Override
+  public String toString() {
+    return "Cmd: tap filtered Flags: " + message.getFlags();
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ViewLoadBalancer that sends view operations to the node with the fewest
+ * outstanding operations.
+ *
+ * <p>
+ * Ties are broken by the moving average response time of the nodes, and
+ * nodes that are equal on both are used in turn. Nodes that are warming up or
+ * are unhealthy are skipped as long as any other node is available.
+ * </p>
+ *
+ * <p>
+ * Selection reads only the counters kept by each node and takes no locks.
+ * </p>
+ */
+public class LeastOutstandingViewLoadBalancer implements ViewLoadBalancer {
+
+  private final AtomicInteger offset = new AtomicInteger();
+
+  public ViewNode select(List<ViewNode> nodes) {
+    int size = nodes.size();
+    int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % size;
+    ViewNode best = pick(nodes, start, true);
+    if (best == null) {
+      best = pick(nodes, start, false);
+    }
+    return best;
+  }
+
+  private ViewNode pick(List<ViewNode> nodes, int start,
+      boolean availableOnly) {
+    int size = nodes.size();
+    ViewNode best = null;
+    int bestOutstanding = Integer.MAX_VALUE;
+    long bestLatency = Long.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      ViewNode node = nodes.get((start + i) % size);
+      if (availableOnly && !node.isAvailable()) {
+        continue;
+      }
+      int outstanding = node.getOutstandingOperations();
+      long latency = node.getLatency(TimeUnit.MICROSECONDS);
+      if (outstanding < bestOutstanding
+          || (outstanding == bestOutstanding && latency < bestLatency)) {
+        best = node;
+        bestOutstanding = outstanding;
+        bestLatency = latency;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,673 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client;
+
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseNoDocs;
+import com.couchbase.client.protocol.views.ViewResponseReduced;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowNoDocs;
+import com.couchbase.client.protocol.views.ViewRowReduced;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.transcoders.Transcoder;
+import net.spy.memcached.util.StringUtils;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * A secondary index kept in memory and updated from a tap stream.
+ *
+ * Each mutation is decoded with the given transcoder and passed to the map
+ * function, and the rows it emits replace the rows the document had before.
+ * Deletions remove the rows of the document. The rows are kept sorted by
+ * key and document id, so queries are answered locally with the same
+ * {@link Query} options and {@link ViewResponse} types as views on the
+ * server. The index is as fresh as the tap stream feeding it.
+ *
+ * The index is a {@link TapMessageHandler}. Consume the stream partitioned
+ * by key, so the changes to a document are applied in order:
+ *
+ * <pre>
+ * client.tapBackfill(null, -1, 0, TimeUnit.SECONDS);
+ * client.consume(4, ParallelTapConsumer.Partitioning.KEY, index);
+ * </pre>
+ *
+ * Keys are collated like on the server: null, false, true, numbers,
+ * strings, arrays and then objects. Strings are compared by UTF-16 code
+ * unit and not by Unicode collation. Reductions are not stored; a reduce query
+ * reduces the rows of each group in chunks and rereduces the results.
+ *
+ * @param <T> the type of the decoded documents
+ */
+public class LocalIndex<T> extends SpyObject implements TapMessageHandler {
+
+  /**
+   * Counts the rows, like the _count reduce function.
+   */
+  public static final LocalReduceFunction COUNT = new LocalReduceFunction() {
+    public Object reduce(List<List<Object>> keys, List<Object> values,
+        boolean rereduce) {
+      if (!rereduce) {
+        return Long.valueOf(values.size());
+      }
+      long count = 0;
+      for (Object value : values) {
+        count += ((Number) value).longValue();
+      }
+      return Long.valueOf(count);
+    }
+  };
+
+  /**
+   * Sums the values of the rows, like the _sum reduce function.
+   */
+  public static final LocalReduceFunction SUM = new LocalReduceFunction() {
+    public Object reduce(List<List<Object>> keys, List<Object> values,
+        boolean rereduce) {
+      boolean integral = true;
+      long longSum = 0;
+      double doubleSum = 0;
+      for (Object value : values) {
+        if (!(value instanceof Number)) {
+          throw new IllegalArgumentException("Cannot sum " + value);
+        }
+        if (value instanceof Long) {
+          longSum += ((Long) value).longValue();
+        } else {
+          integral = false;
+        }
+        doubleSum += ((Number) value).doubleValue();
+      }
+      return integral ? (Object) Long.valueOf(longSum)
+        : (Object) Double.valueOf(doubleSum);
+    }
+  };
+
+  private static final int REDUCE_CHUNK = 128;
+
+  private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+    public int compare(Row a, Row b) {
+      int c = collate(a.key, b.key);
+      if (c != 0) {
+        return c;
+      }
+      if (a.id != null && b.id != null) {
+        c = a.id.compareTo(b.id);
+        if (c != 0) {
+          return c;
+        }
+      }
+      if (a.edge != b.edge) {
+        return a.edge < b.edge ? -1 : 1;
+      }
+      return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+  };
+
+  private final Transcoder<T> transcoder;
+  private final LocalMapFunction<T> mapFunction;
+  private final LocalReduceFunction reduceFunction;
+  private final NavigableSet<Row> rows = new TreeSet<Row>(ROW_ORDER);
+  private final Map<String, List<Row>> rowsById =
+      new HashMap<String, List<Row>>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Create an empty index.
+   *
+   * @param transcoder the transcoder to decode documents with
+   * @param map the map function
+   * @param reduce the reduce function, or null if the index isn't reduced
+   */
+  public LocalIndex(Transcoder<T> transcoder, LocalMapFunction<T> map,
+      LocalReduceFunction reduce) {
+    if (transcoder == null) {
+      throw new IllegalArgumentException("Transcoder must not be null");
+    }
+    if (map == null) {
+      throw new IllegalArgumentException("Map function must not be null");
+    }
+    this.transcoder = transcoder;
+    this.mapFunction = map;
+    this.reduceFunction = reduce;
+  }
+
+  @Override
+  public void handle(ResponseMessage message) {
+    apply(message);
+  }
+
+  /**
+   * Apply a tap message to the index. Messages other than mutations and
+   * deletions are ignored.
+   *
+   * @param m the message
+   */
+  public void apply(ResponseMessage m) {
+    TapOpcode opcode = m.getOpcode();
+    if (opcode == TapOpcode.MUTATION) {
+      List<Row> emitted = null;
+      try {
+        T document = transcoder.decode(new CachedData(m.getItemFlags(),
+            m.getValue(), transcoder.getMaxSize()));
+        if (document == null) {
+          failures.incrementAndGet();
+        } else {
+          emitted = map(m.getKey(), document);
+        }
+      } catch (RuntimeException e) {
+        failures.incrementAndGet();
+        getLogger().warn("Could not index " + m.getKey(), e);
+      }
+      // A document that cannot be mapped has no rows, as on the server.
+      replace(m.getKey(), emitted);
+      applied.incrementAndGet();
+    } else if (opcode == TapOpcode.DELETE) {
+      replace(m.getKey(), null);
+      applied.incrementAndGet();
+    }
+  }
+
+  /**
+   * Query the index.
+   *
+   * Supported are key, keys, the range with its document ids,
+   * inclusive_end, descending, skip, limit, reduce, group and group_level.
+   * Other options are ignored. Keys are given as for a view on the server:
+   * JSON text, or a plain string.
+   *
+   * @param query the query
+   * @return a ViewResponseReduced if the query reduces, otherwise a
+   *         ViewResponseNoDocs
+   * @throws IllegalArgumentException if the query reduces an index without
+   *           a reduce function, includes documents or has a malformed key
+   */
+  public ViewResponse query(Query query) {
+    if (query.willReduce() && reduceFunction == null) {
+      throw new IllegalArgumentException("This index doesn't have a reduce "
+          + "function");
+    }
+    if (query.willIncludeDocs()) {
+      throw new IllegalArgumentException("A local index doesn't keep "
+          + "documents");
+    }
+    // Without a reduction the page is cut while walking the index, so only
+    // the returned rows are copied.
+    Selection selected = query.willReduce() ? new Selection(0, -1)
+      : new Selection(query.getSkip(), query.getLimit());
+    lock.readLock().lock();
+    try {
+      select(query, selected);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    Collection<RowError> errors = new ArrayList<RowError>();
+    List<ViewRow> result = new ArrayList<ViewRow>();
+    if (query.willReduce()) {
+      for (ViewRow row : page(reduce(selected.rows, query), query)) {
+        result.add(row);
+      }
+      return new ViewResponseReduced(result, errors);
+    }
+    for (Row row : selected.rows) {
+      result.add(new ViewRowNoDocs(row.id, toText(row.key),
+          toText(row.value)));
+    }
+    return new ViewResponseNoDocs(result, errors);
+  }
+
+  /**
+   * Get the number of rows in the index.
+   *
+   * @return the number of rows
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return rows.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Get the number of mutations and deletions applied.
+   *
+   * @return the number of applied messages
+   */
+  public long getAppliedCount() {
+    return applied.get();
+  }
+
+  /**
+   * Get the number of documents that could not be decoded or mapped.
+   *
+   * @return the number of documents left out of the index
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  private List<Row> map(final String id, T document) {
+    final List<Row> emitted = new ArrayList<Row>();
+    mapFunction.map(id, document, new LocalMapFunction.Emitter() {
+      public void emit(Object key, Object value) {
+        emitted.add(new Row(normalize(key), id, emitted.size(), 0,
+            normalize(value)));
+      }
+    });
+    return emitted;
+  }
+
+  private void replace(String id, List<Row> emitted) {
+    lock.writeLock().lock();
+    try {
+      List<Row> old;
+      if (emitted == null || emitted.isEmpty()) {
+        old = rowsById.remove(id);
+      } else {
+        old = rowsById.put(id, emitted);
+      }
+      if (old != null) {
+        for (Row row : old) {
+          rows.remove(row);
+        }
+      }
+      if (emitted != null) {
+        rows.addAll(emitted);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void select(Query query, Selection selected) {
+    boolean descending = query.isDescending();
+    if (query.getKeys() != null) {
+      for (String key : query.getKeys()) {
+        if (!selected.addAll(withKey(parseKey(key), descending))) {
+          return;
+        }
+      }
+    } else if (query.getKey() != null) {
+      selected.addAll(withKey(parseKey(query.getKey()), descending));
+    } else {
+      Row first = null;
+      Row last = null;
+      if (query.getRangeStart() != null) {
+        first = new Row(parseKey(query.getRangeStart()),
+            query.getStartkeyDocID(), 0, descending ? 1 : -1, null);
+      }
+      if (query.getRangeEnd() != null) {
+        last = new Row(parseKey(query.getRangeEnd()), query.getEndkeyDocID(),
+            0, descending == query.isInclusiveEnd() ? -1 : 1, null);
+      }
+      Row low = descending ? last : first;
+      Row high = descending ? first : last;
+      if (low != null && high != null && ROW_ORDER.compare(low, high) > 0) {
+        return;
+      }
+      NavigableSet<Row> range = rows;
+      if (low != null) {
+        range = range.tailSet(low, true);
+      }
+      if (high != null) {
+        range = range.headSet(high, true);
+      }
+      selected.addAll(descending ? range.descendingSet() : range);
+    }
+  }
+
+  private NavigableSet<Row> withKey(Object key, boolean descending) {
+    NavigableSet<Row> matching = rows.subSet(new Row(key, null, 0, -1, null),
+        true, new Row(key, null, 0, 1, null), true);
+    return descending ? matching.descendingSet() : matching;
+  }
+
+  private List<ViewRow> reduce(List<Row> selected, Query query) {
+    int level = query.willGroup() ? Integer.MAX_VALUE
+      : query.getGroupLevel();
+    List<ViewRow> groups = new ArrayList<ViewRow>();
+    int start = 0;
+    while (start < selected.size()) {
+      Object key = groupKey(selected.get(start).key, level);
+      int end = start + 1;
+      while (end < selected.size()
+          && collate(key, groupKey(selected.get(end).key, level)) == 0) {
+        end++;
+      }
+      Object value = reduceGroup(selected.subList(start, end));
+      groups.add(new ViewRowReduced(toText(key), toText(value)));
+      start = end;
+    }
+    return groups;
+  }
+
+  private Object reduceGroup(List<Row> group) {
+    List<Object> results = new ArrayList<Object>();
+    for (int i = 0; i < group.size(); i += REDUCE_CHUNK) {
+      List<Row> chunk = group.subList(i,
+          Math.min(group.size(), i + REDUCE_CHUNK));
+      List<List<Object>> keys = new ArrayList<List<Object>>(chunk.size());
+      List<Object> values = new ArrayList<Object>(chunk.size());
+      for (Row row : chunk) {
+        keys.add(Arrays.<Object>asList(row.key, row.id));
+        values.add(row.value);
+      }
+      results.add(normalize(reduceFunction.reduce(
+          Collections.unmodifiableList(keys),
+          Collections.unmodifiableList(values), false)));
+    }
+    if (results.size() == 1) {
+      return results.get(0);
+    }
+    return normalize(reduceFunction.reduce(null,
+        Collections.unmodifiableList(results), true));
+  }
+
+  private static Object groupKey(Object key, int level) {
+    if (level <= 0) {
+      return null;
+    }
+    if (key instanceof List && ((List<?>) key).size() > level) {
+      return ((List<?>) key).subList(0, level);
+    }
+    return key;
+  }
+
+  private static <E> List<E> page(List<E> rows, Query query) {
+    int from = Math.min(rows.size(), query.getSkip());
+    int to = rows.size();
+    if (query.getLimit() >= 0) {
+      to = Math.min(to, from + query.getLimit());
+    }
+    return rows.subList(from, to);
+  }
+
+  /**
+   * The rows of a page, collected while walking the index.
+   */
+  private static final class Selection {
+    private final List<Row> rows = new ArrayList<Row>();
+    private int skip;
+    private final int limit;
+
+    private Selection(int skip, int limit) {
+      this.skip = skip;
+      this.limit = limit;
+    }
+
+    /**
+     * Add rows in order until the page is full.
+     *
+     * @return false if the page is full
+     */
+    private boolean addAll(Iterable<Row> source) {
+      for (Row row : source) {
+        if (limit >= 0 && rows.size() >= limit) {
+          return false;
+        }
+        if (skip > 0) {
+          skip--;
+        } else {
+          rows.add(row);
+        }
+      }
+      return limit < 0 || rows.size() < limit;
+    }
+  }
+
+  /**
+   * Parse a key given in a query.
+   */
+  static Object parseKey(String key) {
+    if (!StringUtils.isJsonObject(key)) {
+      return key;
+    }
+    try {
+      return normalize(new JSONArray("[" + key + "]").opt(0));
+    } catch (JSONException e) {
+      throw new IllegalArgumentException("Malformed key " + key, e);
+    }
+  }
+
+  /**
+   * Convert a key or value to the types the index compares and prints:
+   * null, Boolean, Long, Double, String, and read-only lists and maps of
+   * these.
+   */
+  static Object normalize(Object o) {
+    if (o == null || o == JSONObject.NULL) {
+      return null;
+    } else if (o instanceof Boolean || o instanceof String) {
+      return o;
+    } else if (o instanceof Character) {
+      return o.toString();
+    } else if (o instanceof Long || o instanceof Integer
+        || o instanceof Short || o instanceof Byte) {
+      return Long.valueOf(((Number) o).longValue());
+    } else if (o instanceof Number) {
+      double d = ((Number) o).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        throw new IllegalArgumentException("Cannot index " + d);
+      }
+      return Double.valueOf(d);
+    } else if (o instanceof Collection) {
+      List<Object> list = new ArrayList<Object>();
+      for (Object element : (Collection<?>) o) {
+        list.add(normalize(element));
+      }
+      return Collections.unmodifiableList(list);
+    } else if (o instanceof Object[]) {
+      return normalize(Arrays.asList((Object[]) o));
+    } else if (o instanceof JSONArray) {
+      JSONArray array = (JSONArray) o;
+      List<Object> list = new ArrayList<Object>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(normalize(array.opt(i)));
+      }
+      return Collections.unmodifiableList(list);
+    } else if (o instanceof Map) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        map.put(String.valueOf(e.getKey()), normalize(e.getValue()));
+      }
+      return Collections.unmodifiableMap(map);
+    } else if (o instanceof JSONObject) {
+      JSONObject object = (JSONObject) o;
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      for (Iterator<?> i = object.keys(); i.hasNext();) {
+        String name = (String) i.next();
+        map.put(name, normalize(object.opt(name)));
+      }
+      return Collections.unmodifiableMap(map);
+    }
+    throw new IllegalArgumentException("Cannot index a "
+        + o.getClass().getName());
+  }
+
+  /**
+   * Compare normalized keys in the order of view collation.
+   */
+  static int collate(Object a, Object b) {
+    int ra = rank(a);
+    int rb = rank(b);
+    if (ra != rb) {
+      return ra < rb ? -1 : 1;
+    }
+    switch (ra) {
+    case 3:
+      if (a instanceof Long && b instanceof Long) {
+        long la = ((Long) a).longValue();
+        long lb = ((Long) b).longValue();
+        return la < lb ? -1 : (la == lb ? 0 : 1);
+      }
+      double da = ((Number) a).doubleValue();
+      double db = ((Number) b).doubleValue();
+      return da < db ? -1 : (da == db ? 0 : 1);
+    case 4:
+      return ((String) a).compareTo((String) b);
+    case 5:
+      List<?> la = (List<?>) a;
+      List<?> lb = (List<?>) b;
+      for (int i = 0; i < la.size() && i < lb.size(); i++) {
+        int c = collate(la.get(i), lb.get(i));
+        if (c != 0) {
+          return c;
+        }
+      }
+      return la.size() < lb.size() ? -1 : (la.size() == lb.size() ? 0 : 1);
+    case 6:
+      Iterator<? extends Map.Entry<?, ?>> ia = ((Map<?, ?>) a).entrySet()
+        .iterator();
+      Iterator<? extends Map.Entry<?, ?>> ib = ((Map<?, ?>) b).entrySet()
+        .iterator();
+      while (ia.hasNext() && ib.hasNext()) {
+        Map.Entry<?, ?> ea = ia.next();
+        Map.Entry<?, ?> eb = ib.next();
+        int c = ((String) ea.getKey()).compareTo((String) eb.getKey());
+        if (c == 0) {
+          c = collate(ea.getValue(), eb.getValue());
+        }
+        if (c != 0) {
+          return c;
+        }
+      }
+      return ia.hasNext() ? 1 : (ib.hasNext() ? -1 : 0);
+    default:
+      return 0;
+    }
+  }
+
+  private static int rank(Object o) {
+    if (o == null) {
+      return 0;
+    } else if (o instanceof Boolean) {
+      return ((Boolean) o).booleanValue() ? 2 : 1;
+    } else if (o instanceof Number) {
+      return 3;
+    } else if (o instanceof String) {
+      return 4;
+    } else if (o instanceof List) {
+      return 5;
+    }
+    return 6;
+  }
+
+  /**
+   * Print a key or value the way view rows hold them: strings as they are,
+   * everything else as JSON.
+   */
+  static String toText(Object o) {
+    if (o instanceof String) {
+      return (String) o;
+    }
+    StringBuilder json = new StringBuilder();
+    appendJson(json, o);
+    return json.toString();
+  }
+
+  private static void appendJson(StringBuilder json, Object o) {
+    if (o instanceof String) {
+      json.append(JSONObject.quote((String) o));
+    } else if (o instanceof Double) {
+      double d = ((Double) o).doubleValue();
+      if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+        json.append((long) d);
+      } else {
+        json.append(d);
+      }
+    } else if (o instanceof List) {
+      json.append('[');
+      boolean first = true;
+      for (Object element : (List<?>) o) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        appendJson(json, element);
+      }
+      json.append(']');
+    } else if (o instanceof Map) {
+      json.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        json.append(JSONObject.quote((String) e.getKey())).append(':');
+        appendJson(json, e.getValue());
+      }
+      json.append('}');
+    } else {
+      json.append(o);
+    }
+  }
+
+  /**
+   * A row of the index, or a bound of a range when edge is not 0.
+   */
+  private static final class Row {
+    private final Object key;
+    private final String id;
+    private final int seq;
+    private final int edge;
+    private final Object value;
+
+    private Row(Object key, String id, int seq, int edge, Object value) {
+      this.key = key;
+      this.id = id;
+      this.seq = seq;
+      this.edge = edge;
+      this.value = value;
+    }
+  }
+}
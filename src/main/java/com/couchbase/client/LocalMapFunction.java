@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client;
+
+/**
+ * A map function of a {@link LocalIndex}.
+ *
+ * @param <T> the type of the decoded documents
+ */
+public interface LocalMapFunction<T> {
+
+  /**
+   * Emit the index rows of a document. Keys and values may be null,
+   * booleans, numbers, strings, lists, arrays and maps of these.
+   *
+   * @param id the id of the document
+   * @param document the decoded document
+   * @param emitter the emitter to add rows with
+   */
+  void map(String id, T document, Emitter emitter);
+
+  /**
+   * Collects the rows emitted for a document.
+   */
+  interface Emitter {
+
+    /**
+     * Add a row to the index.
+     *
+     * @param key the key of the row
+     * @param value the value of the row
+     */
+    void emit(Object key, Object value);
+  }
+}
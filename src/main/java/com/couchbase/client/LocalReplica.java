@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.ConfigurationException;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * An in-process copy of a bucket kept up to date over tap.
+ *
+ * The replica copies the bucket with a tap dump and follows the mutations
+ * and deletions of a backfill stream opened before the dump, so nothing
+ * that changes during the copy is missed. The changes are applied, and
+ * acked, while the dump is still running, so the server does not drop the
+ * stream for want of acks. Dumped items of keys that already changed are
+ * skipped, as the backfill stream brings their newer state. Values are
+ * decoded with the given transcoder as they arrive, so reads are plain map
+ * lookups.
+ *
+ * If the backfill stream ends, for instance because the server closed it,
+ * the replica stops following the bucket and keeps serving the items it
+ * has. It is not reopened; start a new replica to catch up again.
+ *
+ * @param <T> the type of the decoded values
+ */
+public class LocalReplica<T> extends SpyObject {
+
+  private static final long POLL_INTERVAL = 100;
+
+  /**
+   * The most changes applied between two dumped items while bootstrapping.
+   */
+  private static final int LIVE_BATCH = 64;
+
+  private final TapClient dumpClient;
+  private final TapClient liveClient;
+  private final Transcoder<T> transcoder;
+  private final ConcurrentMap<String, T> items =
+      new ConcurrentHashMap<String, T>();
+  private final CountDownLatch bootstrapped = new CountDownLatch(1);
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean running;
+  private volatile long startTime;
+  private volatile long caughtUpTime;
+
+  /**
+   * Create a replica of a bucket. Call {@link #start()} to fill it.
+   *
+   * @param baseList a list of servers to get the cluster configuration from
+   * @param bucketName the name of the bucket to replicate
+   * @param pwd the bucket's password
+   * @param transcoder the transcoder to decode values with
+   */
+  public LocalReplica(List<URI> baseList, String bucketName, String pwd,
+      Transcoder<T> transcoder) {
+    this(new TapClient(baseList, bucketName, pwd),
+        new TapClient(baseList, bucketName, pwd), transcoder);
+  }
+
+  LocalReplica(TapClient dumpClient, TapClient liveClient,
+      Transcoder<T> transcoder) {
+    if (transcoder == null) {
+      throw new IllegalArgumentException("Transcoder must not be null");
+    }
+    this.dumpClient = dumpClient;
+    this.liveClient = liveClient;
+    this.transcoder = transcoder;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        replicate();
+      }
+    }, "Local replica");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Open the tap streams and start filling the replica.
+   *
+   * @throws ConfigurationException a bad configuration was received from the
+   *           Couchbase cluster.
+   * @throws IOException if there are errors connecting to the cluster.
+   */
+  public void start() throws IOException, ConfigurationException {
+    liveClient.tapBackfill(null, -1, 0, TimeUnit.SECONDS);
+    dumpClient.tapDump(null);
+    startReplication();
+  }
+
+  /**
+   * Start applying the messages of already opened streams.
+   */
+  synchronized void startReplication() {
+    if (running || startTime != 0) {
+      throw new IllegalStateException("Replica already started");
+    }
+    startTime = System.nanoTime();
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Stop following the bucket and close the tap streams. The replica keeps
+   * serving the items it has.
+   */
+  public void shutdown() {
+    running = false;
+    dumpClient.shutdown();
+    liveClient.shutdown();
+  }
+
+  /**
+   * Wait until the initial copy of the bucket is complete.
+   *
+   * @param timeout the amount of time to wait
+   * @param unit the unit of time to use
+   * @return true if the replica was bootstrapped in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitBootstrap(long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return bootstrapped.await(timeout, unit);
+  }
+
+  /**
+   * Check whether the initial copy of the bucket is complete.
+   *
+   * @return true once the dump has been applied
+   */
+  public boolean isBootstrapped() {
+    return bootstrapped.getCount() == 0;
+  }
+
+  /**
+   * Get the replicated value of a key.
+   *
+   * @param key the key
+   * @return the decoded value or null if the key is not in the replica
+   */
+  public T get(String key) {
+    return items.get(key);
+  }
+
+  /**
+   * Check whether a key is in the replica.
+   *
+   * @param key the key
+   * @return true if the key is present
+   */
+  public boolean containsKey(String key) {
+    return items.containsKey(key);
+  }
+
+  /**
+   * Get the number of items in the replica.
+   *
+   * @return the number of items
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Get the keys in the replica.
+   *
+   * @return a read-only view of the keys
+   */
+  public Set<String> keySet() {
+    return Collections.unmodifiableSet(items.keySet());
+  }
+
+  /**
+   * Get the number of mutations and deletions applied.
+   *
+   * @return the number of applied messages
+   */
+  public long getAppliedCount() {
+    return applied.get();
+  }
+
+  /**
+   * Get the number of values that could not be decoded.
+   *
+   * @return the number of skipped mutations
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Get the bytes of received changes not applied yet.
+   *
+   * @return the pending bytes
+   */
+  public long getPendingBytes() {
+    return liveClient.getBufferedBytes();
+  }
+
+  /**
+   * Get how far the replica is behind the changes received from the
+   * cluster: the time since it last had no changes pending, or since it
+   * was started while it is still bootstrapping.
+   *
+   * @param unit the unit to return the lag in
+   * @return the replication lag, 0 when caught up
+   */
+  public long getLag(TimeUnit unit) {
+    long since;
+    if (!isBootstrapped()) {
+      since = startTime;
+    } else if (liveClient.getBufferedBytes() > 0) {
+      since = caughtUpTime;
+    } else {
+      return 0;
+    }
+    if (since == 0) {
+      return 0;
+    }
+    return unit.convert(System.nanoTime() - since, TimeUnit.NANOSECONDS);
+  }
+
+  private void replicate() {
+    try {
+      bootstrap();
+      caughtUpTime = System.nanoTime();
+      bootstrapped.countDown();
+      getLogger().info("Local replica bootstrapped with " + items.size()
+          + " items");
+      follow();
+      if (running) {
+        getLogger().warn("Tap stream of the local replica ended");
+      }
+    } catch (RuntimeException e) {
+      getLogger().error("Local replica stopped", e);
+    } finally {
+      running = false;
+    }
+  }
+
+  /**
+   * Apply the dump, interleaved with the changes received meanwhile.
+   */
+  private void bootstrap() {
+    Set<String> changed = new HashSet<String>();
+    while (running && dumpClient.hasMoreMessages()) {
+      ResponseMessage m = dumpClient.getNextMessage(POLL_INTERVAL,
+          TimeUnit.MILLISECONDS);
+      if (m != null && !changed.contains(m.getKey())) {
+        apply(m);
+      }
+      for (int i = 0; i < LIVE_BATCH; i++) {
+        ResponseMessage change = liveClient.getNextMessage(0,
+            TimeUnit.MILLISECONDS);
+        if (change == null) {
+          break;
+        }
+        if (change.getOpcode() == TapOpcode.MUTATION
+            || change.getOpcode() == TapOpcode.DELETE) {
+          changed.add(change.getKey());
+        }
+        apply(change);
+      }
+    }
+  }
+
+  /**
+   * Apply the changes until the stream ends.
+   */
+  private void follow() {
+    while (running && liveClient.hasMoreMessages()) {
+      ResponseMessage m = liveClient.getNextMessage(POLL_INTERVAL,
+          TimeUnit.MILLISECONDS);
+      if (m != null) {
+        apply(m);
+      }
+      if (liveClient.getBufferedBytes() == 0) {
+        caughtUpTime = System.nanoTime();
+      }
+    }
+  }
+
+  /**
+   * Apply a tap message to the replica.
+   */
+  void apply(ResponseMessage m) {
+    TapOpcode opcode = m.getOpcode();
+    if (opcode == TapOpcode.MUTATION) {
+      try {
+        T value = transcoder.decode(new CachedData(m.getItemFlags(),
+            m.getValue(), transcoder.getMaxSize()));
+        if (value == null) {
+          // Do not keep serving the old value of an item we cannot read.
+          items.remove(m.getKey());
+          failures.incrementAndGet();
+        } else {
+          items.put(m.getKey(), value);
+        }
+        applied.incrementAndGet();
+      } catch (RuntimeException e) {
+        failures.incrementAndGet();
+        getLogger().warn("Could not decode the value of " + m.getKey(), e);
+      }
+    } else if (opcode == TapOpcode.DELETE) {
+      items.remove(m.getKey());
+      applied.incrementAndGet();
+    }
+  }
+}
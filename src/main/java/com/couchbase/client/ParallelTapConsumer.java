@@ -0,0 +1,343 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapAck;
+
+/**
+ * Consumes the messages of a TapClient on several threads.
+ *
+ * A single dispatcher thread takes the messages off the client and hands
+ * each one to a worker picked by vbucket or by key, so the messages of one
+ * vbucket (or key) are handled by one thread in the order they arrived.
+ * Messages of different partitions are handled concurrently.
+ *
+ * Acks requested by the server are held back until every message received
+ * before the ack, including the message that asked for it, has been handled.
+ * Acks are sent in the order they were requested.
+ */
+public class ParallelTapConsumer extends SpyObject {
+
+  /**
+   * How messages are assigned to worker threads.
+   */
+  public enum Partitioning {
+    /**
+     * All messages of a vbucket go to the same worker.
+     */
+    VBUCKET,
+
+    /**
+     * All messages of a key go to the same worker.
+     */
+    KEY
+  }
+
+  /**
+   * The number of messages a worker can have waiting before the dispatcher
+   * blocks.
+   */
+  public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+  private static final Object STOP = new Object();
+  private static final long POLL_INTERVAL = 100;
+
+  private final TapClient client;
+  private final Partitioning partitioning;
+  private final TapMessageHandler handler;
+  private final List<BlockingQueue<Object>> queues;
+  private final long[] dispatched;
+  private final AtomicLongArray handled;
+  private final LinkedList<Barrier> barriers;
+  private final AtomicLong processed;
+  private final AtomicLong failures;
+  private final CountDownLatch done;
+  private final Thread dispatcher;
+  private final List<Thread> workers;
+  private volatile boolean running;
+
+  /**
+   * Create a consumer for the given client. Call {@link #start()} once the
+   * tap streams have been opened.
+   *
+   * @param client the client to consume
+   * @param workers the number of threads calling the handler
+   * @param partitioning how messages are assigned to threads
+   * @param handler the handler called for each message
+   */
+  public ParallelTapConsumer(TapClient client, int workers,
+      Partitioning partitioning, TapMessageHandler handler) {
+    this(client, workers, partitioning, handler, DEFAULT_QUEUE_SIZE);
+  }
+
+  /**
+   * Create a consumer for the given client. Call {@link #start()} once the
+   * tap streams have been opened.
+   *
+   * @param client the client to consume
+   * @param workers the number of threads calling the handler
+   * @param partitioning how messages are assigned to threads
+   * @param handler the handler called for each message
+   * @param queueSize the number of messages a worker can have waiting
+   */
+  public ParallelTapConsumer(TapClient client, int workers,
+      Partitioning partitioning, TapMessageHandler handler, int queueSize) {
+    if (client == null || partitioning == null || handler == null) {
+      throw new IllegalArgumentException("Client, partitioning and handler "
+          + "must not be null");
+    }
+    if (workers < 1) {
+      throw new IllegalArgumentException("At least one worker is needed");
+    }
+    if (queueSize < 1) {
+      throw new IllegalArgumentException("Queue size must be positive");
+    }
+    this.client = client;
+    this.partitioning = partitioning;
+    this.handler = handler;
+    queues = new ArrayList<BlockingQueue<Object>>(workers);
+    dispatched = new long[workers];
+    handled = new AtomicLongArray(workers);
+    barriers = new LinkedList<Barrier>();
+    processed = new AtomicLong();
+    failures = new AtomicLong();
+    done = new CountDownLatch(workers);
+    this.workers = new ArrayList<Thread>(workers);
+    for (int i = 0; i < workers; i++) {
+      queues.add(new ArrayBlockingQueue<Object>(queueSize));
+      Thread t = new Thread(new Worker(i), "Tap worker " + i);
+      t.setDaemon(true);
+      this.workers.add(t);
+    }
+    dispatcher = new Thread(new Dispatcher(), "Tap dispatcher");
+    dispatcher.setDaemon(true);
+  }
+
+  /**
+   * Start consuming messages.
+   */
+  public synchronized void start() {
+    if (running || done.getCount() == 0) {
+      throw new IllegalStateException("Consumer already started");
+    }
+    running = true;
+    for (Thread t : workers) {
+      t.start();
+    }
+    dispatcher.start();
+  }
+
+  /**
+   * Stop taking new messages off the client. Messages already handed to a
+   * worker are still handled and acked.
+   */
+  public void shutdown() {
+    running = false;
+  }
+
+  /**
+   * Wait until the client has no more messages and all of them have been
+   * handled, or until the consumer was shut down and drained.
+   *
+   * @param timeout the amount of time to wait
+   * @param unit the unit of time to use
+   * @return true if the consumer finished
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit)
+    throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+
+  /**
+   * Get the number of messages handled so far.
+   *
+   * @return the number of handled messages
+   */
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  /**
+   * Get the number of messages whose handler threw an exception.
+   *
+   * @return the number of failed messages
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Get the number of acks waiting for their messages to be handled.
+   *
+   * @return the number of held back acks
+   */
+  public int getPendingAcks() {
+    synchronized (barriers) {
+      return barriers.size();
+    }
+  }
+
+  private int partition(ResponseMessage message) {
+    int hash;
+    if (partitioning == Partitioning.KEY) {
+      hash = message.getKey().hashCode();
+    } else {
+      hash = message.getVbucket() & 0xffff;
+    }
+    return (hash & Integer.MAX_VALUE) % queues.size();
+  }
+
+  private void dispatch(ResponseMessage message) throws InterruptedException {
+    int i = partition(message);
+    dispatched[i]++;
+    queues.get(i).put(message);
+  }
+
+  /**
+   * Hold back the ack until all messages dispatched so far are handled.
+   */
+  private void addBarrier(TapAck ack) {
+    synchronized (barriers) {
+      barriers.add(new Barrier(ack, dispatched.clone()));
+    }
+    releaseBarriers();
+  }
+
+  private void releaseBarriers() {
+    synchronized (barriers) {
+      while (!barriers.isEmpty() && barriers.getFirst().isReached()) {
+        TapAck ack = barriers.removeFirst().ack;
+        try {
+          client.ack(ack);
+        } catch (RuntimeException e) {
+          getLogger().warn("Could not send tap ack", e);
+        }
+      }
+    }
+  }
+
+  private void received(TapDelivery d) throws InterruptedException {
+    if (d.getMessage() != null) {
+      dispatch(d.getMessage());
+    }
+    if (d.getAck() != null) {
+      addBarrier(d.getAck());
+    }
+  }
+
+  private class Dispatcher implements Runnable {
+    public void run() {
+      try {
+        while (running && client.hasMoreMessages()) {
+          TapDelivery d = client.pollQueue(POLL_INTERVAL,
+              TimeUnit.MILLISECONDS);
+          if (d != null) {
+            received(d);
+          }
+        }
+      } catch (InterruptedException e) {
+        getLogger().warn("Tap dispatcher interrupted");
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        getLogger().error("Tap dispatcher failed", e);
+      } finally {
+        running = false;
+        for (BlockingQueue<Object> q : queues) {
+          while (!q.offer(STOP)) {
+            Thread.yield();
+          }
+        }
+      }
+    }
+  }
+
+  private class Worker implements Runnable {
+    private final int index;
+
+    public Worker(int index) {
+      this.index = index;
+    }
+
+    public void run() {
+      BlockingQueue<Object> queue = queues.get(index);
+      try {
+        while (true) {
+          Object m = queue.take();
+          if (m == STOP) {
+            break;
+          }
+          try {
+            handler.handle((ResponseMessage) m);
+          } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            getLogger().warn("Tap message handler failed", e);
+          } finally {
+            processed.incrementAndGet();
+            handled.incrementAndGet(index);
+            releaseBarriers();
+          }
+        }
+      } catch (InterruptedException e) {
+        getLogger().warn("Tap worker " + index + " interrupted");
+      } finally {
+        done.countDown();
+      }
+    }
+  }
+
+  /**
+   * An ack waiting for the given number of messages per worker.
+   */
+  private class Barrier {
+    private final TapAck ack;
+    private final long[] targets;
+
+    public Barrier(TapAck ack, long[] targets) {
+      this.ack = ack;
+      this.targets = targets;
+    }
+
+    public boolean isReached() {
+      for (int i = 0; i < targets.length; i++) {
+        if (handled.get(i) < targets[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
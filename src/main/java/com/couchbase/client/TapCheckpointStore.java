@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persists the per-vbucket progress of named tap streams.
+ */
+public interface TapCheckpointStore {
+
+  /**
+   * Load the checkpoints stored for a tap stream.
+   *
+   * @param name the name of the tap stream
+   * @return the checkpoint to resume from per vbucket, empty if nothing was
+   *         stored
+   * @throws IOException if the checkpoints could not be read
+   */
+  Map<Short, Long> load(String name) throws IOException;
+
+  /**
+   * Store the checkpoints of a tap stream, replacing earlier ones.
+   *
+   * @param name the name of the tap stream
+   * @param checkpoints the checkpoint to resume from per vbucket
+   * @throws IOException if the checkpoints could not be written
+   */
+  void store(String name, Map<Short, Long> checkpoints) throws IOException;
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.spy.memcached.tapmessage.RequestMessage;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapMagic;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapRequestFlag;
+
+/**
+ * Tracks the per-vbucket progress of a named tap stream so it can be
+ * resumed after a restart instead of replaying the whole bucket.
+ *
+ * Progress is taken from the checkpoint messages the server sends. Record
+ * each message once it has been handled; a vbucket then resumes at the
+ * start of the checkpoint it was in, so at most the items of one
+ * checkpoint per vbucket are delivered again. When messages are handled
+ * concurrently, the messages of a vbucket must still be recorded in order,
+ * as with {@link ParallelTapConsumer.Partitioning#VBUCKET}.
+ */
+public class TapCheckpoints {
+
+  private final String name;
+  private final TapCheckpointStore store;
+  private final Map<Short, Long> checkpoints;
+  private boolean dirty;
+
+  /**
+   * Load the checkpoints of a tap stream.
+   *
+   * @param name the name of the tap stream
+   * @param store the store to load from and save to
+   * @throws IOException if the checkpoints could not be loaded
+   */
+  public TapCheckpoints(String name, TapCheckpointStore store)
+    throws IOException {
+    if (name == null || store == null) {
+      throw new IllegalArgumentException("Name and store must not be null");
+    }
+    this.name = name;
+    this.store = store;
+    checkpoints = new HashMap<Short, Long>(store.load(name));
+  }
+
+  /**
+   * Get the name of the tap stream.
+   *
+   * @return the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Record a handled message. Only checkpoint messages change the progress.
+   *
+   * @param message the handled message
+   */
+  public synchronized void record(ResponseMessage message) {
+    TapOpcode opcode = message.getOpcode();
+    long next;
+    if (opcode == TapOpcode.START_CHECKPOINT) {
+      next = message.getCheckpoint();
+    } else if (opcode == TapOpcode.END_CHECKPOINT) {
+      next = message.getCheckpoint() + 1;
+    } else {
+      return;
+    }
+    Long old = checkpoints.put(message.getVbucket(), next);
+    if (old == null || old.longValue() != next) {
+      dirty = true;
+    }
+  }
+
+  /**
+   * Get the checkpoint each vbucket resumes from.
+   *
+   * @return a copy of the checkpoints per vbucket
+   */
+  public synchronized Map<Short, Long> getCheckpoints() {
+    return new HashMap<Short, Long>(checkpoints);
+  }
+
+  /**
+   * Write the recorded progress to the store if it changed since the last
+   * save.
+   *
+   * @throws IOException if the store could not be written
+   */
+  public void save() throws IOException {
+    Map<Short, Long> snapshot;
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      snapshot = new HashMap<Short, Long>(checkpoints);
+      dirty = false;
+    }
+    try {
+      store.store(name, snapshot);
+    } catch (IOException e) {
+      synchronized (this) {
+        dirty = true;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Create the request that resumes the tap stream.
+   *
+   * Without any recorded progress the stream starts with a full backfill.
+   * Otherwise each vbucket starts at its recorded checkpoint. The stream
+   * always asks for checkpoint messages, as those record the progress.
+   *
+   * @return the request to pass to {@link TapClient#tapCustom}
+   */
+  public RequestMessage createRequest() {
+    RequestMessage message = new RequestMessage();
+    message.setMagic(TapMagic.PROTOCOL_BINARY_REQ);
+    message.setOpcode(TapOpcode.REQUEST);
+    message.setName(name);
+    message.setFlags(TapRequestFlag.SUPPORT_ACK);
+    message.setFlags(TapRequestFlag.FIX_BYTEORDER);
+    Map<Short, Long> resume = getCheckpoints();
+    message.setFlags(TapRequestFlag.CHECKPOINT);
+    if (resume.isEmpty()) {
+      message.setFlags(TapRequestFlag.BACKFILL);
+      message.setBackfill(0);
+    } else {
+      message.setvBucketCheckpoints(resume);
+    }
+    return message;
+  }
+
+  /**
+   * Create the request that resumes only the given vbuckets, for instance
+   * on the node that just became their master.
+   *
+   * @param vbuckets the vbuckets to stream
+   * @return the request to pass to {@link TapClient#tapCustom}
+   */
+  public RequestMessage createRequest(Collection<Short> vbuckets) {
+    RequestMessage message = new RequestMessage();
+    message.setMagic(TapMagic.PROTOCOL_BINARY_REQ);
+    message.setOpcode(TapOpcode.REQUEST);
+    message.setName(name);
+    message.setFlags(TapRequestFlag.SUPPORT_ACK);
+    message.setFlags(TapRequestFlag.FIX_BYTEORDER);
+    message.setFlags(TapRequestFlag.LIST_VBUCKETS);
+    short[] list = new short[vbuckets.size()];
+    Map<Short, Long> resume = new HashMap<Short, Long>();
+    int i = 0;
+    synchronized (this) {
+      for (Short vb : vbuckets) {
+        list[i++] = vb;
+        Long checkpoint = checkpoints.get(vb);
+        if (checkpoint != null) {
+          resume.put(vb, checkpoint);
+        }
+      }
+    }
+    message.setVbucketlist(list);
+    message.setFlags(TapRequestFlag.CHECKPOINT);
+    if (resume.isEmpty()) {
+      message.setFlags(TapRequestFlag.BACKFILL);
+      message.setBackfill(0);
+    } else {
+      message.setvBucketCheckpoints(resume);
+    }
+    return message;
+  }
+}
@@ -22,13 +22,26 @@
 
 package com.couchbase.client;
 
+import com.couchbase.client.vbucket.Reconfigurable;
+import com.couchbase.client.vbucket.config.Bucket;
+import com.couchbase.client.vbucket.config.Config;
+
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.naming.ConfigurationException;
 
@@ -41,16 +54,43 @@ import net.spy.memcached.ops.TapOperation;
 import net.spy.memcached.tapmessage.RequestMessage;
 import net.spy.memcached.tapmessage.ResponseMessage;
 import net.spy.memcached.tapmessage.TapAck;
+import net.spy.memcached.tapmessage.TapMagic;
 import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapRequestFlag;
 import net.spy.memcached.tapmessage.TapStream;
 
 /**
  * A tap client for Couchbase server.
  */
 public class TapClient extends net.spy.memcached.TapClient {
+
+  /**
+   * The number of bytes of received messages buffered before reading from
+   * the tap connections stops.
+   */
+  public static final long DEFAULT_BUFFER_HIGH_WATERMARK = 64 * 1024 * 1024;
+
+  /**
+   * The number of buffered bytes at which reading continues.
+   */
+  public static final long DEFAULT_BUFFER_LOW_WATERMARK = 32 * 1024 * 1024;
+
+  private static final long ENQUEUE_INTERVAL = 100;
+
+  private static final Logger LOGGER =
+      Logger.getLogger(TapClient.class.getName());
+
   private List<URI> baseList;
   private String bucketName;
   private String pwd;
+  private final TapMessageBuffer buffer;
+  private final List<TapConnectionProvider> connections =
+      new CopyOnWriteArrayList<TapConnectionProvider>();
+  private final List<ResumedStream> resumed =
+      new CopyOnWriteArrayList<ResumedStream>();
+  private CouchbaseConnectionFactory cf;
+  private Config lastConfig;
+  private volatile TapMessageFilter filter;
 
   /**
    * Creates a cluster aware tap client for Couchbase Server.
@@ -64,6 +104,27 @@ public class TapClient extends net.spy.memcached.TapClient {
    */
   public TapClient(final List<URI> baseList, final String bucketName,
       final String pwd) {
+    this(baseList, bucketName, pwd, DEFAULT_BUFFER_HIGH_WATERMARK,
+        DEFAULT_BUFFER_LOW_WATERMARK);
+  }
+
+  /**
+   * Creates a cluster aware tap client for Couchbase Server with a bounded
+   * message buffer.
+   *
+   * Received messages are buffered until they are read. When the buffered
+   * messages reach the high watermark, the client stops reading from the
+   * tap connections until they have been drained down to the low watermark,
+   * so a slow reader holds back the server instead of filling the heap.
+   *
+   * @param baseList a list of servers to get the cluster configuration from.
+   * @param bucketName the name of the bucket to tap.
+   * @param pwd the buckets password.
+   * @param highWatermark the buffered bytes at which reading stops.
+   * @param lowWatermark the buffered bytes at which reading continues.
+   */
+  public TapClient(final List<URI> baseList, final String bucketName,
+      final String pwd, long highWatermark, long lowWatermark) {
     for (URI bu : baseList) {
       if (!bu.isAbsolute()) {
         throw new IllegalArgumentException("The base URI must be absolute");
@@ -72,6 +133,8 @@ public class TapClient extends net.spy.memcached.TapClient {
     this.baseList = baseList;
     this.bucketName = bucketName;
     this.pwd = pwd;
+    buffer = new TapMessageBuffer(highWatermark, lowWatermark);
+    rqueue = buffer;
   }
 
   /**
@@ -100,10 +163,12 @@ public class TapClient extends net.spy.memcached.TapClient {
       } else if (m instanceof ResponseMessage) {
         return (ResponseMessage) m;
       } else if (m instanceof TapAck) {
-        TapAck ack = (TapAck) m;
-        tapAck((com.couchbase.client.TapConnectionProvider)ack.getConn(),
-            ack.getNode(), ack.getOpcode(), ack.getOpaque(), ack.getCallback());
+        ack((TapAck) m);
         return null;
+      } else if (m instanceof TapDelivery) {
+        TapDelivery d = (TapDelivery) m;
+        ack(d.getAck());
+        return d.getMessage();
       } else {
         throw new RuntimeException("Unexpected tap message type");
       }
@@ -142,6 +207,18 @@ public class TapClient extends net.spy.memcached.TapClient {
     return false;
   }
 
+  /**
+   * Set a filter that drops unwanted messages before they are decoded.
+   *
+   * The filter applies to the tap streams opened after this call. Messages
+   * it rejects never reach the message buffer.
+   *
+   * @param filter the filter, or null to deliver all messages
+   */
+  public void setFilter(TapMessageFilter filter) {
+    this.filter = filter;
+  }
+
   /**
    * Allows the user to specify a custom tap message.
    *
@@ -161,36 +238,286 @@ public class TapClient extends net.spy.memcached.TapClient {
    */
   public TapStream tapCustom(final String id, final RequestMessage message)
     throws ConfigurationException, IOException {
-    final TapConnectionProvider conn = new TapConnectionProvider(baseList,
-        bucketName, pwd);
-    final TapStream ts = new TapStream();
-    conn.broadcastOp(new BroadcastOpFactory() {
+    return openCustom(id, message, new TapStream());
+  }
+
+  TapStream openCustom(String id, RequestMessage message,
+      TapStream ts) throws ConfigurationException, IOException {
+    TapConnectionProvider conn = openConnection();
+    conn.broadcastOp(tapCustomFactory(conn, id, message, ts, null));
+    synchronized (omap) {
+      omap.put(ts, conn);
+    }
+    return ts;
+  }
+
+  private BroadcastOpFactory tapCustomFactory(final TapConnectionProvider conn,
+      final String id, final RequestMessage message, final TapStream ts,
+      final Runnable done) {
+    return new BroadcastOpFactory() {
       public Operation newOp(final MemcachedNode n,
           final CountDownLatch latch) {
-        Operation op =  conn.getOpFactory().tapCustom(id, message,
-            new TapOperation.Callback() {
-            public void receivedStatus(OperationStatus status) {
-            }
-            public void gotData(ResponseMessage tapMessage) {
-              rqueue.add(tapMessage);
-              messagesRead++;
-            }
-            public void gotAck(MemcachedNode node, TapOpcode opcode,
-                int opaque) {
-              rqueue.add(new TapAck(conn, node, opcode, opaque, this));
-            }
-            public void complete() {
-              latch.countDown();
-            }
-          });
+        TapOperation.Callback cb = newCallback(conn, latch, done);
+        TapMessageFilter f = filter;
+        Operation op = f == null
+            ? conn.getOpFactory().tapCustom(id, message, cb)
+            : new FilteredTapOperationImpl(id, message, f, cb);
         ts.addOp((TapOperation)op);
         return op;
       }
-    });
+    };
+  }
+
+  /**
+   * Resumes a named tap stream from its recorded checkpoints.
+   *
+   * Each vbucket continues from the checkpoint recorded for it; if nothing
+   * was recorded yet the stream starts with a full backfill. Record the
+   * handled messages with {@link TapCheckpoints#record} and save them
+   * regularly to keep the replay after a restart short.
+   *
+   * The stream follows the vbuckets across rebalances and failovers: when
+   * a configuration update moves vbuckets to another master, they are
+   * streamed from their new master starting at their recorded checkpoint,
+   * over one extra connection per master that is closed once that part of
+   * the stream ends or all of its vbuckets moved on. Cancelling the returned stream cancels these parts too,
+   * and it only counts as completed once they are. The stream keeps
+   * following the cluster until it is cancelled or this client is shut
+   * down.
+   *
+   * @param checkpoints the recorded progress of the stream
+   * @return the operation that controls the tap stream.
+   * @throws ConfigurationException a bad configuration was received from the
+   *           Couchbase cluster.
+   * @throws IOException if there are errors connecting to the cluster.
+   */
+  public TapStream tapResume(TapCheckpoints checkpoints)
+    throws ConfigurationException, IOException {
+    ResumedStream rs = new ResumedStream(checkpoints);
+    openCustom(checkpoints.getName(), checkpoints.createRequest(), rs);
+    resumed.add(rs);
+    return rs;
+  }
+
+  /**
+   * Stream the moved vbuckets of a resumed stream from their new masters.
+   *
+   * Each new master gets one part of the stream. A part that gains
+   * vbuckets is restarted with all of its vbuckets, and a part whose
+   * vbuckets all moved on is closed, so the stream never has more than one
+   * extra connection per node.
+   */
+  private void reopen(ResumedStream rs, Bucket bucket,
+      Map<String, List<Short>> moved) {
+    if (rs.isCancelled()) {
+      resumed.remove(rs);
+      return;
+    }
+    for (Map.Entry<String, Part> e : rs.parts.entrySet()) {
+      Part part = e.getValue();
+      for (List<Short> vbuckets : moved.values()) {
+        part.vbuckets.removeAll(vbuckets);
+      }
+      if (part.vbuckets.isEmpty() && !moved.containsKey(e.getKey())) {
+        rs.parts.remove(e.getKey());
+        closePart(part.stream);
+      }
+    }
+    for (Map.Entry<String, List<Short>> e : moved.entrySet()) {
+      String master = e.getKey();
+      Part old = rs.parts.get(master);
+      Set<Short> vbuckets = new TreeSet<Short>(e.getValue());
+      // The part keeps its name, so the restarted tap connection takes over
+      // from the old one. A second name is needed since a tap connection of
+      // the stream's own name would replace the one already streaming other
+      // vbuckets from that node.
+      String id;
+      if (old == null) {
+        id = rs.checkpoints.getName() + "_" + rs.reopened++;
+      } else {
+        id = old.id;
+        vbuckets.addAll(old.vbuckets);
+      }
+      try {
+        TapStream stream = openPart(master, id,
+            rs.checkpoints.createRequest(vbuckets), bucket);
+        if (stream == null) {
+          LOGGER.warning("No connection to " + master + " to stream "
+              + "vbuckets " + vbuckets + " from");
+          continue;
+        }
+        rs.parts.put(master, new Part(id, vbuckets, stream));
+        if (old != null) {
+          closePart(old.stream);
+        }
+      } catch (Exception ex) {
+        LOGGER.log(Level.WARNING, "Could not reopen tap stream "
+            + rs.checkpoints.getName() + " after a topology change", ex);
+      }
+    }
+  }
+
+  /**
+   * Stream vbuckets from one node over a connection of their own, which is
+   * closed once the stream ends.
+   *
+   * @param master the node as host:port
+   * @param id the name of the tap connection
+   * @param request the request starting the stream
+   * @param bucket the current configuration
+   * @return the stream, or null if the node is not in the configuration
+   */
+  TapStream openPart(String master, String id, RequestMessage request,
+      Bucket bucket) throws IOException, ConfigurationException {
+    TapConnectionProvider conn = openConnection();
+    conn.reconfigure(bucket);
+    MemcachedNode node = conn.getNode(master);
+    if (node == null) {
+      conn.shutdown();
+      return null;
+    }
+    final TapStream part = new TapStream();
     synchronized (omap) {
-      omap.put(ts, conn);
+      omap.put(part, conn);
+    }
+    Runnable done = new Runnable() {
+      public void run() {
+        closePart(part);
+      }
+    };
+    conn.broadcastOp(tapCustomFactory(conn, id, request, part, done),
+        Collections.singleton(node));
+    return part;
+  }
+
+  /**
+   * Close the connection of a reopened part of a stream. This is also
+   * called from the IO thread of the connection once the part ended, which
+   * cannot shut itself down.
+   *
+   * @param part the part
+   */
+  void closePart(TapStream part) {
+    final net.spy.memcached.TapConnectionProvider conn;
+    synchronized (omap) {
+      conn = omap.remove(part);
+    }
+    if (conn == null) {
+      return; // Already closed, or shut down by hasMoreMessages or shutdown.
+    }
+    Thread closer = new Thread(new Runnable() {
+      public void run() {
+        conn.shutdown();
+      }
+    }, "Tap part closer");
+    closer.setDaemon(true);
+    closer.start();
+  }
+
+  /**
+   * Find the vbuckets whose master changed between two configurations.
+   *
+   * @param old the previous configuration
+   * @param now the new configuration
+   * @return the moved vbuckets, grouped by their new master
+   */
+  static Map<String, List<Short>> movedVbuckets(Config old, Config now) {
+    Map<String, List<Short>> moved = new HashMap<String, List<Short>>();
+    boolean resized = old.getVbucketsCount() != now.getVbucketsCount();
+    for (int vb = 0; vb < now.getVbucketsCount(); vb++) {
+      String master = masterOf(now, vb);
+      if (master == null
+          || (!resized && master.equals(masterOf(old, vb)))) {
+        continue;
+      }
+      List<Short> vbuckets = moved.get(master);
+      if (vbuckets == null) {
+        vbuckets = new ArrayList<Short>();
+        moved.put(master, vbuckets);
+      }
+      vbuckets.add((short) vb);
+    }
+    return moved;
+  }
+
+  private static String masterOf(Config config, int vbucket) {
+    int master = config.getMaster(vbucket);
+    return master < 0 ? null : config.getServer(master);
+  }
+
+  /**
+   * A stream opened from checkpoints that follows its vbuckets.
+   *
+   * The operations of the stream itself are added when it is opened. The
+   * parts reopened after topology changes are separate streams, so no
+   * operations are added to this one from the configuration thread.
+   */
+  private static class ResumedStream extends TapStream {
+    private final TapCheckpoints checkpoints;
+    private final Map<String, Part> parts =
+        new ConcurrentHashMap<String, Part>();
+    private volatile boolean cancelled;
+    private int reopened;
+
+    public ResumedStream(TapCheckpoints checkpoints) {
+      this.checkpoints = checkpoints;
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      super.cancel();
+      for (Part part : parts.values()) {
+        part.stream.cancel();
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled || super.isCancelled();
+    }
+
+    @Override
+    public boolean isCompleted() {
+      if (!super.isCompleted()) {
+        return false;
+      }
+      for (Part part : parts.values()) {
+        if (!part.stream.isCompleted()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean hasErrored() {
+      if (super.hasErrored()) {
+        return true;
+      }
+      for (Part part : parts.values()) {
+        if (part.stream.hasErrored()) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The vbuckets of a resumed stream that moved to one master, and the
+   * stream reopened for them. Only used by the configuration thread.
+   */
+  private static final class Part {
+    private final String id;
+    private final Set<Short> vbuckets;
+    private final TapStream stream;
+
+    private Part(String id, Set<Short> vbuckets, TapStream stream) {
+      this.id = id;
+      this.vbuckets = vbuckets;
+      this.stream = stream;
     }
-    return ts;
   }
 
   /**
@@ -231,28 +558,21 @@ public class TapClient extends net.spy.memcached.TapClient {
   public TapStream tapBackfill(final String id, final long date,
       final int runTime, final TimeUnit timeunit) throws IOException,
       ConfigurationException {
-    final TapConnectionProvider conn = new TapConnectionProvider(baseList,
-        bucketName, pwd);
+    final TapConnectionProvider conn = openConnection();
     final TapStream ts = new TapStream();
     conn.broadcastOp(new BroadcastOpFactory() {
       public Operation newOp(final MemcachedNode n,
           final CountDownLatch latch) {
-        Operation op =  conn.getOpFactory().tapBackfill(id, date,
-              new TapOperation.Callback() {
-            public void receivedStatus(OperationStatus status) {
-            }
-            public void gotData(ResponseMessage tapMessage) {
-              rqueue.add(tapMessage);
-              messagesRead++;
-            }
-            public void gotAck(MemcachedNode node, TapOpcode opcode,
-                int opaque) {
-              rqueue.add(new TapAck(conn, node, opcode, opaque, this));
-            }
-            public void complete() {
-              latch.countDown();
-            }
-          });
+        TapOperation.Callback cb = newCallback(conn, latch);
+        TapMessageFilter f = filter;
+        Operation op;
+        if (f == null) {
+          op = conn.getOpFactory().tapBackfill(id, date, cb);
+        } else {
+          RequestMessage message = newRequest(TapRequestFlag.BACKFILL);
+          message.setBackfill(date);
+          op = new FilteredTapOperationImpl(id, message, f, cb);
+        }
         ts.addOp((TapOperation)op);
         return op;
       }
@@ -294,28 +614,17 @@ public class TapClient extends net.spy.memcached.TapClient {
    */
   public TapStream tapDump(final String id) throws IOException,
       ConfigurationException {
-    final TapConnectionProvider conn = new TapConnectionProvider(baseList,
-        bucketName, pwd);
+    final TapConnectionProvider conn = openConnection();
     final TapStream ts = new TapStream();
     conn.broadcastOp(new BroadcastOpFactory() {
       public Operation newOp(final MemcachedNode n,
           final CountDownLatch latch) {
-        Operation op =  conn.getOpFactory().tapDump(id,
-              new TapOperation.Callback() {
-            public void receivedStatus(OperationStatus status) {
-            }
-            public void gotData(ResponseMessage tapMessage) {
-              rqueue.add(tapMessage);
-              messagesRead++;
-            }
-            public void gotAck(MemcachedNode node, TapOpcode opcode,
-                int opaque) {
-              rqueue.add(new TapAck(conn, node, opcode, opaque, this));
-            }
-            public void complete() {
-              latch.countDown();
-            }
-          });
+        TapOperation.Callback cb = newCallback(conn, latch);
+        TapMessageFilter f = filter;
+        Operation op = f == null
+            ? conn.getOpFactory().tapDump(id, cb)
+            : new FilteredTapOperationImpl(id,
+                newRequest(TapRequestFlag.DUMP), f, cb);
         ts.addOp((TapOperation)op);
         return op;
       }
@@ -326,6 +635,188 @@ public class TapClient extends net.spy.memcached.TapClient {
     return ts;
   }
 
+  /**
+   * Take the next received message or ack off the queue without acking.
+   *
+   * @param time the amount of time to wait
+   * @param timeunit the unit of time to use
+   * @return the next message, ack or both, or null if nothing arrived in
+   *         time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  TapDelivery pollQueue(long time, TimeUnit timeunit)
+    throws InterruptedException {
+    Object m = rqueue.poll(time, timeunit);
+    return m == null ? null : TapDelivery.of(m);
+  }
+
+  /**
+   * Send an ack the server asked for.
+   *
+   * @param ack the ack to send
+   */
+  void ack(TapAck ack) {
+    tapAck((com.couchbase.client.TapConnectionProvider) ack.getConn(),
+        ack.getNode(), ack.getOpcode(), ack.getOpaque(), ack.getCallback());
+  }
+
+  /**
+   * Process the received messages on several threads.
+   *
+   * Messages of the same vbucket, or of the same key, are always handled by
+   * the same thread, in the order they were received. An ack the server
+   * asks for is only sent once all messages received up to it have been
+   * handled.
+   *
+   * @param workers the number of threads calling the handler
+   * @param partitioning how messages are assigned to threads
+   * @param handler the handler called for each message
+   * @return the running consumer
+   */
+  public ParallelTapConsumer consume(int workers,
+      ParallelTapConsumer.Partitioning partitioning,
+      TapMessageHandler handler) {
+    ParallelTapConsumer consumer =
+        new ParallelTapConsumer(this, workers, partitioning, handler);
+    consumer.start();
+    return consumer;
+  }
+
+  /**
+   * Open the connections for a new tap stream.
+   *
+   * A tap stream takes over the connections it is started on, so every
+   * stream gets its own. The cluster configuration and its streaming update
+   * connection are shared by all streams of this client.
+   */
+  private TapConnectionProvider openConnection() throws IOException,
+      ConfigurationException {
+    CouchbaseConnectionFactory factory;
+    synchronized (connections) {
+      if (cf == null) {
+        cf = new CouchbaseConnectionFactory(baseList, bucketName, pwd);
+        lastConfig = cf.getVBucketConfig();
+        cf.getConfigurationProvider().subscribe(bucketName,
+            new ConfigListener());
+      }
+      factory = cf;
+    }
+    TapConnectionProvider conn = new TapConnectionProvider(factory, false);
+    connections.add(conn);
+    return conn;
+  }
+
+  /**
+   * Passes configuration updates on to the open tap connections and
+   * follows moved vbuckets of resumed streams.
+   */
+  class ConfigListener implements Reconfigurable {
+    public void reconfigure(Bucket bucket) {
+      for (TapConnectionProvider conn : connections) {
+        if (conn.isShuttingDown()) {
+          connections.remove(conn);
+        } else {
+          conn.reconfigure(bucket);
+        }
+      }
+      Config old;
+      synchronized (connections) {
+        old = lastConfig;
+        lastConfig = bucket.getConfig();
+      }
+      if (old == null || resumed.isEmpty()) {
+        return;
+      }
+      Map<String, List<Short>> moved = movedVbuckets(old, bucket.getConfig());
+      if (!moved.isEmpty()) {
+        for (ResumedStream rs : resumed) {
+          reopen(rs, bucket, moved);
+        }
+      }
+    }
+  }
+
+  private TapOperation.Callback newCallback(TapConnectionProvider conn,
+      CountDownLatch latch) {
+    return newCallback(conn, latch, null);
+  }
+
+  private TapOperation.Callback newCallback(final TapConnectionProvider conn,
+      final CountDownLatch latch, final Runnable done) {
+    return new FilteredTapOperationImpl.Callback() {
+      // The ack asked for by the message about to be passed to gotData.
+      // Only touched by the IO thread of the operation.
+      private TapAck requested;
+
+      public void receivedStatus(OperationStatus status) {
+      }
+      public void gotData(ResponseMessage tapMessage) {
+        if (requested != null && requested.getOpaque() == tapMessage.getOpaque()
+            && requested.getOpcode() == tapMessage.getOpcode()) {
+          enqueue(conn, new TapDelivery(tapMessage, requested));
+          requested = null;
+        } else {
+          rejected();
+          enqueue(conn, tapMessage);
+        }
+        messagesRead++;
+      }
+      public void gotAck(MemcachedNode node, TapOpcode opcode, int opaque) {
+        rejected();
+        TapAck ack = new TapAck(conn, node, opcode, opaque, this);
+        if (opcode == TapOpcode.OPAQUE || opcode == TapOpcode.NOOP) {
+          // These messages are never handed out.
+          enqueue(conn, ack);
+        } else {
+          requested = ack;
+        }
+      }
+      public void rejected() {
+        if (requested != null) {
+          enqueue(conn, requested);
+          requested = null;
+        }
+      }
+      public void complete() {
+        rejected();
+        latch.countDown();
+        if (done != null) {
+          done.run();
+        }
+      }
+    };
+  }
+
+  /**
+   * Build the request a dump or backfill operation would send.
+   */
+  private static RequestMessage newRequest(TapRequestFlag type) {
+    RequestMessage message = new RequestMessage();
+    message.setMagic(TapMagic.PROTOCOL_BINARY_REQ);
+    message.setOpcode(TapOpcode.REQUEST);
+    message.setFlags(type);
+    message.setFlags(TapRequestFlag.SUPPORT_ACK);
+    message.setFlags(TapRequestFlag.FIX_BYTEORDER);
+    return message;
+  }
+
+  /**
+   * Add a received message to the buffer, blocking the calling IO thread
+   * while the buffer is full.
+   */
+  private void enqueue(TapConnectionProvider conn, Object m) {
+    try {
+      while (!rqueue.offer(m, ENQUEUE_INTERVAL, TimeUnit.MILLISECONDS)) {
+        if (conn.isShuttingDown()) {
+          // Nobody is going to read the rest of a stream being shut down.
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private void tapAck(TapConnectionProvider conn, MemcachedNode node,
       TapOpcode opcode, int opaque, OperationCallback cb) {
     final Operation op = conn.getOpFactory().tapAck(opcode, opaque, cb);
@@ -342,6 +833,14 @@ public class TapClient extends net.spy.memcached.TapClient {
         me.getValue().shutdown();
       }
     }
+    resumed.clear();
+    synchronized (connections) {
+      connections.clear();
+      if (cf != null) {
+        cf.getConfigurationProvider().shutdown();
+        cf = null;
+      }
+    }
   }
 
   /**
@@ -353,5 +852,44 @@ public class TapClient extends net.spy.memcached.TapClient {
   public long getMessagesRead() {
     return messagesRead;
   }
+
+  /**
+   * The number of bytes of received messages waiting to be read.
+   *
+   * @return the buffered bytes
+   */
+  public long getBufferedBytes() {
+    return buffer.getBufferedBytes();
+  }
+
+  /**
+   * The most bytes of received messages that were waiting at once.
+   *
+   * @return the peak buffered bytes
+   */
+  public long getPeakBufferedBytes() {
+    return buffer.getPeakBufferedBytes();
+  }
+
+  /**
+   * The number of times the buffer reached its high watermark and reading
+   * from the tap connections stopped.
+   *
+   * @return the number of pauses
+   */
+  public long getBufferPauses() {
+    return buffer.getPauseCount();
+  }
+
+  /**
+   * The total time reading from the tap connections was stopped because the
+   * buffer was full.
+   *
+   * @param unit the unit to return the time in
+   * @return the time spent paused
+   */
+  public long getBufferPausedTime(TimeUnit unit) {
+    return buffer.getPausedTime(unit);
+  }
 }
 
@@ -27,13 +27,18 @@ import com.couchbase.client.vbucket.Reconfigurable;
 import com.couchbase.client.vbucket.config.Bucket;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.naming.ConfigurationException;
 
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.BroadcastOpFactory;
 import net.spy.memcached.ConnectionObserver;
+import net.spy.memcached.MemcachedNode;
 
 /**
  * A TapConnectionProvider for Couchbase Server.
@@ -44,6 +49,7 @@ public class TapConnectionProvider
 
   private final CouchbaseConnectionFactory cf;
   private final ConfigurationProvider cp;
+  private final boolean ownsConfig;
 
   /**
    * Get a tap connection based on the REST response from a Couchbase server.
@@ -68,11 +74,29 @@ public class TapConnectionProvider
    * @throws ConfigurationException
    */
   public TapConnectionProvider(CouchbaseConnectionFactory cf)
+    throws IOException, ConfigurationException{
+    this(cf, true);
+  }
+
+  /**
+   * Get a tap connection from a connection factory whose configuration
+   * updates may be shared with other connections.
+   *
+   * @param cf A connection factory to create the tap stream with
+   * @param ownsConfig whether this connection subscribes to configuration
+   *          updates itself and shuts down the configuration provider
+   * @throws IOException
+   * @throws ConfigurationException
+   */
+  TapConnectionProvider(CouchbaseConnectionFactory cf, boolean ownsConfig)
     throws IOException, ConfigurationException{
     super(cf, AddrUtil.getAddresses(cf.getVBucketConfig().getServers()));
     this.cf=cf;
+    this.ownsConfig = ownsConfig;
     cp = cf.getConfigurationProvider();
-    cp.subscribe(cf.getBucketName(), this);
+    if (ownsConfig) {
+      cp.subscribe(cf.getBucketName(), this);
+    }
   }
 
   /**
@@ -89,8 +113,50 @@ public class TapConnectionProvider
     ((CouchbaseConnection)conn).reconfigure(bucket);
   }
 
+  /**
+   * Check whether this connection is being shut down.
+   *
+   * @return true once shutdown was called
+   */
+  boolean isShuttingDown() {
+    return shuttingDown;
+  }
+
+  /**
+   * Find the node of a server in the current configuration.
+   *
+   * @param server the server as host:port
+   * @return the node or null if this connection does not know the server
+   */
+  MemcachedNode getNode(String server) {
+    InetSocketAddress address = AddrUtil.getAddresses(server).get(0);
+    for (MemcachedNode node : conn.getLocator().getAll()) {
+      if (address.equals(node.getSocketAddress())) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Broadcast an operation to a subset of the nodes.
+   *
+   * @param of the factory creating the operation for each node
+   * @param nodes the nodes to send it to
+   * @return a latch counted down as the operations complete
+   */
+  CountDownLatch broadcastOp(BroadcastOpFactory of,
+      Collection<MemcachedNode> nodes) {
+    if (shuttingDown) {
+      throw new IllegalStateException("Shutting down");
+    }
+    return conn.broadcastOperation(of, nodes);
+  }
+
   public void shutdown() {
     super.shutdown();
-    cf.getConfigurationProvider().shutdown();
+    if (ownsConfig) {
+      cf.getConfigurationProvider().shutdown();
+    }
   }
 }
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapAck;
+
+/**
+ * An item taken off the queue of a TapClient: a message, the ack the server
+ * asked for, or a message together with the ack it asked for.
+ *
+ * The callback of a tap operation pairs each ack with the message that
+ * requested it, so consumers can send the ack once that message and all
+ * messages before it have been handled without matching them up again.
+ */
+class TapDelivery {
+
+  private final ResponseMessage message;
+  private final TapAck ack;
+
+  TapDelivery(ResponseMessage message, TapAck ack) {
+    this.message = message;
+    this.ack = ack;
+  }
+
+  /**
+   * Wrap an item of the queue.
+   *
+   * @param m a ResponseMessage, a TapAck or a TapDelivery
+   * @return the delivery
+   */
+  static TapDelivery of(Object m) {
+    if (m instanceof TapDelivery) {
+      return (TapDelivery) m;
+    } else if (m instanceof ResponseMessage) {
+      return new TapDelivery((ResponseMessage) m, null);
+    } else if (m instanceof TapAck) {
+      return new TapDelivery(null, (TapAck) m);
+    }
+    throw new IllegalStateException("Unexpected tap message type");
+  }
+
+  /**
+   * Get the received message.
+   *
+   * @return the message or null if only an ack was requested, for instance
+   *         by an opaque or noop message
+   */
+  ResponseMessage getMessage() {
+    return message;
+  }
+
+  /**
+   * Get the ack to send once the message has been handled.
+   *
+   * @return the ack or null if none was requested
+   */
+  TapAck getAck() {
+    return ack;
+  }
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Replays the segments written by a {@link TapFileSink} into a bucket.
+ *
+ * Mutations become sets and deletions become deletes, in the order they
+ * were archived. The operations are pipelined: up to the window size of
+ * them are outstanding, and only the oldest is waited for once the window
+ * is full. Changes to a key stay in order since they all go to the same
+ * node. Values are stored with their original flags and expiry, without
+ * being decoded.
+ */
+public class TapFileReplayer extends SpyObject {
+
+  /**
+   * The number of operations outstanding at once.
+   */
+  public static final int DEFAULT_WINDOW = 1024;
+
+  /**
+   * Passes the archived values through as they are.
+   */
+  private static final Transcoder<CachedData> RAW =
+      new Transcoder<CachedData>() {
+        public boolean asyncDecode(CachedData d) {
+          return false;
+        }
+
+        public CachedData encode(CachedData o) {
+          return o;
+        }
+
+        public CachedData decode(CachedData d) {
+          return d;
+        }
+
+        public int getMaxSize() {
+          return CachedData.MAX_SIZE;
+        }
+      };
+
+  private final File directory;
+  private final int window;
+  private final CRC32 crc = new CRC32();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Create a replayer for the segments in a directory.
+   *
+   * @param directory the directory the sink wrote to
+   */
+  public TapFileReplayer(File directory) {
+    this(directory, DEFAULT_WINDOW);
+  }
+
+  /**
+   * Create a replayer for the segments in a directory.
+   *
+   * @param directory the directory the sink wrote to
+   * @param window the number of operations outstanding at once
+   */
+  public TapFileReplayer(File directory, int window) {
+    if (directory == null) {
+      throw new IllegalArgumentException("Directory must not be null");
+    }
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be positive");
+    }
+    this.directory = directory;
+    this.window = window;
+  }
+
+  /**
+   * Replay every segment, oldest first, and wait for all operations.
+   *
+   * A partial record at the end of the last segment, left by a crash of the
+   * sink, ends the replay. A damaged record anywhere else is an error. A
+   * restarted sink cuts such a record off before it starts a new segment.
+   *
+   * @param client the client to replay into
+   * @return the number of records replayed
+   * @throws IOException if a segment cannot be read or is damaged
+   * @throws InterruptedException if interrupted while waiting for the
+   *           operations
+   */
+  public synchronized long replay(CouchbaseClientIF client)
+    throws IOException, InterruptedException {
+    File[] segments = TapFileSink.listSegments(directory);
+    LinkedList<Pending> outstanding = new LinkedList<Pending>();
+    long count = 0;
+    try {
+      for (int i = 0; i < segments.length; i++) {
+        count += replay(segments[i], i == segments.length - 1, client,
+            outstanding);
+      }
+    } finally {
+      while (!outstanding.isEmpty()) {
+        complete(outstanding.removeFirst());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of records replayed.
+   *
+   * @return the number of records
+   */
+  public long getReplayedCount() {
+    return replayed.get();
+  }
+
+  /**
+   * Get the number of sets that did not succeed.
+   *
+   * @return the number of failed sets
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  private long replay(File file, boolean last, CouchbaseClientIF client,
+      LinkedList<Pending> outstanding) throws IOException,
+    InterruptedException {
+    ByteBuffer segment = map(file);
+    if (!readHeader(segment, file)) {
+      damaged(file, last, 0);
+      return 0;
+    }
+
+    long count = 0;
+    while (segment.hasRemaining()) {
+      int start = segment.position();
+      Record record = Record.read(segment, crc);
+      if (record == null) {
+        damaged(file, last, start);
+        break;
+      }
+
+      String k = new String(record.key, "UTF-8");
+      Pending op;
+      if (record.opcode == TapOpcode.MUTATION.getOpcode()) {
+        CachedData data = new CachedData(record.flags, record.value,
+            CachedData.MAX_SIZE);
+        op = new Pending(k, client.set(k, record.expiry, data, RAW), true);
+      } else if (record.opcode == TapOpcode.DELETE.getOpcode()) {
+        op = new Pending(k, client.delete(k), false);
+      } else {
+        throw new IOException("Unknown record type " + record.opcode
+            + " at " + start + " in " + file);
+      }
+      outstanding.addLast(op);
+      replayed.incrementAndGet();
+      count++;
+      while (outstanding.size() >= window) {
+        complete(outstanding.removeFirst());
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the length of a segment up to the end of its last whole record.
+   *
+   * @param file the segment
+   * @return the length, or 0 if not even the segment header is whole
+   * @throws IOException if the segment cannot be read or is not a segment
+   */
+  static long validLength(File file) throws IOException {
+    ByteBuffer segment = map(file);
+    if (!readHeader(segment, file)) {
+      return 0;
+    }
+    CRC32 crc = new CRC32();
+    while (segment.hasRemaining()) {
+      if (Record.read(segment, crc) == null) {
+        break;
+      }
+    }
+    return segment.position();
+  }
+
+  /**
+   * Check the magic number and version at the start of a segment.
+   *
+   * @return false if the segment is too short to hold them
+   */
+  private static boolean readHeader(ByteBuffer segment, File file)
+    throws IOException {
+    if (segment.remaining() < TapFileSink.FILE_HEADER_SIZE) {
+      return false;
+    }
+    if (segment.getInt() != TapFileSink.MAGIC) {
+      throw new IOException(file + " is not a tap segment");
+    }
+    int version = segment.getInt();
+    if (version != TapFileSink.VERSION) {
+      throw new IOException("Unsupported version " + version + " of "
+          + file);
+    }
+    return true;
+  }
+
+  private void damaged(File file, boolean last, int offset)
+    throws IOException {
+    if (!last) {
+      throw new IOException("Damaged record at " + offset + " in " + file);
+    }
+    getLogger().warn("Ignoring the partial record at " + offset + " in "
+        + file);
+  }
+
+  private void complete(Pending op) throws InterruptedException {
+    try {
+      if (!op.future.get().booleanValue() && op.set) {
+        failures.incrementAndGet();
+        getLogger().warn("Could not replay the set of " + op.key);
+      }
+    } catch (ExecutionException e) {
+      failures.incrementAndGet();
+      getLogger().warn("Could not replay " + op.key, e);
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * An archived record.
+   */
+  private static final class Record {
+    private final byte opcode;
+    private final int flags;
+    private final int expiry;
+    private final byte[] key;
+    private final byte[] value;
+
+    private Record(ByteBuffer header, byte[] key, byte[] value) {
+      this.opcode = header.get(0);
+      this.flags = header.getInt(4);
+      this.expiry = header.getInt(8);
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * Read the record at the position of a segment and check its CRC.
+     *
+     * @return the record, or null if it is partial or damaged, in which case
+     *         the position is left at its start
+     */
+    private static Record read(ByteBuffer segment, CRC32 crc) {
+      int start = segment.position();
+      if (segment.remaining() < TapFileSink.HEADER_SIZE) {
+        return null;
+      }
+      byte[] header = new byte[TapFileSink.HEADER_SIZE];
+      segment.get(header);
+      ByteBuffer h = ByteBuffer.wrap(header);
+      int keylen = h.getShort(20) & 0xffff;
+      int valuelen = h.getInt(22);
+      if (valuelen < 0 || segment.remaining() < keylen + valuelen) {
+        segment.position(start);
+        return null;
+      }
+      byte[] key = new byte[keylen];
+      byte[] value = new byte[valuelen];
+      segment.get(key);
+      segment.get(value);
+      crc.reset();
+      crc.update(header, 0, TapFileSink.CRC_OFFSET);
+      crc.update(key);
+      crc.update(value);
+      if ((int) crc.getValue() != h.getInt(TapFileSink.CRC_OFFSET)) {
+        segment.position(start);
+        return null;
+      }
+      return new Record(h, key, value);
+    }
+  }
+
+  /**
+   * An operation waiting for its result.
+   */
+  private static final class Pending {
+    private final String key;
+    private final Future<Boolean> future;
+    private final boolean set;
+
+    private Pending(String key, Future<Boolean> future, boolean set) {
+      this.key = key;
+      this.future = future;
+      this.set = set;
+    }
+  }
+}
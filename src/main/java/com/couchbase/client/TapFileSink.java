@@ -0,0 +1,509 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+package com.couchbase.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapAck;
+import net.spy.memcached.tapmessage.TapOpcode;
+
+/**
+ * Archives the mutations and deletions of a TapClient to append-only files.
+ *
+ * The records are written to numbered segment files in a directory with
+ * gather writes, without copying the values. A segment is closed once it
+ * reaches the segment size or age, and the next one is started. The
+ * written records are forced to disk together at the sync interval, and
+ * the acks the server asked for are only sent once every message received
+ * before them is on disk. Use {@link TapFileReplayer} to read the segments
+ * back.
+ *
+ * Each segment starts with a magic number and a version, both ints. Each
+ * record is a header followed by the key and the value:
+ *
+ * <pre>
+ * byte   opcode (mutation or delete)
+ * byte   reserved
+ * short  vbucket
+ * int    item flags
+ * int    expiry
+ * long   cas
+ * short  key length
+ * int    value length
+ * int    CRC-32 of the header up to here, the key and the value
+ * </pre>
+ *
+ * All numbers are big-endian. A segment is never appended to once it is
+ * closed, so after a crash only the last one can end in a partial record.
+ * A restarted sink cuts that record off before it starts a new segment.
+ */
+public class TapFileSink extends SpyObject {
+
+  /**
+   * The size after which a segment is closed.
+   */
+  public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * The age in milliseconds after which a segment is closed.
+   */
+  public static final long DEFAULT_SEGMENT_TIME = 60 * 60 * 1000;
+
+  /**
+   * The interval in milliseconds at which records are forced to disk.
+   */
+  public static final long DEFAULT_SYNC_INTERVAL = 100;
+
+  static final int MAGIC = 0x54415046;
+  static final int VERSION = 1;
+  static final int FILE_HEADER_SIZE = 8;
+  static final int HEADER_SIZE = 30;
+  static final int CRC_OFFSET = 26;
+  static final String SUFFIX = ".tap";
+
+  /**
+   * Buffers in one gather write: three per record, within the usual iovec
+   * limit.
+   */
+  private static final int MAX_GATHER = 1023;
+  private static final int MAX_BATCH_BYTES = 1024 * 1024;
+  private static final long POLL_INTERVAL = 100;
+  private static final String CHARSET = "UTF-8";
+
+  private final TapClient client;
+  private final File directory;
+  private final long segmentSize;
+  private final long segmentTime;
+  private final long syncInterval;
+  private final ByteBuffer headers =
+      ByteBuffer.allocate(MAX_GATHER / 3 * HEADER_SIZE);
+  private final List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+  private final List<TapAck> unsynced = new ArrayList<TapAck>();
+  private final CRC32 crc = new CRC32();
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong syncs = new AtomicLong();
+  private final AtomicLong segments = new AtomicLong();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final Thread thread;
+  private volatile boolean running;
+  private volatile int pendingAcks;
+  private volatile IOException failure;
+  private FileChannel channel;
+  private long segmentNumber;
+  private long segmentStart;
+  private long segmentBytes;
+  private long batchBytes;
+  private boolean dirty;
+  private long lastSync;
+
+  /**
+   * Create a sink writing to the given directory with the default segment
+   * size, segment age and sync interval. Call {@link #start()} once the
+   * tap streams have been opened.
+   *
+   * @param client the client to archive the messages of
+   * @param directory the directory to write the segments to
+   */
+  public TapFileSink(TapClient client, File directory) {
+    this(client, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_TIME,
+        DEFAULT_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Create a sink writing to the given directory. Call {@link #start()}
+   * once the tap streams have been opened.
+   *
+   * @param client the client to archive the messages of
+   * @param directory the directory to write the segments to
+   * @param segmentSize the size in bytes after which a segment is closed
+   * @param segmentTime the age after which a segment is closed
+   * @param syncInterval the interval at which records are forced to disk
+   * @param unit the unit of the age and the interval
+   */
+  public TapFileSink(TapClient client, File directory, long segmentSize,
+      long segmentTime, long syncInterval, TimeUnit unit) {
+    if (client == null || directory == null || unit == null) {
+      throw new IllegalArgumentException("Client, directory and unit must "
+          + "not be null");
+    }
+    if (segmentSize <= FILE_HEADER_SIZE || segmentTime <= 0
+        || syncInterval < 0) {
+      throw new IllegalArgumentException("Segment size and age must be "
+          + "positive and the sync interval must not be negative");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Cannot create directory "
+          + directory);
+    }
+    this.client = client;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.segmentTime = unit.toMillis(segmentTime);
+    this.syncInterval = unit.toMillis(syncInterval);
+    thread = new Thread(new Runnable() {
+      public void run() {
+        archive();
+      }
+    }, "Tap file sink");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Start writing the received messages.
+   */
+  public synchronized void start() {
+    if (running || done.getCount() == 0) {
+      throw new IllegalStateException("Sink already started");
+    }
+    running = true;
+    thread.start();
+  }
+
+  /**
+   * Stop taking messages off the client. The records taken so far are
+   * forced to disk and acked before the sink completes.
+   */
+  public void shutdown() {
+    running = false;
+  }
+
+  /**
+   * Wait until the tap streams have ended, or the sink was shut down, and
+   * everything was written.
+   *
+   * @param timeout the amount of time to wait
+   * @param unit the unit of time to use
+   * @return true if the sink completed in time
+   * @throws InterruptedException if interrupted while waiting
+   * @throws IOException if the sink stopped because writing failed
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit)
+    throws InterruptedException, IOException {
+    if (!done.await(timeout, unit)) {
+      return false;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return true;
+  }
+
+  /**
+   * Get the error the sink stopped with. The acks held for records that
+   * were not forced to disk are not sent, so the server streams them again.
+   *
+   * @return the error or null if the sink is running or ended normally
+   */
+  public IOException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Get the number of records written.
+   *
+   * @return the number of records
+   */
+  public long getRecordCount() {
+    return records.get();
+  }
+
+  /**
+   * Get the number of bytes written, including segment headers.
+   *
+   * @return the number of bytes
+   */
+  public long getBytesWritten() {
+    return bytes.get();
+  }
+
+  /**
+   * Get the number of times records were forced to disk.
+   *
+   * @return the number of syncs
+   */
+  public long getSyncCount() {
+    return syncs.get();
+  }
+
+  /**
+   * Get the number of segments started.
+   *
+   * @return the number of segments
+   */
+  public long getSegmentCount() {
+    return segments.get();
+  }
+
+  /**
+   * Get the number of acks waiting for their messages to be on disk.
+   *
+   * @return the number of held acks
+   */
+  public int getPendingAcks() {
+    return pendingAcks;
+  }
+
+  /**
+   * List the segments in a directory, oldest first.
+   */
+  static File[] listSegments(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files);
+    return files;
+  }
+
+  private void archive() {
+    try {
+      recover();
+      segmentNumber = nextSegmentNumber();
+      lastSync = System.currentTimeMillis();
+      long poll = Math.max(1, Math.min(POLL_INTERVAL, syncInterval));
+      while (running && client.hasMoreMessages()) {
+        TapDelivery d = client.pollQueue(poll, TimeUnit.MILLISECONDS);
+        if (d != null) {
+          received(d);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSync >= syncInterval) {
+          sync();
+        }
+        if (channel != null && (segmentBytes + batchBytes >= segmentSize
+            || now - segmentStart >= segmentTime)) {
+          closeSegment();
+        }
+      }
+      closeSegment();
+    } catch (InterruptedException e) {
+      getLogger().warn("Tap file sink interrupted");
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      failure = e;
+      getLogger().error("Tap file sink stopped, held acks are not sent", e);
+    } catch (RuntimeException e) {
+      failure = new IOException("Tap file sink failed", e);
+      getLogger().error("Tap file sink failed", e);
+    } finally {
+      running = false;
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          getLogger().warn("Could not close tap segment", e);
+        }
+      }
+      done.countDown();
+    }
+  }
+
+  private void received(TapDelivery d) throws IOException {
+    ResponseMessage message = d.getMessage();
+    if (message != null && (message.getOpcode() == TapOpcode.MUTATION
+        || message.getOpcode() == TapOpcode.DELETE)) {
+      append(message);
+    }
+    if (d.getAck() != null) {
+      hold(d.getAck());
+    }
+  }
+
+  private void hold(TapAck ack) {
+    unsynced.add(ack);
+    pendingAcks = unsynced.size();
+  }
+
+  private void append(ResponseMessage message) throws IOException {
+    if (channel == null) {
+      openSegment();
+    }
+    if (batch.size() + 3 > MAX_GATHER) {
+      write();
+    }
+    byte[] key = message.getKey().getBytes(CHARSET);
+    byte[] value = message.getOpcode() == TapOpcode.MUTATION
+      ? message.getValue() : new byte[0];
+
+    headers.limit(headers.position() + HEADER_SIZE);
+    ByteBuffer header = headers.slice();
+    headers.position(headers.limit());
+    header.put(message.getOpcode().getOpcode());
+    header.put((byte) 0);
+    header.putShort(message.getVbucket());
+    header.putInt(message.getItemFlags());
+    header.putInt((int) message.getItemExpiry());
+    header.putLong(message.getCas());
+    header.putShort((short) key.length);
+    header.putInt(value.length);
+    crc.reset();
+    crc.update(header.array(), header.arrayOffset(), CRC_OFFSET);
+    crc.update(key);
+    crc.update(value);
+    header.putInt((int) crc.getValue());
+    header.flip();
+
+    batch.add(header);
+    batch.add(ByteBuffer.wrap(key));
+    batch.add(ByteBuffer.wrap(value));
+    batchBytes += HEADER_SIZE + key.length + value.length;
+    records.incrementAndGet();
+    if (batchBytes >= MAX_BATCH_BYTES) {
+      write();
+    }
+  }
+
+  private void openSegment() throws IOException {
+    File file = new File(directory, String.format("%020d%s",
+        segmentNumber++, SUFFIX));
+    channel = new FileOutputStream(file).getChannel();
+    segmentStart = System.currentTimeMillis();
+    segmentBytes = 0;
+    segments.incrementAndGet();
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).flip();
+    batch.add(header);
+    batchBytes += FILE_HEADER_SIZE;
+    getLogger().debug("Started tap segment " + file);
+  }
+
+  private void closeSegment() throws IOException {
+    sync();
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Write the batched records with as few gather writes as possible.
+   */
+  private void write() throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+    int offset = 0;
+    while (offset < buffers.length) {
+      channel.write(buffers, offset, buffers.length - offset);
+      while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+        offset++;
+      }
+    }
+    segmentBytes += batchBytes;
+    bytes.addAndGet(batchBytes);
+    batch.clear();
+    batchBytes = 0;
+    headers.clear();
+    dirty = true;
+  }
+
+  /**
+   * Force everything written to disk, then send the acks held for it.
+   */
+  private void sync() throws IOException {
+    write();
+    if (dirty) {
+      channel.force(false);
+      dirty = false;
+      syncs.incrementAndGet();
+    }
+    lastSync = System.currentTimeMillis();
+    for (TapAck ack : unsynced) {
+      try {
+        client.ack(ack);
+      } catch (RuntimeException e) {
+        getLogger().warn("Could not send tap ack", e);
+      }
+    }
+    unsynced.clear();
+    pendingAcks = 0;
+  }
+
+  /**
+   * Cut a partial record left by a crash off the newest segment. The sink
+   * starts a new segment, so the damaged one would no longer be the last
+   * and the archive could not be replayed.
+   */
+  private void recover() throws IOException {
+    File[] existing = listSegments(directory);
+    if (existing.length == 0) {
+      return;
+    }
+    File last = existing[existing.length - 1];
+    long valid = TapFileReplayer.validLength(last);
+    if (valid == 0) {
+      getLogger().warn("Removing the partial segment " + last);
+      if (!last.delete()) {
+        throw new IOException("Cannot remove the partial segment " + last);
+      }
+      return;
+    }
+    if (valid == last.length()) {
+      return;
+    }
+    getLogger().warn("Cutting the partial record at " + valid + " off "
+        + last);
+    RandomAccessFile raf = new RandomAccessFile(last, "rw");
+    try {
+      raf.getChannel().truncate(valid);
+      raf.getChannel().force(true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private long nextSegmentNumber() {
+    File[] existing = listSegments(directory);
+    if (existing.length == 0) {
+      return 0;
+    }
+    String name = existing[existing.length - 1].getName();
+    try {
+      return Long.parseLong(name.substring(0,
+          name.length() - SUFFIX.length())) + 1;
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Unexpected segment " + name, e);
+    }
+  }
+}
@@ -0,0 +1,356 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+
+/**
+ * A queue of received tap messages bounded by their size in bytes.
+ *
+ * Once the buffered bytes reach the high watermark, producers block until
+ * the consumer has drained the buffer down to the low watermark. Producers
+ * are the IO threads of the tap connections, so blocking them stops reading
+ * from the sockets and lets TCP flow control hold back the server. A single
+ * message is always admitted into an empty buffer, whatever its size.
+ */
+class TapMessageBuffer extends AbstractQueue<Object>
+  implements BlockingQueue<Object> {
+
+  /**
+   * The size accounted for an ack request.
+   */
+  static final int ACK_SIZE = 32;
+
+  private final long highWatermark;
+  private final long lowWatermark;
+  private final ArrayDeque<Object> items = new ArrayDeque<Object>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private long bytes;
+  private long peakBytes;
+  private boolean paused;
+  private long pauseStart;
+  private long pauses;
+  private long pausedNanos;
+
+  /**
+   * Create a buffer.
+   *
+   * @param highWatermark the buffered bytes at which producers block
+   * @param lowWatermark the buffered bytes at which they continue
+   */
+  public TapMessageBuffer(long highWatermark, long lowWatermark) {
+    if (highWatermark <= 0) {
+      throw new IllegalArgumentException("High watermark must be positive");
+    }
+    if (lowWatermark < 0 || lowWatermark > highWatermark) {
+      throw new IllegalArgumentException("Low watermark must be between 0 "
+          + "and the high watermark");
+    }
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+  }
+
+  static long sizeOf(Object m) {
+    if (m instanceof ResponseMessage) {
+      return ((ResponseMessage) m).getMessageLength();
+    } else if (m instanceof TapDelivery) {
+      return ((TapDelivery) m).getMessage().getMessageLength() + ACK_SIZE;
+    }
+    return ACK_SIZE;
+  }
+
+  /**
+   * Get the buffered bytes at which producers block.
+   *
+   * @return the high watermark in bytes
+   */
+  public long getHighWatermark() {
+    return highWatermark;
+  }
+
+  /**
+   * Get the buffered bytes at which blocked producers continue.
+   *
+   * @return the low watermark in bytes
+   */
+  public long getLowWatermark() {
+    return lowWatermark;
+  }
+
+  /**
+   * Get the number of bytes currently buffered.
+   *
+   * @return the buffered bytes
+   */
+  public long getBufferedBytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the most bytes that were buffered at once.
+   *
+   * @return the peak buffered bytes
+   */
+  public long getPeakBufferedBytes() {
+    lock.lock();
+    try {
+      return peakBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of times the high watermark was reached.
+   *
+   * @return the number of pauses
+   */
+  public long getPauseCount() {
+    lock.lock();
+    try {
+      return pauses;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the total time producers were held back.
+   *
+   * @param unit the unit to return the time in
+   * @return the time spent above the low watermark after a pause
+   */
+  public long getPausedTime(TimeUnit unit) {
+    lock.lock();
+    try {
+      long nanos = pausedNanos;
+      if (paused) {
+        nanos += System.nanoTime() - pauseStart;
+      }
+      return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean canAdmit() {
+    return items.isEmpty() || !paused;
+  }
+
+  private void insert(Object m) {
+    items.addLast(m);
+    bytes += sizeOf(m);
+    if (bytes > peakBytes) {
+      peakBytes = bytes;
+    }
+    if (!paused && bytes >= highWatermark) {
+      paused = true;
+      pauses++;
+      pauseStart = System.nanoTime();
+    }
+    notEmpty.signal();
+  }
+
+  private Object extract() {
+    Object m = items.removeFirst();
+    bytes -= sizeOf(m);
+    if (paused && (bytes <= lowWatermark || items.isEmpty())) {
+      paused = false;
+      pausedNanos += System.nanoTime() - pauseStart;
+      notFull.signalAll();
+    }
+    return m;
+  }
+
+  public boolean offer(Object m) {
+    if (m == null) {
+      throw new NullPointerException();
+    }
+    lock.lock();
+    try {
+      if (!canAdmit()) {
+        return false;
+      }
+      insert(m);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean offer(Object m, long timeout, TimeUnit unit)
+    throws InterruptedException {
+    if (m == null) {
+      throw new NullPointerException();
+    }
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (!canAdmit()) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull.awaitNanos(nanos);
+      }
+      insert(m);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void put(Object m) throws InterruptedException {
+    if (m == null) {
+      throw new NullPointerException();
+    }
+    lock.lockInterruptibly();
+    try {
+      while (!canAdmit()) {
+        notFull.await();
+      }
+      insert(m);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Object poll() {
+    lock.lock();
+    try {
+      return items.isEmpty() ? null : extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Object poll(long timeout, TimeUnit unit)
+    throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (items.isEmpty()) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Object take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (items.isEmpty()) {
+        notEmpty.await();
+      }
+      return extract();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Object peek() {
+    lock.lock();
+    try {
+      return items.peekFirst();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return items.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The buffer is bounded by bytes rather than by elements, so this only
+   * tells whether another message would be admitted right now.
+   */
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      return canAdmit() ? Integer.MAX_VALUE : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int drainTo(Collection<? super Object> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  public int drainTo(Collection<? super Object> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException();
+    }
+    lock.lock();
+    try {
+      int n = 0;
+      while (n < maxElements && !items.isEmpty()) {
+        c.add(extract());
+        n++;
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns an iterator over a snapshot of the buffered messages.
+   */
+  public Iterator<Object> iterator() {
+    lock.lock();
+    try {
+      return new ArrayList<Object>(items).iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
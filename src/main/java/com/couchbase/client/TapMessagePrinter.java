@@ -23,6 +23,7 @@
 package com.couchbase.client;
 
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 
 import net.spy.memcached.tapmessage.BaseMessage;
 
@@ -40,16 +41,26 @@ public final class TapMessagePrinter {
    * used for debugging.\ purposes.
    */
   public static void printMessage(BaseMessage message, PrintWriter p) {
+    ByteBuffer frame = message.getBytes();
+    // Not every message flips the buffer it returns.
+    frame.clear();
+    printMessage(frame, p);
+  }
+
+  /**
+   * Prints the frame in a buffer, from its position to its limit, in the
+   * same way without copying it. The buffer's position is not changed.
+   */
+  public static void printMessage(ByteBuffer frame, PrintWriter p) {
     int colNum = 0;
-    byte[] mbytes = message.getBytes().array();
     p.printf("   %5s%5s%5s%5s\n", "0", "1", "2", "3");
     p.print("   ----------------------");
-    for (int i = 0; i < mbytes.length; i++) {
+    for (int i = 0; i < frame.remaining(); i++) {
       if ((i % 4) == 0) {
         p.printf("\n%3d|", colNum);
         colNum += 4;
       }
-      int field = mbytes[i];
+      int field = frame.get(frame.position() + i);
       if (field < 0) {
         field = field + 256;
       }
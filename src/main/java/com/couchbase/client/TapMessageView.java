@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.nio.ByteBuffer;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapResponseFlag;
+
+/**
+ * A read-only view of a tap message frame that decodes fields on access.
+ *
+ * Unlike ResponseMessage, nothing is copied out of the frame: the key and
+ * value are returned as slices of the underlying buffer, and a single view
+ * can be pointed at one frame after another with {@link #wrap}. A view is
+ * only valid until it is wrapped around the next frame or the buffer is
+ * reused, so use {@link #copy()} to keep a message.
+ */
+public final class TapMessageView {
+
+  private static final int HEADER_LENGTH = 24;
+  private static final int KEYLEN_OFFSET = 2;
+  private static final int EXTLEN_OFFSET = 4;
+  private static final int VBUCKET_OFFSET = 6;
+  private static final int BODYLEN_OFFSET = 8;
+  private static final int OPAQUE_OFFSET = 12;
+  private static final int CAS_OFFSET = 16;
+  private static final int ENGINE_PRIVATE_OFFSET = 24;
+  private static final int FLAGS_OFFSET = 26;
+  private static final int ITEM_FLAGS_OFFSET = 32;
+  private static final int ITEM_EXPIRY_OFFSET = 36;
+
+  private ByteBuffer buf;
+  private int base;
+
+  /**
+   * Point this view at the frame starting at the buffer's position. The
+   * buffer's position and limit are not changed.
+   *
+   * @param frame a buffer holding a complete tap frame
+   * @return this view
+   */
+  public TapMessageView wrap(ByteBuffer frame) {
+    if (frame.remaining() < HEADER_LENGTH) {
+      throw new IllegalArgumentException("Frame shorter than a header");
+    }
+    buf = frame;
+    base = frame.position();
+    if (frame.remaining() < getLength()) {
+      buf = null;
+      throw new IllegalArgumentException("Incomplete tap frame");
+    }
+    return this;
+  }
+
+  private int u8(int offset) {
+    return buf.get(base + offset) & 0xff;
+  }
+
+  private int u16(int offset) {
+    return (u8(offset) << 8) | u8(offset + 1);
+  }
+
+  private int int32(int offset) {
+    return (u8(offset) << 24) | (u8(offset + 1) << 16) | (u8(offset + 2) << 8)
+        | u8(offset + 3);
+  }
+
+  private int int32LittleEndian(int offset) {
+    return u8(offset) | (u8(offset + 1) << 8) | (u8(offset + 2) << 16)
+        | (u8(offset + 3) << 24);
+  }
+
+  /**
+   * Get the length of the whole frame.
+   *
+   * @return the header and body length in bytes
+   */
+  public int getLength() {
+    return HEADER_LENGTH + int32(BODYLEN_OFFSET);
+  }
+
+  /**
+   * Get the opcode.
+   *
+   * @return the opcode or null if it is not a known tap opcode
+   */
+  public TapOpcode getOpcode() {
+    return TapOpcode.getOpcodeByByte(buf.get(base + 1));
+  }
+
+  /**
+   * Check whether this frame has the given opcode.
+   *
+   * @param opcode the opcode to compare to
+   * @return true if the opcodes match
+   */
+  public boolean is(TapOpcode opcode) {
+    return buf.get(base + 1) == opcode.getOpcode();
+  }
+
+  /**
+   * Get the vbucket.
+   *
+   * @return the vbucket of the message
+   */
+  public short getVbucket() {
+    return (short) u16(VBUCKET_OFFSET);
+  }
+
+  /**
+   * Get the opaque value.
+   *
+   * @return the opaque value of the message
+   */
+  public int getOpaque() {
+    return int32(OPAQUE_OFFSET);
+  }
+
+  /**
+   * Get the cas.
+   *
+   * @return the cas of the message
+   */
+  public long getCas() {
+    return ((long) int32(CAS_OFFSET) << 32)
+        | (int32(CAS_OFFSET + 4) & 0xffffffffL);
+  }
+
+  private int getExtrasLength() {
+    return u8(EXTLEN_OFFSET);
+  }
+
+  private int getEnginePrivate() {
+    if (getExtrasLength() < 2 || !(is(TapOpcode.MUTATION)
+        || is(TapOpcode.DELETE))) {
+      return 0;
+    }
+    return u16(ENGINE_PRIVATE_OFFSET);
+  }
+
+  /**
+   * Get the tap flags of the message as sent on the wire.
+   *
+   * @return the raw tap flags
+   */
+  public int getTapFlags() {
+    if (getExtrasLength() < 4) {
+      return 0;
+    }
+    return u16(FLAGS_OFFSET);
+  }
+
+  /**
+   * Check whether a tap flag is set.
+   *
+   * @param flag the flag to check
+   * @return true if the flag is set
+   */
+  public boolean hasFlag(TapResponseFlag flag) {
+    return (getTapFlags() & flag.getFlags()) != 0;
+  }
+
+  /**
+   * Get the flags of the item of a mutation.
+   *
+   * @return the item flags, or 0 for other messages
+   */
+  public int getItemFlags() {
+    if (!is(TapOpcode.MUTATION)) {
+      return 0;
+    }
+    if (hasFlag(TapResponseFlag.TAP_FLAG_NETWORK_BYTE_ORDER)) {
+      return int32(ITEM_FLAGS_OFFSET);
+    }
+    return int32LittleEndian(ITEM_FLAGS_OFFSET);
+  }
+
+  /**
+   * Get the expiration of the item of a mutation.
+   *
+   * @return the item expiry, or 0 for other messages
+   */
+  public long getItemExpiry() {
+    if (!is(TapOpcode.MUTATION)) {
+      return 0;
+    }
+    return int32(ITEM_EXPIRY_OFFSET) & 0xffffffffL;
+  }
+
+  private int keyOffset() {
+    return HEADER_LENGTH + getExtrasLength() + getEnginePrivate();
+  }
+
+  /**
+   * Get the key length.
+   *
+   * @return the length of the key in bytes
+   */
+  public int getKeyLength() {
+    return u16(KEYLEN_OFFSET);
+  }
+
+  /**
+   * Get the key as a slice of the frame.
+   *
+   * @return a read-only buffer holding the key
+   */
+  public ByteBuffer getKey() {
+    return slice(keyOffset(), getKeyLength());
+  }
+
+  /**
+   * Check whether the key starts with the given bytes without copying it.
+   *
+   * @param prefix the prefix to look for
+   * @return true if the key starts with the prefix
+   */
+  public boolean keyStartsWith(byte[] prefix) {
+    if (prefix.length > getKeyLength()) {
+      return false;
+    }
+    int offset = base + keyOffset();
+    for (int i = 0; i < prefix.length; i++) {
+      if (buf.get(offset + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the value length.
+   *
+   * @return the length of the value in bytes
+   */
+  public int getValueLength() {
+    return getLength() - keyOffset() - getKeyLength();
+  }
+
+  /**
+   * Get the value as a slice of the frame.
+   *
+   * @return a read-only buffer holding the value
+   */
+  public ByteBuffer getValue() {
+    return slice(keyOffset() + getKeyLength(), getValueLength());
+  }
+
+  private ByteBuffer slice(int offset, int length) {
+    ByteBuffer b = buf.asReadOnlyBuffer();
+    b.limit(base + offset + length);
+    b.position(base + offset);
+    return b.slice();
+  }
+
+  /**
+   * Copy the frame into a fully decoded message that stays valid after the
+   * view moves on.
+   *
+   * @return the decoded message
+   */
+  public ResponseMessage copy() {
+    byte[] frame = new byte[getLength()];
+    ByteBuffer b = buf.duplicate();
+    b.position(base);
+    b.get(frame);
+    return new ResponseMessage(frame);
+  }
+}
@@ -25,22 +25,32 @@ package com.couchbase.client;
 import com.couchbase.client.ViewNode.EventLogger;
 import com.couchbase.client.ViewNode.MyHttpRequestExecutionHandler;
 import com.couchbase.client.http.AsyncConnectionManager;
+import com.couchbase.client.http.RequestAcceptEncoding;
 import com.couchbase.client.http.RequeueOpCallback;
+import com.couchbase.client.http.ViewIOReactor;
 import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.vbucket.ConfigurationException;
+import com.couchbase.client.vbucket.ConfigurationProvider;
 import com.couchbase.client.vbucket.Reconfigurable;
 import com.couchbase.client.vbucket.config.Bucket;
+import com.couchbase.client.vbucket.config.Node;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.ConnectionObserver;
@@ -67,55 +77,81 @@ import org.apache.http.protocol.RequestUserAgent;
 /**
  * Couchbase implementation of ViewConnection.
  *
+ * The list of view nodes is replaced as a whole on reconfiguration, so
+ * operations can pick a node through the ViewLoadBalancer without locking.
+ *
+ * All view nodes share one I/O reactor, which may also be shared by all
+ * clients in the JVM. Each node keeps its own connection pool on top of it.
  */
 public class ViewConnection extends SpyObject  implements
   Reconfigurable {
-  private static final int NUM_CONNS = 1;
-
   private volatile boolean shutDown = false;
   protected volatile boolean reconfiguring = false;
   protected volatile boolean running = true;
 
-  private final ReentrantReadWriteLock rwlock = new ReentrantReadWriteLock();
-  private final Lock rlock = rwlock.readLock();
-  private final Lock wlock = rwlock.writeLock();
+  private final Lock wlock = new ReentrantLock();
 
   private final CouchbaseConnectionFactory connFactory;
   private final Collection<ConnectionObserver> connObservers =
       new ConcurrentLinkedQueue<ConnectionObserver>();
-  private List<ViewNode> couchNodes;
-  private int nextNode;
+  private final ViewLoadBalancer balancer;
+  private volatile List<ViewNode> couchNodes;
+  private final HttpParams params;
+  private final ViewIOReactor reactor;
 
   public ViewConnection(CouchbaseConnectionFactory cf,
       List<InetSocketAddress> addrs, Collection<ConnectionObserver> obs)
     throws IOException {
     connFactory = cf;
     connObservers.addAll(obs);
-    couchNodes = createConnections(addrs);
-    nextNode = 0;
+    balancer = cf.createViewLoadBalancer();
+    params = createParams();
+    if (cf.isViewIOReactorShared()) {
+      reactor = ViewIOReactor.acquireShared(cf.getViewIOThreads(), params);
+    } else {
+      reactor = new ViewIOReactor(cf.getViewIOThreads(), params,
+          "Couchbase View I/O reactor");
+      reactor.start();
+    }
+    try {
+      List<ViewNode> nodes = createConnections(addrs);
+      updateStatus(nodes, cf);
+      couchNodes = Collections.unmodifiableList(nodes);
+    } catch (IOException e) {
+      reactor.release(0);
+      throw e;
+    }
+  }
+
+  private static HttpParams createParams() {
+    HttpParams params = new SyncBasicHttpParams();
+    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
+        .setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 5000)
+        .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
+        .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,
+            false)
+        .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
+        .setParameter(CoreProtocolPNames.USER_AGENT,
+            "Couchbase Java Client 1.0.2");
+    return params;
   }
 
   private List<ViewNode> createConnections(List<InetSocketAddress> addrs)
     throws IOException {
 
-    List<ViewNode> nodeList = new LinkedList<ViewNode>();
+    List<ViewNode> nodeList = new ArrayList<ViewNode>(addrs.size());
 
     for (InetSocketAddress a : addrs) {
-      HttpParams params = new SyncBasicHttpParams();
-      params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, 5000)
-          .setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 5000)
-          .setIntParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, 8 * 1024)
-          .setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,
-              false)
-          .setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true)
-          .setParameter(CoreProtocolPNames.USER_AGENT,
-              "Couchbase Java Client 1.0.2");
-
-      HttpProcessor httpproc =
-          new ImmutableHttpProcessor(new HttpRequestInterceptor[] {
+      List<HttpRequestInterceptor> interceptors =
+          new ArrayList<HttpRequestInterceptor>(Arrays.asList(
             new RequestContent(), new RequestTargetHost(),
             new RequestConnControl(), new RequestUserAgent(),
-            new RequestExpectContinue(), });
+            new RequestExpectContinue()));
+      if (connFactory.isViewCompressionEnabled()) {
+        interceptors.add(new RequestAcceptEncoding());
+      }
+      HttpProcessor httpproc = new ImmutableHttpProcessor(
+          interceptors.toArray(new HttpRequestInterceptor[0]));
 
       AsyncNHttpClientHandler protocolHandler =
           new AsyncNHttpClientHandler(httpproc,
@@ -126,12 +162,18 @@ public class ViewConnection extends SpyObject  implements
 
       AsyncConnectionManager connMgr =
           new AsyncConnectionManager(
-              new HttpHost(a.getHostName(), a.getPort()), NUM_CONNS,
-              protocolHandler, params, new RequeueOpCallback(this));
+              new HttpHost(a.getHostName(), a.getPort()),
+              connFactory.getViewConnsPerNode(),
+              connFactory.getViewMinIdleConns(),
+              connFactory.getViewMaxPendingRequests(),
+              connFactory.getViewConnIdleTimeout(),
+              protocolHandler, params, new RequeueOpCallback(this, a),
+              reactor);
       getLogger().info("Added %s to connect queue", a);
 
       ViewNode node = connFactory.createViewNode(a, connMgr);
       node.init();
+      connMgr.prewarm();
       nodeList.add(node);
     }
 
@@ -139,22 +181,79 @@ public class ViewConnection extends SpyObject  implements
   }
 
   public void addOp(final HttpOperation op) {
-    rlock.lock();
-    try {
-      if (couchNodes.isEmpty()) {
+    List<ViewNode> nodes = couchNodes;
+    while (true) {
+      if (shutDown || nodes.isEmpty()) {
         getLogger().error("No server connections. Cancelling op.");
         op.cancel();
-      } else {
-        ViewNode node = couchNodes.get(getNextNode());
-        node.writeOp(op);
+        return;
+      }
+      try {
+        balancer.select(nodes).writeOp(op);
+        return;
+      } catch (IllegalStateException e) {
+        // A reconfiguration may have shut the selected node down in the
+        // meantime, so select again from the current nodes.
+        if (nodes == couchNodes) {
+          throw e;
+        }
+        nodes = couchNodes;
       }
-    } finally {
-      rlock.unlock();
     }
   }
 
-  private int getNextNode() {
-    return nextNode = (++nextNode % couchNodes.size());
+  /**
+   * Send an operation again after the node it was sent to failed.
+   *
+   * The operation goes to another node if there is one, unless it isn't
+   * idempotent, has been retried as often as configured or is past its
+   * deadline.
+   *
+   * @param op the operation
+   * @param failed the address of the node that failed, or null
+   * @return false if the operation was not sent again
+   */
+  public boolean retryOp(HttpOperation op, SocketAddress failed) {
+    if (shutDown || !op.prepareRetry(connFactory.getViewRetries())) {
+      return false;
+    }
+    List<ViewNode> nodes = couchNodes;
+    List<ViewNode> candidates = new ArrayList<ViewNode>(nodes.size());
+    for (ViewNode node : nodes) {
+      if (!node.getSocketAddress().equals(failed)) {
+        candidates.add(node);
+      }
+    }
+    if (candidates.isEmpty()) {
+      candidates = nodes;
+    }
+    if (candidates.isEmpty()) {
+      return false;
+    }
+    ViewNode node = balancer.select(candidates);
+    getLogger().info("Retrying view operation on %s after %s failed",
+        node.getSocketAddress(), failed);
+    try {
+      node.writeOp(op);
+    } catch (IllegalStateException e) {
+      getLogger().warn("Could not retry view operation", e);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Get the connection pool statistics of all view nodes.
+   *
+   * @return a map of statistics keyed by node address
+   */
+  public Map<SocketAddress, Map<String, String>> getStats() {
+    Map<SocketAddress, Map<String, String>> rv =
+        new HashMap<SocketAddress, Map<String, String>>();
+    for (ViewNode node : couchNodes) {
+      rv.put(node.getSocketAddress(), node.getStats());
+    }
+    return rv;
   }
 
   protected void checkState() {
@@ -178,6 +277,7 @@ public class ViewConnection extends SpyObject  implements
         }
       }
     }
+    reactor.release(0);
     return true;
   }
 
@@ -220,8 +320,9 @@ public class ViewConnection extends SpyObject  implements
         List<ViewNode> mergedNodes = new ArrayList<ViewNode>();
         mergedNodes.addAll(stayNodes);
         mergedNodes.addAll(newNodes);
+        updateStatus(mergedNodes, bucket.getNodes());
 
-        couchNodes = mergedNodes;
+        couchNodes = Collections.unmodifiableList(mergedNodes);
       } finally {
         wlock.unlock();
       }
@@ -242,4 +343,53 @@ public class ViewConnection extends SpyObject  implements
       reconfiguring = false;
     }
   }
+
+  /**
+   * Copy the status of the nodes from the configuration the connection is
+   * created with, so it is known before the first reconfiguration.
+   */
+  private void updateStatus(List<ViewNode> nodes,
+      CouchbaseConnectionFactory cf) {
+    ConfigurationProvider provider = cf.getConfigurationProvider();
+    if (provider == null) {
+      return;
+    }
+    try {
+      Bucket bucket = provider.getBucketConfiguration(cf.getBucketName());
+      if (bucket != null) {
+        updateStatus(nodes, bucket.getNodes());
+      }
+    } catch (ConfigurationException e) {
+      getLogger().warn("Could not read the status of the view nodes", e);
+    }
+  }
+
+  /**
+   * Copy the cluster status of each node in the configuration to the view
+   * node on the same host.
+   */
+  private void updateStatus(List<ViewNode> nodes, List<Node> configNodes) {
+    if (configNodes == null) {
+      return;
+    }
+    for (Node configNode : configNodes) {
+      String host = configNode.getHostname();
+      int colon = host.lastIndexOf(':');
+      if (colon > 0) {
+        host = host.substring(0, colon);
+      }
+      InetAddress address;
+      try {
+        address = InetAddress.getByName(host);
+      } catch (UnknownHostException e) {
+        getLogger().warn("Could not resolve node " + host, e);
+        continue;
+      }
+      for (ViewNode node : nodes) {
+        if (address.equals(node.getSocketAddress().getAddress())) {
+          node.setStatus(configNode.getStatus());
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.internal.SharedHttpFuture;
+import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewOperation.ViewCallback;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseNoDocs;
+import com.couchbase.client.protocol.views.ViewResponseReduced;
+import com.couchbase.client.protocol.views.ViewRow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * Groups single key view lookups into multi key queries.
+ *
+ * Lookups of the same view with the same query parameters that arrive
+ * within a short window are sent as one query restricted to all their keys,
+ * and the rows of the response are handed back to each lookup by key. A
+ * batch is sent early once it holds the maximum number of keys.
+ *
+ * Lookups can't include documents; fetch the documents of the returned ids
+ * with a bulk get instead. Lookups on a reduce view are grouped by the full
+ * key, so each key gets its own reduced row.
+ */
+public class ViewKeyBatcher extends SpyObject {
+
+  private final Sender client;
+  private final long window;
+  private final int maxKeys;
+  private final Map<String, Batch> batches;
+  private final ScheduledExecutorService timer;
+
+  /**
+   * Create a batcher.
+   *
+   * @param client the client to query the views with
+   * @param window the time a batch waits for more lookups
+   * @param unit the unit of the window
+   * @param maxKeys the most keys sent in one query
+   */
+  public ViewKeyBatcher(final CouchbaseClient client, long window,
+      TimeUnit unit, int maxKeys) {
+    this(new Sender() {
+      public long getViewTimeout(Query query) {
+        return client.getViewTimeout(query);
+      }
+      public HttpOperation createViewOperation(View view, Query query,
+          ViewCallback callback) {
+        return client.createViewOperation(view, query, callback);
+      }
+      public void addOp(HttpOperation op) {
+        client.addOp(op);
+      }
+    }, window, unit, maxKeys);
+  }
+
+  ViewKeyBatcher(Sender client, long window, TimeUnit unit, int maxKeys) {
+    if (maxKeys < 1) {
+      throw new IllegalArgumentException("At least one key per batch is"
+          + " needed");
+    }
+    this.client = client;
+    this.window = unit.toNanos(window);
+    this.maxKeys = maxKeys;
+    this.batches = new HashMap<String, Batch>();
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ViewKeyBatcher");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Look up the rows of a single key.
+   *
+   * @param view the view to query
+   * @param query the query parameters other than the key
+   * @param key the key, in the same form as for Query.setKey
+   * @return a future holding the rows of the key
+   * @throws IllegalArgumentException if the query includes documents,
+   *           restricts the keys itself or reduces by a group level
+   */
+  public HttpFuture<ViewResponse> lookup(View view, Query query,
+      String key) {
+    if (query.willIncludeDocs()) {
+      throw new IllegalArgumentException("Batched lookups can't include "
+          + "documents");
+    }
+    if (query.getKey() != null || query.getKeys() != null
+        || query.getRangeStart() != null || query.getRangeEnd() != null
+        || query.getStartkeyDocID() != null
+        || query.getEndkeyDocID() != null) {
+      throw new IllegalArgumentException("Batched lookups can't set a key, "
+          + "keys or a range");
+    }
+    if (query.willReduce() && query.getGroupLevel() >= 0) {
+      throw new IllegalArgumentException("Batched lookups reduce by the "
+          + "full key and can't set a group level");
+    }
+    String group = view.getURI() + query.toString();
+    SharedHttpFuture<ViewResponse> future =
+        new SharedHttpFuture<ViewResponse>(null,
+            client.getViewTimeout(query));
+    Batch full = null;
+    synchronized (this) {
+      Batch batch = batches.get(group);
+      if (batch == null) {
+        final Batch created = new Batch(group, view, query);
+        batches.put(group, created);
+        timer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush(created);
+          }
+        }, window, TimeUnit.NANOSECONDS);
+        batch = created;
+      }
+      batch.add(normalize(key), future);
+      if (batch.keys.size() >= maxKeys) {
+        full = batch;
+      }
+    }
+    if (full != null) {
+      flush(full);
+    }
+    return future;
+  }
+
+  /**
+   * Stop the timer that sends batches. Lookups that are waiting are sent
+   * right away.
+   */
+  public void shutdown() {
+    List<Batch> pending;
+    synchronized (this) {
+      pending = new ArrayList<Batch>(batches.values());
+    }
+    for (Batch batch : pending) {
+      flush(batch);
+    }
+    timer.shutdown();
+  }
+
+  private void flush(Batch batch) {
+    synchronized (this) {
+      if (batches.get(batch.group) != batch) {
+        return;
+      }
+      batches.remove(batch.group);
+    }
+    Query q = batch.query.copy().setKeys(batch.keys.keySet());
+    HttpOperation op;
+    try {
+      op = client.createViewOperation(batch.view, q, batch);
+      for (List<SharedHttpFuture<ViewResponse>> waiters
+          : batch.keys.values()) {
+        for (SharedHttpFuture<ViewResponse> waiter : waiters) {
+          waiter.setOperation(op);
+        }
+      }
+      client.addOp(op);
+    } catch (RuntimeException e) {
+      getLogger().warn("Could not send batched view lookup", e);
+      batch.receivedStatus(new OperationStatus(false, e.getMessage()));
+      batch.complete();
+    }
+  }
+
+  /**
+   * Sends the batched queries, normally through a CouchbaseClient.
+   */
+  interface Sender {
+    long getViewTimeout(Query query);
+
+    HttpOperation createViewOperation(View view, Query query,
+        ViewCallback callback);
+
+    void addOp(HttpOperation op);
+  }
+
+  /**
+   * Bring a key into the form the view returns it in, so that rows can be
+   * matched with lookups.
+   */
+  static String normalize(String key) {
+    try {
+      if (key.startsWith("[")) {
+        return new JSONArray(key).toString();
+      } else if (key.startsWith("{")) {
+        return new JSONObject(key).toString();
+      }
+    } catch (JSONException e) {
+      return key;
+    }
+    return key;
+  }
+
+  /**
+   * The lookups of a group waiting to be sent together.
+   */
+  private static final class Batch implements ViewCallback {
+    private final String group;
+    private final View view;
+    private final Query query;
+    private final Map<String, List<SharedHttpFuture<ViewResponse>>> keys =
+        new LinkedHashMap<String, List<SharedHttpFuture<ViewResponse>>>();
+    private ViewResponse response;
+    private OperationStatus status;
+
+    private Batch(String group, View view, Query query) {
+      this.group = group;
+      this.view = view;
+      this.query = query.copy();
+      if (query.willReduce()) {
+        // Without grouping the keys would be reduced into a single row.
+        this.query.setGroup(true);
+      } else if (view.hasReduce()) {
+        // The server reduces unless told not to, but the rows are parsed
+        // as map rows.
+        this.query.setReduce(false);
+      }
+    }
+
+    private void add(String key, SharedHttpFuture<ViewResponse> future) {
+      List<SharedHttpFuture<ViewResponse>> waiters = keys.get(key);
+      if (waiters == null) {
+        waiters = new ArrayList<SharedHttpFuture<ViewResponse>>(1);
+        keys.put(key, waiters);
+      }
+      waiters.add(future);
+    }
+
+    @Override
+    public void gotData(ViewResponse vr) {
+      response = vr;
+    }
+
+    @Override
+    public void receivedStatus(OperationStatus s) {
+      status = s;
+    }
+
+    @Override
+    public void complete() {
+      Map<String, Collection<ViewRow>> rows =
+          new HashMap<String, Collection<ViewRow>>();
+      Collection<RowError> errors = Collections.<RowError>emptyList();
+      if (response != null) {
+        errors = response.getErrors();
+        for (ViewRow row : response) {
+          Collection<ViewRow> forKey = rows.get(row.getKey());
+          if (forKey == null) {
+            forKey = new LinkedList<ViewRow>();
+            rows.put(row.getKey(), forKey);
+          }
+          forKey.add(row);
+        }
+      }
+      for (Map.Entry<String, List<SharedHttpFuture<ViewResponse>>> e
+          : keys.entrySet()) {
+        ViewResponse split = null;
+        if (response != null) {
+          Collection<ViewRow> forKey = rows.get(e.getKey());
+          if (forKey == null) {
+            forKey = new LinkedList<ViewRow>();
+          }
+          split = response instanceof ViewResponseReduced
+              ? new ViewResponseReduced(forKey, errors)
+              : new ViewResponseNoDocs(forKey, errors);
+        }
+        for (SharedHttpFuture<ViewResponse> waiter : e.getValue()) {
+          waiter.complete(split, status);
+        }
+      }
+    }
+  }
+}
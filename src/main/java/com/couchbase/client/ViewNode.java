@@ -23,15 +23,17 @@
 package com.couchbase.client;
 
 import com.couchbase.client.http.AsyncConnectionManager;
-import com.couchbase.client.http.AsyncConnectionRequest;
+import com.couchbase.client.http.DecodingNHttpEntity;
 import com.couchbase.client.http.HttpUtil;
 import com.couchbase.client.http.RequestHandle;
 import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.vbucket.config.Status;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import net.spy.memcached.compat.SpyObject;
@@ -39,14 +41,11 @@ import net.spy.memcached.compat.SpyObject;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.nio.NHttpClientConnection;
 import org.apache.http.nio.NHttpConnection;
-import org.apache.http.nio.entity.BufferingNHttpEntity;
 import org.apache.http.nio.entity.ConsumingNHttpEntity;
 import org.apache.http.nio.protocol.EventListener;
 import org.apache.http.nio.protocol.NHttpRequestExecutionHandler;
 import org.apache.http.nio.reactor.IOReactorException;
-import org.apache.http.nio.util.HeapByteBufferAllocator;
 import org.apache.http.protocol.HttpContext;
 
 /**
@@ -66,6 +65,7 @@ public class ViewNode extends SpyObject {
   private final long defaultOpTimeout;
   private final String user;
   private final String pass;
+  private volatile Status status;
 
   public ViewNode(InetSocketAddress a, AsyncConnectionManager mgr,
       long queueLen, long maxBlockTime, long operationTimeout, String usr,
@@ -79,56 +79,39 @@ public class ViewNode extends SpyObject {
     pass = pwd;
   }
 
+  /**
+   * Start the I/O reactor of this node, unless the node shares the reactor
+   * of its ViewConnection.
+   *
+   * @throws IOReactorException if the reactor could not be started
+   */
   public void init() throws IOReactorException {
-    // Start the I/O reactor in a separate thread
-    Thread t = new Thread(new Runnable() {
-      public void run() {
-        try {
-          connMgr.execute();
-        } catch (InterruptedIOException ex) {
-          getLogger().error("I/O reactor Interrupted", ex);
-        } catch (IOException e) {
-          getLogger().error("I/O error: " + e.getMessage(), e);
-        }
-        getLogger().info("Couchbase I/O reactor terminated");
-      }
-    }, "Couchbase View Thread for node " + addr);
-    t.start();
+    connMgr.start();
   }
 
+  /**
+   * Queue an operation to be written to this node.
+   *
+   * This method does not block. The operation is written by the I/O reactor
+   * once a connection to this node is available.
+   *
+   * @param op the operation to write
+   * @throws IllegalStateException if the node is shut down or too many
+   *           operations are already waiting to be written
+   */
   public void writeOp(HttpOperation op) {
-    AsyncConnectionRequest connRequest = connMgr.requestConnection();
-    try {
-      connRequest.waitFor();
-    } catch (InterruptedException e) {
-      getLogger().warn(
-          "Interrupted while trying to get a connection."
-              + " Cancelling op");
-      op.cancel();
-      return;
-    }
-
-    NHttpClientConnection conn = connRequest.getConnection();
-    if (conn == null) {
-      getLogger().error("Failed to obtain connection. Cancelling op");
-      op.cancel();
-    } else {
-      if (!user.equals("default")) {
-        try {
-          op.addAuthHeader(HttpUtil.buildAuthHeader(user, pass));
-        } catch (UnsupportedEncodingException ex) {
-          getLogger().error("Could not create auth header for request, "
-            + "could not encode credentials into base64. Canceling op."
-            + op, ex);
-          op.cancel();
-        }
+    if (!user.equals("default")) {
+      try {
+        op.addAuthHeader(HttpUtil.buildAuthHeader(user, pass));
+      } catch (UnsupportedEncodingException ex) {
+        getLogger().error("Could not create auth header for request, "
+          + "could not encode credentials into base64. Canceling op."
+          + op, ex);
+        op.cancel();
+        return;
       }
-      HttpContext context = conn.getContext();
-      RequestHandle handle = new RequestHandle(connMgr, conn);
-      context.setAttribute("request-handle", handle);
-      context.setAttribute("operation", op);
-      conn.requestOutput();
     }
+    connMgr.submit(op);
   }
 
   public boolean hasWriteOps() {
@@ -139,6 +122,91 @@ public class ViewNode extends SpyObject {
     return addr;
   }
 
+  /**
+   * Get the cluster status of this node as last seen in the configuration.
+   *
+   * @return the node status, or null if it is not known
+   */
+  public Status getStatus() {
+    return status;
+  }
+
+  public void setStatus(Status s) {
+    status = s;
+  }
+
+  /**
+   * Decide whether this node should be given view operations.
+   *
+   * @return false if the node is warming up or unhealthy, or has recently
+   *         failed to serve requests
+   */
+  public boolean isAvailable() {
+    Status s = status;
+    return s != Status.warmup && s != Status.unhealthy && !isFailing();
+  }
+
+  /**
+   * Check whether requests to this node have failed recently.
+   *
+   * @return true if the node should be avoided for now
+   */
+  public boolean isFailing() {
+    return connMgr.isFailing();
+  }
+
+  /**
+   * Get the number of operations queued for or waiting on this node.
+   *
+   * @return the number of outstanding operations
+   */
+  public int getOutstandingOperations() {
+    return connMgr.getOutstandingOperations();
+  }
+
+  /**
+   * Get the moving average response time of this node.
+   *
+   * @param unit the unit to return the time in
+   * @return the average response time
+   */
+  public long getLatency(TimeUnit unit) {
+    return connMgr.getLatency(unit);
+  }
+
+  /**
+   * Get the connection pool and traffic statistics for this node.
+   *
+   * @return a map of statistic names to values
+   */
+  public Map<String, String> getStats() {
+    Map<String, String> stats = new HashMap<String, String>();
+    long waits = connMgr.getConnectionWaitCount();
+    long waitTime = connMgr.getConnectionWaitTime(TimeUnit.MICROSECONDS);
+    stats.put("view_conns_max", String.valueOf(connMgr.getMaxConnections()));
+    stats.put("view_conns_open", String.valueOf(connMgr.getOpenConnections()));
+    stats.put("view_conns_idle", String.valueOf(connMgr.getIdleConnections()));
+    stats.put("view_requests_pending",
+        String.valueOf(connMgr.getPendingRequests()));
+    stats.put("view_conn_waits", String.valueOf(waits));
+    stats.put("view_conn_wait_avg_us",
+        String.valueOf(waits == 0 ? 0 : waitTime / waits));
+    stats.put("view_conn_wait_max_us", String.valueOf(
+        connMgr.getMaxConnectionWaitTime(TimeUnit.MICROSECONDS)));
+    stats.put("view_ops_outstanding",
+        String.valueOf(getOutstandingOperations()));
+    stats.put("view_latency_avg_us",
+        String.valueOf(getLatency(TimeUnit.MICROSECONDS)));
+    stats.put("view_bytes_wire",
+        String.valueOf(connMgr.getResponseWireBytes()));
+    stats.put("view_bytes_decoded",
+        String.valueOf(connMgr.getResponseDecodedBytes()));
+    stats.put("view_node_status", String.valueOf(status));
+    stats.put("view_node_failures",
+        String.valueOf(connMgr.getConsecutiveFailures()));
+    return stats;
+  }
+
   public void shutdown() throws IOException {
     shutdown(0, TimeUnit.MILLISECONDS);
   }
@@ -165,8 +233,13 @@ public class ViewNode extends SpyObject {
     public void finalizeContext(final HttpContext context) {
       RequestHandle handle =
           (RequestHandle) context.removeAttribute("request-handle");
-      if (handle != null) {
+      HttpOperation op = (HttpOperation) context.removeAttribute("operation");
+      if (handle != null && !handle.isCompleted()) {
         handle.cancel();
+        // The connection was lost before the response arrived, so retry
+        // the operation elsewhere or end it instead of leaving its caller
+        // waiting.
+        handle.getConnectionManager().operationFailed(op);
       }
     }
 
@@ -192,8 +265,10 @@ public class ViewNode extends SpyObject {
     @Override
     public ConsumingNHttpEntity responseEntity(HttpResponse response,
         HttpContext context) throws IOException {
-      return new BufferingNHttpEntity(response.getEntity(),
-          new HeapByteBufferAllocator());
+      RequestHandle handle =
+          (RequestHandle) context.getAttribute("request-handle");
+      return new DecodingNHttpEntity(response.getEntity(),
+          handle == null ? null : handle.getConnectionManager());
     }
   }
 
@@ -0,0 +1,442 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.internal.SharedHttpFuture;
+import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.Stale;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewOperation.ViewCallback;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowReduced;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.compat.SpyObject;
+import net.spy.memcached.ops.OperationStatus;
+
+/**
+ * A client side cache of view query results.
+ *
+ * Results are keyed by the view URI and the query string, and only queries
+ * that explicitly allow stale results (Stale.OK or Stale.UPDATE_AFTER) and
+ * don't include documents are cached. Each view has a time to live, which
+ * defaults to the one given at construction, and the cache as a whole is
+ * bounded by an estimate of the memory held by its results. When the bound
+ * is exceeded the least recently used results are evicted.
+ *
+ * Concurrent misses for the same query share a single request to the
+ * cluster. Once a result has lived for most of its time to live, the next
+ * hit triggers a background refresh with Stale.UPDATE_AFTER so that hot
+ * queries rarely miss.
+ */
+public class ViewResultCache extends SpyObject {
+
+  /**
+   * The fraction of the time to live after which a hit refreshes the entry.
+   */
+  private static final double REFRESH_AHEAD = 0.75;
+
+  private static final int ENTRY_OVERHEAD = 128;
+  private static final int ROW_OVERHEAD = 96;
+
+  private final long maxBytes;
+  private final long defaultTtl;
+  private final Map<String, Long> ttls;
+  private final LinkedHashMap<String, CacheEntry> entries;
+  private final Map<String, Load> loads;
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  /**
+   * Create a view result cache.
+   *
+   * @param maxBytes the estimated memory the cached results may hold
+   * @param ttl the default time to live of a result
+   * @param unit the unit of the time to live
+   */
+  public ViewResultCache(long maxBytes, long ttl, TimeUnit unit) {
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("The cache size must be positive");
+    }
+    if (ttl < 0) {
+      throw new IllegalArgumentException("The time to live cannot be"
+          + " negative");
+    }
+    this.maxBytes = maxBytes;
+    this.defaultTtl = unit.toNanos(ttl);
+    this.ttls = new ConcurrentHashMap<String, Long>();
+    this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    this.loads = new HashMap<String, Load>();
+  }
+
+  /**
+   * Set the time to live of results of the given view. A time of 0 disables
+   * caching for the view.
+   *
+   * @param view the view
+   * @param ttl the time to live of the view's results
+   * @param unit the unit of the time to live
+   */
+  public void setTtl(View view, long ttl, TimeUnit unit) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("The time to live cannot be"
+          + " negative");
+    }
+    ttls.put(view.getURI(), Long.valueOf(unit.toNanos(ttl)));
+  }
+
+  /**
+   * Check whether results of a query can be served from this cache.
+   *
+   * @param view the view to query
+   * @param query the query
+   * @return true if the query's results are cached
+   */
+  public boolean isCacheable(View view, Query query) {
+    Stale stale = query.getStale();
+    return !query.willIncludeDocs()
+        && (stale == Stale.OK || stale == Stale.UPDATE_AFTER)
+        && getTtl(view) > 0;
+  }
+
+  /**
+   * Query a view through the cache.
+   *
+   * @param client the client used to query the view on a miss
+   * @param view the view to query
+   * @param query the query
+   * @return a future holding the result of the query
+   */
+  HttpFuture<ViewResponse> get(CouchbaseClient client, View view,
+      Query query) {
+    String key = view.getURI() + query.toString();
+    if (query.getKeysJson() != null) {
+      key += query.getKeysJson();
+    }
+    long ttl = getTtl(view);
+    long now = System.nanoTime();
+    HttpOperation start = null;
+    HttpFuture<ViewResponse> future;
+
+    synchronized (this) {
+      CacheEntry entry = entries.get(key);
+      if (entry != null && entry.expires - now > 0) {
+        hits.incrementAndGet();
+        if (!entry.refreshing && now - entry.refreshAt >= 0
+            && !loads.containsKey(key)) {
+          entry.refreshing = true;
+          Load refresh = new Load(key, ttl, true);
+          start = client.createViewOperation(view,
+              query.copy().setStale(Stale.UPDATE_AFTER), refresh);
+          refresh.op = start;
+          loads.put(key, refresh);
+        }
+        future = new SharedHttpFuture<ViewResponse>(entry.response,
+            entry.status, entry.op);
+      } else {
+        if (entry != null) {
+          remove(key);
+        }
+        misses.incrementAndGet();
+        Load load = loads.get(key);
+        if (load == null) {
+          load = new Load(key, ttl, false);
+          start = client.createViewOperation(view, query, load);
+          load.op = start;
+          loads.put(key, load);
+        }
+        future = load.addWaiter(client.getViewTimeout(query));
+      }
+    }
+
+    if (start != null) {
+      dispatch(client, start);
+    }
+    return future;
+  }
+
+  /**
+   * Start a shared load, failing everything waiting on it if the operation
+   * cannot be queued.
+   */
+  private void dispatch(CouchbaseClient client, HttpOperation op) {
+    Load load = (Load) op.getCallback();
+    try {
+      client.addOp(op);
+    } catch (RuntimeException e) {
+      op.cancel();
+      load.receivedStatus(new OperationStatus(false, e.getMessage()));
+      load.complete();
+      if (load.refresh) {
+        getLogger().debug("Could not refresh cached view result", e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  private long getTtl(View view) {
+    Long ttl = ttls.get(view.getURI());
+    return ttl == null ? defaultTtl : ttl.longValue();
+  }
+
+  /**
+   * Drop all cached results of the given view.
+   *
+   * @param view the view
+   */
+  public synchronized void invalidate(View view) {
+    // Cached queries always have a query string, and the separator keeps
+    // views whose names share a prefix apart.
+    String prefix = view.getURI() + "?";
+    Iterator<Map.Entry<String, CacheEntry>> i = entries.entrySet().iterator();
+    while (i.hasNext()) {
+      Map.Entry<String, CacheEntry> e = i.next();
+      if (e.getKey().startsWith(prefix)) {
+        bytes -= e.getValue().size;
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop all cached results.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  synchronized void store(String key, ViewResponse response,
+      OperationStatus status, HttpOperation op, long ttl) {
+    long now = System.nanoTime();
+    CacheEntry entry = new CacheEntry(response, status, op, estimate(response),
+        now + ttl, now + (long) (ttl * REFRESH_AHEAD));
+    if (entry.size > maxBytes) {
+      remove(key);
+      return;
+    }
+    remove(key);
+    entries.put(key, entry);
+    bytes += entry.size;
+
+    Iterator<CacheEntry> i = entries.values().iterator();
+    while (bytes > maxBytes && i.hasNext()) {
+      CacheEntry eldest = i.next();
+      i.remove();
+      bytes -= eldest.size;
+      evictions.incrementAndGet();
+    }
+  }
+
+  synchronized ViewResponse peek(String key) {
+    CacheEntry entry = entries.get(key);
+    if (entry == null || entry.expires - System.nanoTime() <= 0) {
+      return null;
+    }
+    return entry.response;
+  }
+
+  private void remove(String key) {
+    CacheEntry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.size;
+    }
+  }
+
+  /**
+   * Estimate the memory held by a view response.
+   */
+  static long estimate(ViewResponse response) {
+    long size = ENTRY_OVERHEAD;
+    for (ViewRow row : response) {
+      size += ROW_OVERHEAD
+          + 2 * (length(row.getKey()) + length(row.getValue()));
+      if (!(row instanceof ViewRowReduced)) {
+        size += 2 * length(row.getId());
+      }
+    }
+    return size;
+  }
+
+  private static int length(String s) {
+    return s == null ? 0 : s.length();
+  }
+
+  /**
+   * Get the number of queries answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of cacheable queries that had to go to the cluster.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Get the number of results evicted to stay within the size bound.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Get the number of results refreshed ahead of their expiry.
+   *
+   * @return the number of refreshes
+   */
+  public long getRefreshes() {
+    return refreshes.get();
+  }
+
+  /**
+   * Get the number of cached results.
+   *
+   * @return the number of cached results
+   */
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  /**
+   * Get the estimated memory held by the cached results.
+   *
+   * @return the estimated size in bytes
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  private static final class CacheEntry {
+    private final ViewResponse response;
+    private final OperationStatus status;
+    private final HttpOperation op;
+    private final long size;
+    private final long expires;
+    private final long refreshAt;
+    private boolean refreshing;
+
+    private CacheEntry(ViewResponse response, OperationStatus status,
+        HttpOperation op, long size, long expires, long refreshAt) {
+      this.response = response;
+      this.status = status;
+      this.op = op;
+      this.size = size;
+      this.expires = expires;
+      this.refreshAt = refreshAt;
+    }
+  }
+
+  /**
+   * A request to the cluster shared by every caller that missed on the same
+   * query while it was in flight.
+   */
+  private final class Load implements ViewCallback {
+    private final String key;
+    private final long ttl;
+    private final boolean refresh;
+    private final List<SharedHttpFuture<ViewResponse>> waiters =
+        new ArrayList<SharedHttpFuture<ViewResponse>>();
+    private HttpOperation op;
+    private ViewResponse response;
+    private OperationStatus status;
+
+    private Load(String key, long ttl, boolean refresh) {
+      this.key = key;
+      this.ttl = ttl;
+      this.refresh = refresh;
+    }
+
+    private SharedHttpFuture<ViewResponse> addWaiter(long timeout) {
+      SharedHttpFuture<ViewResponse> waiter =
+          new SharedHttpFuture<ViewResponse>(op, timeout);
+      waiters.add(waiter);
+      return waiter;
+    }
+
+    @Override
+    public void gotData(ViewResponse vr) {
+      response = vr;
+    }
+
+    @Override
+    public void receivedStatus(OperationStatus s) {
+      status = s;
+    }
+
+    @Override
+    public void complete() {
+      List<SharedHttpFuture<ViewResponse>> done;
+      boolean ok = response != null && status != null && status.isSuccess()
+          && !op.isCancelled() && !op.hasErrored() && !op.isTimedOut();
+      synchronized (ViewResultCache.this) {
+        if (loads.get(key) == this) {
+          loads.remove(key);
+        }
+        if (ok) {
+          if (refresh) {
+            refreshes.incrementAndGet();
+          }
+          store(key, response, status, op, ttl);
+        } else {
+          CacheEntry entry = entries.get(key);
+          if (entry != null) {
+            entry.refreshing = false;
+          }
+        }
+        done = new ArrayList<SharedHttpFuture<ViewResponse>>(waiters);
+        waiters.clear();
+      }
+      for (SharedHttpFuture<ViewResponse> waiter : done) {
+        waiter.complete(response, status);
+      }
+    }
+  }
+}
@@ -26,89 +26,250 @@ import com.couchbase.client.protocol.views.HttpOperation;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.spy.memcached.compat.SpyObject;
 
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
-import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
-import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.ContentEncoder;
 import org.apache.http.nio.NHttpClientConnection;
 import org.apache.http.nio.NHttpClientHandler;
-import org.apache.http.nio.reactor.ConnectingIOReactor;
-import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.nio.reactor.SessionRequest;
 import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
 
 /**
  * An asynchronous HTTP connection manager.
+ *
+ * Each manager pools up to a configurable number of persistent connections to
+ * a single host. A configurable number of connections is opened up front and
+ * kept open while idle; connections above that minimum are closed once they
+ * have been idle for longer than the idle timeout.
+ *
+ * Operations are never bound to a connection on the caller's thread. An
+ * operation that finds no idle connection is put on a bounded queue and is
+ * written by the I/O reactor as soon as a connection is released or opened.
  */
 public class AsyncConnectionManager extends SpyObject {
 
+  /**
+   * The time a failing host is avoided per consecutive failure, up to
+   * MAX_FAILURE_BACKOFF.
+   */
+  static final long FAILURE_BACKOFF = TimeUnit.MILLISECONDS.toNanos(500);
+
+  static final long MAX_FAILURE_BACKOFF = TimeUnit.SECONDS.toNanos(10);
+
   private final HttpHost target;
   private final int maxConnections;
+  private final int minIdleConnections;
+  private final int maxPendingRequests;
+  private final int idleTimeout;
   private final NHttpClientHandler handler;
   private final HttpParams params;
-  private final ConnectingIOReactor ioreactor;
+  private final ViewIOReactor ioreactor;
+  private final boolean ownsReactor;
+  private final NHttpClientHandler clientHandler;
   private final Object lock;
   private final Set<NHttpClientConnection> allConns;
   private final Queue<NHttpClientConnection> availableConns;
-  private final Queue<AsyncConnectionRequest> pendingRequests;
+  private final Queue<PendingOperation> pendingOps;
   private final RequeueOpCallback requeueCallback;
-
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong waitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicLong latency = new AtomicLong();
+  private final AtomicLong wireBytes = new AtomicLong();
+  private final AtomicLong decodedBytes = new AtomicLong();
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile long lastFailure;
+
+  private int connecting;
   private volatile boolean shutdown;
 
   public AsyncConnectionManager(HttpHost target, int maxConnections,
       NHttpClientHandler handler, HttpParams params, RequeueOpCallback cb)
     throws IOReactorException {
+    this(target, maxConnections, 0, Integer.MAX_VALUE, 0, handler, params,
+        cb);
+  }
+
+  /**
+   * Create a connection manager for a single host.
+   *
+   * @param target the host to open connections to
+   * @param maxConnections the maximum number of open connections
+   * @param minIdleConnections the number of connections to open up front and
+   *          to keep open while idle
+   * @param maxPendingRequests the maximum number of operations that may wait
+   *          for a connection before new operations are rejected
+   * @param idleTimeout the time in milliseconds after which idle connections
+   *          above the minimum are closed, or 0 to keep them open
+   * @param handler the protocol handler
+   * @param params the HTTP parameters for the connections
+   * @param cb the callback used to requeue operations on shutdown
+   * @throws IOReactorException if the I/O reactor could not be created
+   */
+  public AsyncConnectionManager(HttpHost target, int maxConnections,
+      int minIdleConnections, int maxPendingRequests, long idleTimeout,
+      NHttpClientHandler handler, HttpParams params, RequeueOpCallback cb)
+    throws IOReactorException {
+    this(target, maxConnections, minIdleConnections, maxPendingRequests,
+        idleTimeout, handler, params, cb, new ViewIOReactor(2, params,
+        "Couchbase View Thread for node " + target.toHostString()), true);
+  }
+
+  /**
+   * Create a connection manager for a single host whose connections are
+   * carried by a reactor shared with other hosts.
+   *
+   * The reactor is neither started nor shut down by this manager.
+   *
+   * @param target the host to open connections to
+   * @param maxConnections the maximum number of open connections
+   * @param minIdleConnections the number of connections to open up front and
+   *          to keep open while idle
+   * @param maxPendingRequests the maximum number of operations that may wait
+   *          for a connection before new operations are rejected
+   * @param idleTimeout the time in milliseconds after which idle connections
+   *          above the minimum are closed, or 0 to keep them open
+   * @param handler the protocol handler
+   * @param params the HTTP parameters for the connections
+   * @param cb the callback used to requeue operations on shutdown
+   * @param reactor the reactor carrying the connections
+   */
+  public AsyncConnectionManager(HttpHost target, int maxConnections,
+      int minIdleConnections, int maxPendingRequests, long idleTimeout,
+      NHttpClientHandler handler, HttpParams params, RequeueOpCallback cb,
+      ViewIOReactor reactor) {
+    this(target, maxConnections, minIdleConnections, maxPendingRequests,
+        idleTimeout, handler, params, cb, reactor, false);
+  }
+
+  private AsyncConnectionManager(HttpHost target, int maxConnections,
+      int minIdleConnections, int maxPendingRequests, long idleTimeout,
+      NHttpClientHandler handler, HttpParams params, RequeueOpCallback cb,
+      ViewIOReactor reactor, boolean ownsReactor) {
     super();
+    if (maxConnections < 1) {
+      throw new IllegalArgumentException("At least one connection is needed");
+    }
     this.target = target;
     this.maxConnections = maxConnections;
+    this.minIdleConnections = Math.min(minIdleConnections, maxConnections);
+    this.maxPendingRequests = maxPendingRequests;
+    this.idleTimeout = (int) Math.min(idleTimeout, Integer.MAX_VALUE);
     this.handler = handler;
     this.params = params;
     this.requeueCallback = cb;
     this.lock = new Object();
     this.allConns = new HashSet<NHttpClientConnection>();
     this.availableConns = new LinkedList<NHttpClientConnection>();
-    this.pendingRequests = new LinkedList<AsyncConnectionRequest>();
-    this.ioreactor = new DefaultConnectingIOReactor(2, params);
+    this.pendingOps = new LinkedList<PendingOperation>();
+    this.ioreactor = reactor;
+    this.ownsReactor = ownsReactor;
+    this.clientHandler = new ManagedClientHandler(handler, this);
+  }
+
+  /**
+   * Start the I/O reactor in a thread of its own, unless the reactor is
+   * shared and run by its owner.
+   */
+  public void start() {
+    if (this.ownsReactor) {
+      this.ioreactor.start();
+    }
   }
 
+  /**
+   * Run the I/O reactor of this manager in the calling thread.
+   *
+   * @throws IOException if the reactor fails
+   * @throws IllegalStateException if the reactor is shared
+   */
   public void execute() throws IOException {
-    IOEventDispatch dispatch =
-        new DefaultClientIOEventDispatch(new ManagedClientHandler(this.handler,
-            this), this.params);
-    this.ioreactor.execute(dispatch);
+    if (!this.ownsReactor) {
+      throw new IllegalStateException("The I/O reactor is shared and run by"
+          + " its owner");
+    }
+    this.ioreactor.execute();
+  }
+
+  /**
+   * Get the handler for the events of the connections of this manager.
+   *
+   * @return the handler
+   */
+  NHttpClientHandler getClientHandler() {
+    return this.clientHandler;
+  }
+
+  /**
+   * Open the configured minimum number of idle connections ahead of the
+   * first request.
+   *
+   * The connections are requested from the I/O reactor and become available
+   * as soon as the reactor is running.
+   */
+  public void prewarm() {
+    synchronized (this.lock) {
+      while (!this.shutdown
+          && this.allConns.size() + this.connecting < this.minIdleConnections) {
+        openConnection();
+      }
+    }
   }
 
   public boolean hasPendingRequests() {
-    return pendingRequests.isEmpty();
+    synchronized (this.lock) {
+      return !this.pendingOps.isEmpty();
+    }
   }
 
   public void shutdown(long waitMs) throws IOException {
+    List<HttpOperation> requeue = new ArrayList<HttpOperation>();
+    List<NHttpClientConnection> close = new ArrayList<NHttpClientConnection>();
     synchronized (this.lock) {
-      if (!this.shutdown) {
-        this.shutdown = true;
-        while (!this.pendingRequests.isEmpty()) {
-          AsyncConnectionRequest request = this.pendingRequests.remove();
-          HttpOperation op = (HttpOperation)request.getConnection()
-              .getContext().getAttribute("operation");
-          request.cancel();
-          requeueCallback.invoke(op);
+      if (this.shutdown) {
+        return;
+      }
+      this.shutdown = true;
+      while (!this.pendingOps.isEmpty()) {
+        requeue.add(this.pendingOps.remove().getOperation());
+        this.outstanding.decrementAndGet();
+      }
+      close.addAll(this.allConns);
+      this.availableConns.clear();
+      this.allConns.clear();
+    }
+    for (HttpOperation op : requeue) {
+      requeue(op);
+    }
+    if (this.ownsReactor) {
+      this.ioreactor.release(waitMs);
+    } else {
+      for (NHttpClientConnection conn : close) {
+        try {
+          conn.shutdown();
+        } catch (IOException e) {
+          getLogger().debug("Error closing connection to " + this.target, e);
         }
-        this.availableConns.clear();
-        this.allConns.clear();
       }
     }
-    this.ioreactor.shutdown(waitMs);
   }
 
   void addConnection(NHttpClientConnection conn) {
@@ -119,6 +280,7 @@ public class AsyncConnectionManager extends SpyObject {
       return;
     }
     synchronized (this.lock) {
+      this.connecting--;
       this.allConns.add(conn);
     }
   }
@@ -138,28 +300,188 @@ public class AsyncConnectionManager extends SpyObject {
     }
   }
 
-  public AsyncConnectionRequest requestConnection() {
-    if (this.shutdown) {
-      throw new IllegalStateException("Connection manager has been shut down");
-    }
-    AsyncConnectionRequest request = new AsyncConnectionRequest();
+  /**
+   * Called when a connection attempt did not result in a connection.
+   *
+   * If there is no other way the pending operations could be served, they are
+   * cancelled rather than left waiting.
+   */
+  void connectFailed() {
+    List<HttpOperation> stranded = new ArrayList<HttpOperation>();
     synchronized (this.lock) {
-      while (!this.availableConns.isEmpty()) {
-        NHttpClientConnection conn = this.availableConns.remove();
-        if (conn.isOpen()) {
-          getLogger().debug("Re-using persistent connection");
-          request.setConnection(conn);
-          break;
-        } else {
-          this.allConns.remove(conn);
+      this.connecting--;
+      if (this.allConns.isEmpty() && this.connecting == 0) {
+        while (!this.pendingOps.isEmpty()) {
+          stranded.add(this.pendingOps.remove().getOperation());
+          this.outstanding.decrementAndGet();
         }
       }
-      if (!request.isCompleted()) {
-        this.pendingRequests.add(request);
-        processConnectionRequests();
+    }
+    hostFailed();
+    for (HttpOperation op : stranded) {
+      retryOrEnd(op);
+    }
+  }
+
+  /**
+   * Called when the connection carrying an operation was lost before the
+   * response arrived.
+   *
+   * The operation is sent to another host if it may be retried, otherwise
+   * it is ended.
+   *
+   * @param op the operation whose exchange failed
+   */
+  public void operationFailed(HttpOperation op) {
+    hostFailed();
+    retryOrEnd(op);
+  }
+
+  private void retryOrEnd(HttpOperation op) {
+    if (this.requeueCallback != null && this.requeueCallback.retry(op)) {
+      return;
+    }
+    if (op.isExpired()) {
+      op.timeOut();
+    } else {
+      op.cancel();
+    }
+  }
+
+  private void hostFailed() {
+    this.failures.incrementAndGet();
+    this.lastFailure = System.nanoTime();
+  }
+
+  /**
+   * Check whether the host has failed recently, so that operations are
+   * better sent elsewhere.
+   *
+   * A host is avoided for a time that grows with the number of consecutive
+   * failures. Any response from the host resets the count.
+   *
+   * @return true if the host should be avoided
+   */
+  public boolean isFailing() {
+    int count = this.failures.get();
+    if (count == 0) {
+      return false;
+    }
+    long backoff = Math.min(count * FAILURE_BACKOFF, MAX_FAILURE_BACKOFF);
+    return System.nanoTime() - this.lastFailure < backoff;
+  }
+
+  /**
+   * Get the number of failures since the host last responded.
+   *
+   * @return the number of consecutive failures
+   */
+  public int getConsecutiveFailures() {
+    return this.failures.get();
+  }
+
+  /**
+   * Send an operation to the host of this manager.
+   *
+   * The operation is written on an idle connection if there is one, otherwise
+   * it is queued until the I/O reactor releases or opens a connection. This
+   * method never blocks.
+   *
+   * If the manager has been shut down the operation is handed to the
+   * requeue callback, like the operations that were waiting when it shut
+   * down.
+   *
+   * @param op the operation to send
+   * @throws IllegalStateException if the manager has been shut down and has
+   *           no requeue callback, or too many operations are already
+   *           waiting for a connection
+   */
+  public void submit(HttpOperation op) {
+    if (op.isExpired()) {
+      op.timeOut();
+      return;
+    }
+    PendingOperation pending = new PendingOperation(op);
+    synchronized (this.lock) {
+      if (!this.shutdown) {
+        enqueue(pending);
+        return;
+      }
+    }
+    // shutdown() has already drained the queue, so hand the operation on
+    // like the ones it drained.
+    if (this.requeueCallback == null) {
+      throw new IllegalStateException("Connection manager has been shut down");
+    }
+    requeue(op);
+  }
+
+  private void enqueue(PendingOperation pending) {
+    while (!this.availableConns.isEmpty()) {
+      NHttpClientConnection conn = this.availableConns.remove();
+      if (conn.isOpen()) {
+        getLogger().debug("Re-using persistent connection");
+        this.outstanding.incrementAndGet();
+        dispatch(pending, conn);
+        return;
+      } else {
+        this.allConns.remove(conn);
       }
     }
-    return request;
+    if (this.pendingOps.size() >= this.maxPendingRequests) {
+      throw new IllegalStateException("Too many operations waiting for a"
+          + " connection to " + this.target.toHostString());
+    }
+    this.outstanding.incrementAndGet();
+    this.pendingOps.add(pending);
+    processConnectionRequests();
+  }
+
+  private void requeue(HttpOperation op) {
+    try {
+      this.requeueCallback.invoke(op);
+    } catch (IllegalStateException e) {
+      getLogger().warn("Could not requeue operation, cancelling it", e);
+      op.cancel();
+    }
+  }
+
+  /**
+   * Called when the response to a dispatched operation has been received.
+   *
+   * @param dispatchTime the time the operation was written, as given by
+   *          System.nanoTime()
+   */
+  void operationCompleted(long dispatchTime) {
+    this.outstanding.decrementAndGet();
+    if (this.failures.get() != 0) {
+      this.failures.set(0);
+    }
+    long sample = System.nanoTime() - dispatchTime;
+    long current;
+    long updated;
+    do {
+      current = this.latency.get();
+      updated = current == 0 ? sample : current + (sample - current) / 5;
+    } while (!this.latency.compareAndSet(current, updated));
+  }
+
+  /**
+   * Called when a dispatched operation ends without a response.
+   */
+  void operationAborted() {
+    this.outstanding.decrementAndGet();
+  }
+
+  /**
+   * Called when a response body has been read.
+   *
+   * @param wire the number of bytes received
+   * @param decoded the number of bytes after decompression
+   */
+  void responseBodyRead(long wire, long decoded) {
+    this.wireBytes.addAndGet(wire);
+    this.decodedBytes.addAndGet(decoded);
   }
 
   public void releaseConnection(NHttpClientConnection conn) {
@@ -172,12 +494,12 @@ public class AsyncConnectionManager extends SpyObject {
     synchronized (this.lock) {
       if (this.allConns.contains(conn)) {
         if (conn.isOpen()) {
-          conn.setSocketTimeout(0);
-          AsyncConnectionRequest request = this.pendingRequests.poll();
-          if (request != null) {
+          PendingOperation pending = nextPendingOperation();
+          if (pending != null) {
             getLogger().debug("Re-using persistent connection");
-            request.setConnection(conn);
+            dispatch(pending, conn);
           } else {
+            conn.setSocketTimeout(this.idleTimeout);
             this.availableConns.add(conn);
           }
         } else {
@@ -188,18 +510,211 @@ public class AsyncConnectionManager extends SpyObject {
     }
   }
 
-  private void processConnectionRequests() {
-    while (this.allConns.size() < this.maxConnections) {
-      AsyncConnectionRequest request = this.pendingRequests.poll();
-      if (request == null) {
-        break;
+  /**
+   * Handle a socket timeout on a connection.
+   *
+   * Idle connections above the configured minimum are closed, idle
+   * connections at or below the minimum are kept open.
+   *
+   * @param conn the connection that timed out
+   * @return true if the connection was idle and the timeout has been handled
+   */
+  boolean idleTimeout(NHttpClientConnection conn) {
+    synchronized (this.lock) {
+      if (!this.availableConns.contains(conn)) {
+        return false;
       }
-      InetSocketAddress address =
-          new InetSocketAddress(this.target.getHostName(),
-          this.target.getPort());
-      ConnRequestCallback callback = new ConnRequestCallback(request);
-      getLogger().info("Opening new CouchDB connection");
-      this.ioreactor.connect(address, null, request, callback);
+      if (this.allConns.size() > this.minIdleConnections) {
+        getLogger().debug("Closing idle connection to " + this.target);
+        this.availableConns.remove(conn);
+        this.allConns.remove(conn);
+        try {
+          conn.close();
+        } catch (IOException e) {
+          getLogger().debug("Error closing idle connection", e);
+        }
+      } else {
+        conn.setSocketTimeout(this.idleTimeout);
+      }
+      return true;
+    }
+  }
+
+  private PendingOperation nextPendingOperation() {
+    PendingOperation pending = this.pendingOps.poll();
+    while (pending != null && (pending.getOperation().isCancelled()
+        || pending.getOperation().isTimedOut()
+        || pending.getOperation().isExpired())) {
+      this.outstanding.decrementAndGet();
+      if (pending.getOperation().isExpired()) {
+        pending.getOperation().timeOut();
+      }
+      pending = this.pendingOps.poll();
+    }
+    return pending;
+  }
+
+  private void dispatch(PendingOperation pending, NHttpClientConnection conn) {
+    long waited = System.nanoTime() - pending.getQueueTime();
+    this.waitCount.incrementAndGet();
+    this.waitTime.addAndGet(waited);
+    long max = this.maxWaitTime.get();
+    while (waited > max && !this.maxWaitTime.compareAndSet(max, waited)) {
+      max = this.maxWaitTime.get();
+    }
+    HttpOperation op = pending.getOperation();
+    conn.setSocketTimeout(socketTimeout(op));
+    RequestHandle handle = new RequestHandle(this, conn);
+    HttpContext context = conn.getContext();
+    context.setAttribute("request-handle", handle);
+    context.setAttribute("operation", op);
+    op.setRequestHandle(handle);
+    conn.requestOutput();
+  }
+
+  /**
+   * Get the socket timeout for a connection carrying an operation, so that
+   * the I/O reactor wakes up in time to abort the operation when its
+   * deadline passes even if the node stops sending.
+   */
+  private int socketTimeout(HttpOperation op) {
+    int timeout = HttpConnectionParams.getSoTimeout(this.params);
+    if (op.getDeadline() == 0) {
+      return timeout;
+    }
+    long remaining = TimeUnit.NANOSECONDS.toMillis(op.getDeadline()
+        - System.nanoTime());
+    remaining = Math.max(remaining, 1);
+    return timeout > 0 && timeout < remaining ? timeout : (int) Math.min(
+        remaining, Integer.MAX_VALUE);
+  }
+
+  private void processConnectionRequests() {
+    if (this.shutdown) {
+      return;
+    }
+    int wanted = this.pendingOps.size() - this.connecting;
+    while (wanted-- > 0
+        && this.allConns.size() + this.connecting < this.maxConnections) {
+      openConnection();
+    }
+  }
+
+  private void openConnection() {
+    InetSocketAddress address =
+        new InetSocketAddress(this.target.getHostName(),
+        this.target.getPort());
+    getLogger().info("Opening new CouchDB connection");
+    this.connecting++;
+    this.ioreactor.connect(address, this, new ConnRequestCallback(this));
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getOpenConnections() {
+    synchronized (this.lock) {
+      return this.allConns.size();
+    }
+  }
+
+  public int getIdleConnections() {
+    synchronized (this.lock) {
+      return this.availableConns.size();
+    }
+  }
+
+  public int getPendingRequests() {
+    synchronized (this.lock) {
+      return this.pendingOps.size();
+    }
+  }
+
+  /**
+   * Get the number of operations that are queued or waiting for a response.
+   *
+   * @return the number of outstanding operations
+   */
+  public int getOutstandingOperations() {
+    return this.outstanding.get();
+  }
+
+  /**
+   * Get the exponentially weighted moving average of the time between
+   * writing an operation and receiving its response.
+   *
+   * @param unit the unit to return the time in
+   * @return the average response time, or 0 if no response has been received
+   */
+  public long getLatency(TimeUnit unit) {
+    return unit.convert(this.latency.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Get the number of response body bytes received from the node.
+   *
+   * @return the number of bytes on the wire
+   */
+  public long getResponseWireBytes() {
+    return this.wireBytes.get();
+  }
+
+  /**
+   * Get the number of response body bytes after decompression. This equals
+   * the wire bytes unless responses are compressed.
+   *
+   * @return the number of decoded bytes
+   */
+  public long getResponseDecodedBytes() {
+    return this.decodedBytes.get();
+  }
+
+  /**
+   * Get the number of operations that have been handed a connection.
+   *
+   * @return the number of dispatched operations
+   */
+  public long getConnectionWaitCount() {
+    return this.waitCount.get();
+  }
+
+  /**
+   * Get the total time operations have waited for a connection.
+   *
+   * @param unit the unit to return the time in
+   * @return the accumulated wait time
+   */
+  public long getConnectionWaitTime(TimeUnit unit) {
+    return unit.convert(this.waitTime.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Get the longest time an operation has waited for a connection.
+   *
+   * @param unit the unit to return the time in
+   * @return the longest wait time
+   */
+  public long getMaxConnectionWaitTime(TimeUnit unit) {
+    return unit.convert(this.maxWaitTime.get(), TimeUnit.NANOSECONDS);
+  }
+
+  static class PendingOperation {
+
+    private final HttpOperation op;
+    private final long queueTime;
+
+    public PendingOperation(HttpOperation op) {
+      this.op = op;
+      this.queueTime = System.nanoTime();
+    }
+
+    public HttpOperation getOperation() {
+      return op;
+    }
+
+    public long getQueueTime() {
+      return queueTime;
     }
   }
 
@@ -216,10 +731,9 @@ public class AsyncConnectionManager extends SpyObject {
     }
 
     public void connected(NHttpClientConnection conn, Object attachment) {
-      AsyncConnectionRequest request = (AsyncConnectionRequest) attachment;
       this.handler.connected(conn, attachment);
       this.connMgr.addConnection(conn);
-      request.setConnection(conn);
+      this.connMgr.releaseConnection(conn);
     }
 
     public void closed(NHttpClientConnection conn) {
@@ -241,6 +755,9 @@ public class AsyncConnectionManager extends SpyObject {
     }
 
     public void inputReady(NHttpClientConnection conn, ContentDecoder decoder) {
+      if (timeOutExpired(conn)) {
+        return;
+      }
       this.handler.inputReady(conn, decoder);
     }
 
@@ -253,18 +770,36 @@ public class AsyncConnectionManager extends SpyObject {
     }
 
     public void timeout(NHttpClientConnection conn) {
-      this.handler.timeout(conn);
+      if (!this.connMgr.idleTimeout(conn) && !timeOutExpired(conn)) {
+        this.handler.timeout(conn);
+      }
+    }
+
+    /**
+     * Time out the operation on a connection if its deadline has passed,
+     * which aborts the exchange and shuts the connection down.
+     *
+     * @return true if the operation was timed out
+     */
+    private boolean timeOutExpired(NHttpClientConnection conn) {
+      HttpOperation op =
+          (HttpOperation) conn.getContext().getAttribute("operation");
+      if (op != null && op.isExpired()) {
+        op.timeOut();
+        return true;
+      }
+      return false;
     }
   }
 
   static class ConnRequestCallback extends SpyObject implements
       SessionRequestCallback {
 
-    private final AsyncConnectionRequest connRequest;
+    private final AsyncConnectionManager connMgr;
 
-    public ConnRequestCallback(AsyncConnectionRequest request) {
+    public ConnRequestCallback(AsyncConnectionManager mgr) {
       super();
-      connRequest = request;
+      connMgr = mgr;
     }
 
     public void completed(SessionRequest request) {
@@ -275,7 +810,7 @@ public class AsyncConnectionManager extends SpyObject {
     public void cancelled(SessionRequest request) {
       getLogger().info(request.getRemoteAddress()
           + " - Session request cancelled");
-      connRequest.cancel();
+      connMgr.connectFailed();
     }
 
     public void failed(SessionRequest request) {
@@ -285,13 +820,13 @@ public class AsyncConnectionManager extends SpyObject {
       if (ex != null) {
         ex.printStackTrace();
       }
-      connRequest.cancel();
+      connMgr.connectFailed();
     }
 
     public void timeout(SessionRequest request) {
       getLogger().info(request.getRemoteAddress()
           + " - Session request timed out");
-      connRequest.cancel();
+      connMgr.connectFailed();
     }
   }
 }
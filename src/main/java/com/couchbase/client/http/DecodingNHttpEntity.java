@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ConsumingNHttpEntity;
+
+/**
+ * Buffers a response body, decompressing gzip and deflate encoded bodies as
+ * they are read from the connection.
+ *
+ * Only the decoded body is kept in memory, and the entity presents itself
+ * as unencoded, so parsers read it like any other response. The number of
+ * bytes received and decoded are reported to the connection manager when
+ * the body is complete.
+ */
+public class DecodingNHttpEntity extends HttpEntityWrapper implements
+    ConsumingNHttpEntity {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final int IDENTITY = 0;
+  private static final int GZIP = 1;
+  private static final int DEFLATE = 2;
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final AsyncConnectionManager connMgr;
+  private final int encoding;
+  private final ByteBuffer buffer;
+  private final DecodedBuffer decoded;
+  private ByteArrayOutputStream header;
+  private Inflater inflater;
+  private byte[] inflated;
+  private long wire;
+  private boolean completed;
+
+  public DecodingNHttpEntity(final HttpEntity entity,
+      final AsyncConnectionManager connMgr) throws IOException {
+    super(entity);
+    this.connMgr = connMgr;
+    this.encoding = encodingOf(entity.getContentEncoding());
+    this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long length = entity.getContentLength();
+    this.decoded = new DecodedBuffer(encoding == IDENTITY && length > 0
+        && length < Integer.MAX_VALUE ? (int) length : BUFFER_SIZE);
+    if (encoding != IDENTITY) {
+      header = new ByteArrayOutputStream(16);
+      inflated = new byte[BUFFER_SIZE];
+    }
+  }
+
+  private static int encodingOf(Header contentEncoding) throws IOException {
+    if (contentEncoding == null) {
+      return IDENTITY;
+    }
+    String value = contentEncoding.getValue().trim();
+    if (value.equalsIgnoreCase("gzip") || value.equalsIgnoreCase("x-gzip")) {
+      return GZIP;
+    } else if (value.equalsIgnoreCase("deflate")) {
+      return DEFLATE;
+    } else if (value.length() == 0 || value.equalsIgnoreCase("identity")) {
+      return IDENTITY;
+    }
+    throw new IOException("Unsupported content encoding " + value);
+  }
+
+  public void consumeContent(final ContentDecoder decoder,
+      final IOControl ioctrl) throws IOException {
+    int n;
+    while ((n = decoder.read(buffer)) > 0) {
+      wire += n;
+      decode(buffer.array(), buffer.arrayOffset(), n);
+      buffer.clear();
+    }
+    if (decoder.isCompleted() && !completed) {
+      completed = true;
+      end();
+      if (connMgr != null) {
+        connMgr.responseBodyRead(wire, decoded.size());
+      }
+    }
+  }
+
+  private void decode(byte[] b, int off, int len) throws IOException {
+    if (encoding == IDENTITY) {
+      decoded.write(b, off, len);
+      return;
+    }
+    if (inflater == null) {
+      header.write(b, off, len);
+      byte[] start = header.toByteArray();
+      int skip = encoding == GZIP ? gzipHeaderLength(start)
+          : (start.length < 2 ? -1 : 0);
+      if (skip < 0) {
+        return;
+      }
+      inflater = new Inflater(encoding == GZIP || !isZlibHeader(start));
+      header = null;
+      inflate(start, skip, start.length - skip);
+    } else {
+      inflate(b, off, len);
+    }
+  }
+
+  private void inflate(byte[] b, int off, int len) throws IOException {
+    if (inflater.finished() || len == 0) {
+      return;
+    }
+    inflater.setInput(b, off, len);
+    try {
+      while (true) {
+        int n = inflater.inflate(inflated);
+        if (n > 0) {
+          decoded.write(inflated, 0, n);
+        } else if (inflater.finished() || inflater.needsInput()) {
+          return;
+        } else if (inflater.needsDictionary()) {
+          throw new IOException("Compressed response needs a dictionary");
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed response: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Check for the two byte header that starts zlib wrapped deflate data,
+   * which some servers leave out.
+   */
+  static boolean isZlibHeader(byte[] b) {
+    int cmf = b[0] & 0xff;
+    int flg = b[1] & 0xff;
+    return (cmf & 0x0f) == 8 && (cmf * 256 + flg) % 31 == 0;
+  }
+
+  /**
+   * Get the length of the gzip header at the start of the given bytes.
+   *
+   * @return the header length or -1 if more bytes are needed
+   * @throws IOException if the bytes are not a gzip header
+   */
+  static int gzipHeaderLength(byte[] b) throws IOException {
+    if (b.length < 10) {
+      return -1;
+    }
+    if ((b[0] & 0xff) != 0x1f || (b[1] & 0xff) != 0x8b || b[2] != 8) {
+      throw new IOException("Invalid gzip header");
+    }
+    int flags = b[3] & 0xff;
+    int pos = 10;
+    if ((flags & FEXTRA) != 0) {
+      if (b.length < pos + 2) {
+        return -1;
+      }
+      pos += 2 + ((b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8);
+    }
+    if ((flags & FNAME) != 0) {
+      pos = skipZeroTerminated(b, pos);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      pos = skipZeroTerminated(b, pos);
+    }
+    if ((flags & FHCRC) != 0 && pos >= 0) {
+      pos += 2;
+    }
+    return pos < 0 || pos > b.length ? -1 : pos;
+  }
+
+  private static int skipZeroTerminated(byte[] b, int pos) {
+    if (pos < 0) {
+      return pos;
+    }
+    for (int i = pos; i < b.length; i++) {
+      if (b[i] == 0) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private void end() {
+    if (inflater != null) {
+      inflater.end();
+    }
+    inflated = null;
+    header = null;
+  }
+
+  public void finish() {
+    end();
+  }
+
+  @Override
+  @Deprecated
+  public void consumeContent() throws IOException {
+    // nothing to consume
+  }
+
+  @Override
+  public Header getContentEncoding() {
+    return null;
+  }
+
+  @Override
+  public long getContentLength() {
+    return completed ? decoded.size() : -1;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    return decoded.getInputStream();
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  @Override
+  public void writeTo(final OutputStream out) throws IOException {
+    decoded.writeTo(out);
+  }
+
+  /**
+   * A byte buffer whose content can be read without copying it.
+   */
+  private static final class DecodedBuffer extends ByteArrayOutputStream {
+    private DecodedBuffer(int size) {
+      super(size);
+    }
+
+    private synchronized InputStream getInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
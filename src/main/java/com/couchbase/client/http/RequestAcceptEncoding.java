@@ -1,5 +1,5 @@
 /**
- * Copyright (C) 2009-2011 Couchbase, Inc.
+ * Copyright (C) 2009-2012 Couchbase, Inc.
  *
  * Permission is hereby granted, free of charge, to any person obtaining a copy
  * of this software and associated documentation files (the "Software"), to deal
@@ -20,59 +20,27 @@
  * IN THE SOFTWARE.
  */
 
+
 package com.couchbase.client.http;
 
-import org.apache.http.nio.NHttpClientConnection;
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.protocol.HttpContext;
 
 /**
- * An AsyncConnectionRequest.
+ * Asks the server for a gzip or deflate compressed response.
  */
-public class AsyncConnectionRequest {
+public class RequestAcceptEncoding implements HttpRequestInterceptor {
 
-  private volatile boolean completed;
-  private volatile NHttpClientConnection conn;
+  public static final String ACCEPT_ENCODING = "Accept-Encoding";
 
-  public AsyncConnectionRequest() {
-    super();
-  }
-
-  public boolean isCompleted() {
-    return this.completed;
-  }
-
-  public void setConnection(NHttpClientConnection newConn) {
-    if (this.completed) {
-      return;
-    }
-    this.completed = true;
-    synchronized (this) {
-      this.conn = newConn;
-      notifyAll();
-    }
-  }
-
-  public NHttpClientConnection getConnection() {
-    return this.conn;
-  }
-
-  public void cancel() {
-    if (this.completed) {
-      return;
-    }
-    this.completed = true;
-    synchronized (this) {
-      notifyAll();
-    }
-  }
-
-  public void waitFor() throws InterruptedException {
-    if (this.completed) {
-      return;
-    }
-    synchronized (this) {
-      while (!this.completed) {
-        wait();
-      }
+  public void process(final HttpRequest request, final HttpContext context)
+    throws HttpException, IOException {
+    if (!request.containsHeader(ACCEPT_ENCODING)) {
+      request.addHeader(ACCEPT_ENCODING, "gzip, deflate");
     }
   }
 }
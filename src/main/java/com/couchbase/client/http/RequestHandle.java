@@ -22,15 +22,20 @@
 
 package com.couchbase.client.http;
 
+import java.io.IOException;
+
+import net.spy.memcached.compat.SpyObject;
+
 import org.apache.http.nio.NHttpClientConnection;
 
 /**
  * A connection request.
  */
-public class RequestHandle {
+public class RequestHandle extends SpyObject {
 
   private final AsyncConnectionManager connMgr;
   private final NHttpClientConnection conn;
+  private final long dispatchTime;
 
   private volatile boolean completed;
 
@@ -39,6 +44,11 @@ public class RequestHandle {
     super();
     this.connMgr = connMgr;
     this.conn = conn;
+    this.dispatchTime = System.nanoTime();
+  }
+
+  public AsyncConnectionManager getConnectionManager() {
+    return this.connMgr;
   }
 
   public boolean isCompleted() {
@@ -46,10 +56,10 @@ public class RequestHandle {
   }
 
   public void completed() {
-    if (this.completed) {
+    if (!markCompleted()) {
       return;
     }
-    this.completed = true;
+    this.connMgr.operationCompleted(this.dispatchTime);
     this.connMgr.releaseConnection(this.conn);
     synchronized (this) {
       notifyAll();
@@ -57,15 +67,45 @@ public class RequestHandle {
   }
 
   public void cancel() {
-    if (this.completed) {
+    if (!markCompleted()) {
       return;
     }
-    this.completed = true;
+    this.connMgr.operationAborted();
     synchronized (this) {
       notifyAll();
     }
   }
 
+  /**
+   * Abort the exchange because its response is no longer wanted.
+   *
+   * The connection is shut down rather than drained, so that it stops
+   * reading the response right away. The connection manager replaces it
+   * once the I/O reactor has closed it.
+   */
+  public void abort() {
+    if (!markCompleted()) {
+      return;
+    }
+    this.connMgr.operationAborted();
+    try {
+      this.conn.shutdown();
+    } catch (IOException e) {
+      getLogger().debug("Error shutting down aborted connection", e);
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  private synchronized boolean markCompleted() {
+    if (this.completed) {
+      return false;
+    }
+    this.completed = true;
+    return true;
+  }
+
   public void waitFor() throws InterruptedException {
     if (this.completed) {
       return;
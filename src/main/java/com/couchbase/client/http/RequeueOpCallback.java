@@ -25,18 +25,42 @@ package com.couchbase.client.http;
 import com.couchbase.client.ViewConnection;
 import com.couchbase.client.protocol.views.HttpOperation;
 
+import java.net.SocketAddress;
+
 /**
  * A callack to requeue a http operation.
  */
 public class RequeueOpCallback {
 
   private final ViewConnection conn;
+  private final SocketAddress address;
 
   public RequeueOpCallback(ViewConnection vc) {
+    this(vc, null);
+  }
+
+  /**
+   * Create a callback for the operations of a single node.
+   *
+   * @param vc the connection to requeue operations with
+   * @param addr the address of the node, which retried operations avoid
+   */
+  public RequeueOpCallback(ViewConnection vc, SocketAddress addr) {
     conn = vc;
+    address = addr;
   }
 
   public void invoke(HttpOperation op) {
     conn.addOp(op);
   }
+
+  /**
+   * Send an operation that failed on the node to another node.
+   *
+   * @param op the operation
+   * @return false if the operation can't be retried
+   */
+  public boolean retry(HttpOperation op) {
+    return conn.retryOp(op, address);
+  }
 }
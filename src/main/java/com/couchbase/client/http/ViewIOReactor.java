@@ -0,0 +1,238 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+
+import net.spy.memcached.compat.SpyObject;
+
+import org.apache.http.HttpException;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.NHttpClientHandler;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.HttpParams;
+
+/**
+ * An I/O reactor that carries the view connections of many hosts.
+ *
+ * Each AsyncConnectionManager keeps its own pool of connections on top of
+ * the reactor. The manager is attached to every connection it opens, and
+ * the events of a connection are handed to the handler of its manager, so
+ * one reactor with a fixed number of threads serves any number of nodes.
+ *
+ * A reactor can be shared by several owners, such as all clients in a JVM.
+ * It is shut down when the last owner releases it.
+ */
+public class ViewIOReactor extends SpyObject {
+
+  private static final String MANAGER = "connection-manager";
+
+  private static ViewIOReactor shared;
+
+  private final DefaultConnectingIOReactor ioreactor;
+  private final HttpParams params;
+  private final String name;
+  private int refs = 1;
+  private Thread thread;
+  private boolean shutdown;
+
+  /**
+   * Create a reactor with a single owner.
+   *
+   * @param threads the number of threads dispatching I/O events
+   * @param params the HTTP parameters for the connections
+   * @param name the name of the thread running the reactor
+   * @throws IOReactorException if the reactor could not be created
+   */
+  public ViewIOReactor(int threads, HttpParams params, String name)
+    throws IOReactorException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one I/O thread is needed");
+    }
+    this.ioreactor = new DefaultConnectingIOReactor(threads, params);
+    this.params = params;
+    this.name = name;
+  }
+
+  /**
+   * Get the reactor shared by all clients in this JVM, creating it if
+   * needed. Every call must be matched by a call to release.
+   *
+   * The number of threads and the parameters are only used if the reactor
+   * is created by this call.
+   *
+   * @param threads the number of threads dispatching I/O events
+   * @param params the HTTP parameters for the connections
+   * @return the shared reactor, started
+   * @throws IOReactorException if the reactor could not be created
+   */
+  public static synchronized ViewIOReactor acquireShared(int threads,
+      HttpParams params) throws IOReactorException {
+    if (shared == null || !shared.acquire()) {
+      shared = new ViewIOReactor(threads, params,
+          "Couchbase View I/O reactor (shared)");
+    }
+    shared.start();
+    return shared;
+  }
+
+  private synchronized boolean acquire() {
+    if (shutdown) {
+      return false;
+    }
+    refs++;
+    return true;
+  }
+
+  /**
+   * Start running the reactor in a thread of its own. Calling this on a
+   * running reactor has no effect.
+   */
+  public synchronized void start() {
+    if (thread != null || shutdown) {
+      return;
+    }
+    thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          execute();
+        } catch (InterruptedIOException ex) {
+          getLogger().error("I/O reactor Interrupted", ex);
+        } catch (IOException e) {
+          getLogger().error("I/O error: " + e.getMessage(), e);
+        }
+        getLogger().info("Couchbase I/O reactor terminated");
+      }
+    }, name);
+    thread.start();
+  }
+
+  /**
+   * Run the reactor in the calling thread until it is shut down.
+   *
+   * @throws IOException if the reactor fails
+   */
+  public void execute() throws IOException {
+    IOEventDispatch dispatch =
+        new DefaultClientIOEventDispatch(new RoutingClientHandler(), params);
+    ioreactor.execute(dispatch);
+  }
+
+  /**
+   * Open a connection for a connection manager.
+   *
+   * @param address the address to connect to
+   * @param connMgr the manager the connection belongs to
+   * @param callback the callback told about the outcome
+   */
+  void connect(InetSocketAddress address, AsyncConnectionManager connMgr,
+      SessionRequestCallback callback) {
+    ioreactor.connect(address, null, connMgr, callback);
+  }
+
+  /**
+   * Give up one ownership of the reactor, shutting it down if it was the
+   * last one.
+   *
+   * @param waitMs the time to wait for the reactor to shut down
+   * @throws IOException if the reactor could not be shut down cleanly
+   */
+  public void release(long waitMs) throws IOException {
+    synchronized (this) {
+      if (shutdown || --refs > 0) {
+        return;
+      }
+      shutdown = true;
+    }
+    ioreactor.shutdown(waitMs);
+  }
+
+  /**
+   * Check whether the reactor has been shut down.
+   *
+   * @return true once the last owner has released the reactor
+   */
+  public synchronized boolean isShutdown() {
+    return shutdown;
+  }
+
+  /**
+   * Hands the events of each connection to the handler of its manager.
+   */
+  static class RoutingClientHandler implements NHttpClientHandler {
+
+    private static NHttpClientHandler handler(NHttpClientConnection conn) {
+      AsyncConnectionManager connMgr =
+          (AsyncConnectionManager) conn.getContext().getAttribute(MANAGER);
+      return connMgr.getClientHandler();
+    }
+
+    public void connected(NHttpClientConnection conn, Object attachment) {
+      AsyncConnectionManager connMgr = (AsyncConnectionManager) attachment;
+      conn.getContext().setAttribute(MANAGER, connMgr);
+      connMgr.getClientHandler().connected(conn, null);
+    }
+
+    public void closed(NHttpClientConnection conn) {
+      handler(conn).closed(conn);
+    }
+
+    public void requestReady(NHttpClientConnection conn) {
+      handler(conn).requestReady(conn);
+    }
+
+    public void outputReady(NHttpClientConnection conn,
+        ContentEncoder encoder) {
+      handler(conn).outputReady(conn, encoder);
+    }
+
+    public void responseReceived(NHttpClientConnection conn) {
+      handler(conn).responseReceived(conn);
+    }
+
+    public void inputReady(NHttpClientConnection conn, ContentDecoder decoder) {
+      handler(conn).inputReady(conn, decoder);
+    }
+
+    public void exception(NHttpClientConnection conn, HttpException ex) {
+      handler(conn).exception(conn, ex);
+    }
+
+    public void exception(NHttpClientConnection conn, IOException ex) {
+      handler(conn).exception(conn, ex);
+    }
+
+    public void timeout(NHttpClientConnection conn) {
+      handler(conn).timeout(conn);
+    }
+  }
+}
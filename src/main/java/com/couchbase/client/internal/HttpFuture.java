@@ -24,8 +24,12 @@ package com.couchbase.client.internal;
 
 import com.couchbase.client.protocol.views.HttpOperation;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -38,6 +42,10 @@ import net.spy.memcached.ops.OperationStatus;
 
 /**
  * A future http response.
+ *
+ * Besides blocking in get(), callers can add listeners that are run once
+ * the response is complete, so that many requests can be outstanding
+ * without a thread waiting on each of them.
  */
 public class HttpFuture<T> extends SpyObject implements Future<T> {
   protected final AtomicReference<T> objRef;
@@ -45,6 +53,7 @@ public class HttpFuture<T> extends SpyObject implements Future<T> {
   protected final long timeout;
   protected OperationStatus status;
   protected HttpOperation op;
+  private List<Listener> listeners = new ArrayList<Listener>();
 
   public HttpFuture(CountDownLatch latch, long timeout) {
     super();
@@ -93,7 +102,7 @@ public class HttpFuture<T> extends SpyObject implements Future<T> {
     if (op != null && op.isTimedOut()) {
       status = new OperationStatus(false, "Timed out");
       throw new ExecutionException(new CheckedOperationTimeoutException(
-          "Operation timed out.", (Operation)op));
+          "Operation timed out.", Collections.<Operation>emptyList()));
     }
 
     return objRef.get();
@@ -124,6 +133,67 @@ public class HttpFuture<T> extends SpyObject implements Future<T> {
     return latch.getCount() == 0 || op.isCancelled() || op.hasErrored();
   }
 
+  /**
+   * Mark the future complete and run its listeners.
+   *
+   * Listeners without an executor run on the calling thread, which is
+   * usually the I/O thread that received the response.
+   */
+  public void signalComplete() {
+    latch.countDown();
+    List<Listener> toRun;
+    synchronized (this) {
+      toRun = listeners;
+      listeners = null;
+    }
+    if (toRun != null) {
+      for (Listener listener : toRun) {
+        listener.run();
+      }
+    }
+  }
+
+  /**
+   * Add a listener that is run once the future is complete, or right away
+   * if it already is.
+   *
+   * The listener must not block unless it has an executor of its own,
+   * because without one it runs on the I/O thread.
+   *
+   * @param listener the listener
+   * @param executor the executor running the listener, or null to run it
+   *          on the thread that completes the future
+   */
+  public void addListener(Runnable listener, Executor executor) {
+    Listener l = new Listener(listener, executor);
+    synchronized (this) {
+      if (listeners != null && latch.getCount() > 0) {
+        listeners.add(l);
+        return;
+      }
+    }
+    l.run();
+  }
+
+  /**
+   * Add a listener that is handed this future once it is complete, or right
+   * away if it already is.
+   *
+   * @param listener the listener
+   * @param executor the executor running the listener, or null to run it
+   *          on the thread that completes the future
+   * @see #addListener(Runnable, Executor)
+   */
+  public void addListener(final HttpCompletionListener<T> listener,
+      Executor executor) {
+    addListener(new Runnable() {
+      @Override
+      public void run() {
+        listener.onComplete(HttpFuture.this);
+      }
+    }, executor);
+  }
+
   public void setOperation(HttpOperation to) {
     this.op = to;
   }
@@ -133,4 +203,27 @@ public class HttpFuture<T> extends SpyObject implements Future<T> {
     assert op != null : "No operation";
     return op.isCancelled();
   }
+
+  private class Listener implements Runnable {
+    private final Runnable task;
+    private final Executor executor;
+
+    Listener(Runnable task, Executor executor) {
+      this.task = task;
+      this.executor = executor;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (executor == null) {
+          task.run();
+        } else {
+          executor.execute(task);
+        }
+      } catch (RuntimeException e) {
+        getLogger().warn("Listener of " + HttpFuture.this + " failed", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.internal;
+
+import com.couchbase.client.protocol.views.HttpOperation;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.ops.OperationStatus;
+
+/**
+ * A future http response for one of several callers sharing an operation.
+ *
+ * Cancelling the future only detaches its caller, and timing out doesn't
+ * time out the shared operation, so the other callers are unaffected.
+ */
+public class SharedHttpFuture<T> extends HttpFuture<T> {
+  private volatile boolean cancelled;
+
+  /**
+   * Create a future that completes when the shared operation does.
+   *
+   * @param op the shared operation
+   * @param timeout the time get() waits in milliseconds
+   */
+  public SharedHttpFuture(HttpOperation op, long timeout) {
+    super(new CountDownLatch(1), timeout);
+    setOperation(op);
+  }
+
+  /**
+   * Create a future that is already complete.
+   *
+   * @param value the result
+   * @param s the status of the operation that produced the result
+   * @param op the operation that produced the result
+   */
+  public SharedHttpFuture(T value, OperationStatus s, HttpOperation op) {
+    super(new CountDownLatch(1), 0);
+    set(value, s);
+    setOperation(op);
+    signalComplete();
+  }
+
+  /**
+   * Complete the future with the result of the shared operation.
+   *
+   * @param value the result
+   * @param s the status of the shared operation
+   */
+  public void complete(T value, OperationStatus s) {
+    set(value, s);
+    signalComplete();
+  }
+
+  @Override
+  public boolean cancel(boolean c) {
+    if (latch.getCount() == 0) {
+      return false;
+    }
+    cancelled = true;
+    signalComplete();
+    return true;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override
+  public boolean isDone() {
+    return latch.getCount() == 0;
+  }
+
+  @Override
+  public T get(long duration, TimeUnit units)
+    throws InterruptedException, ExecutionException, TimeoutException {
+    if (!latch.await(duration, units)) {
+      status = new OperationStatus(false, "Timed out");
+      throw new TimeoutException("Timed out waiting for operation");
+    }
+    if (cancelled) {
+      status = new OperationStatus(false, "Operation Cancelled");
+      throw new ExecutionException(new RuntimeException("Cancelled"));
+    }
+    return super.get(0, units);
+  }
+}
@@ -24,34 +24,31 @@ package com.couchbase.client.internal;
 
 import com.couchbase.client.protocol.views.ViewResponse;
 import com.couchbase.client.protocol.views.ViewResponseWithDocs;
-import com.couchbase.client.protocol.views.ViewRow;
-import com.couchbase.client.protocol.views.ViewRowWithDocs;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicReference;
 
-import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.internal.CheckedOperationTimeoutException;
 import net.spy.memcached.ops.Operation;
 import net.spy.memcached.ops.OperationStatus;
 
 /**
  * A ViewFuture.
+ *
+ * The future is complete, and its listeners are run, once the view response
+ * and the documents of its rows have all arrived, so get() doesn't block
+ * from then on.
  */
 public class ViewFuture extends HttpFuture<ViewResponse> {
-  private final AtomicReference<BulkFuture<Map<String, Object>>> multigetRef;
+  private volatile Map<String, Object> documents;
+  private volatile Exception documentsError;
 
   public ViewFuture(CountDownLatch latch, long timeout) {
     super(latch, timeout);
-    this.multigetRef =
-        new AtomicReference<BulkFuture<Map<String, Object>>>(null);
   }
 
   @Override
@@ -80,30 +77,38 @@ public class ViewFuture extends HttpFuture<ViewResponse> {
     if (op != null && op.isTimedOut()) {
       status = new OperationStatus(false, "Timed out");
       throw new ExecutionException(new CheckedOperationTimeoutException(
-          "Operation timed out.", (Operation)op));
+          "Operation timed out.", Collections.<Operation>emptyList()));
     }
 
-    if (multigetRef.get() == null) {
-      return null;
+    if (documentsError != null) {
+      status = new OperationStatus(false, documentsError.getMessage());
+      throw new ExecutionException(documentsError);
     }
 
-    Map<String, Object> docMap = multigetRef.get().get();
+    Map<String, Object> docMap = documents;
+    if (docMap == null) {
+      return null;
+    }
     final ViewResponseWithDocs view = (ViewResponseWithDocs) objRef.get();
-    Collection<ViewRow> rows = new LinkedList<ViewRow>();
-    Iterator<ViewRow> itr = view.iterator();
+    return view.withDocuments(docMap);
+  }
 
-    while (itr.hasNext()) {
-      ViewRow r = itr.next();
-      rows.add(new ViewRowWithDocs(r.getId(), r.getKey(), r.getValue(),
-          docMap.get(r.getId())));
-    }
-    return new ViewResponseWithDocs(rows, view.getErrors());
+  /**
+   * Set the documents of the rows, fetched before the future is completed.
+   *
+   * @param docs the documents by id
+   */
+  public void setDocuments(Map<String, Object> docs) {
+    documents = docs;
   }
 
-  public void set(ViewResponse viewResponse,
-      BulkFuture<Map<String, Object>> oper, OperationStatus s) {
-    objRef.set(viewResponse);
-    multigetRef.set(oper);
-    status = s;
+  /**
+   * Fail the future because the documents of the rows could not be
+   * fetched.
+   *
+   * @param e the cause
+   */
+  public void setDocumentsError(Exception e) {
+    documentsError = e;
   }
 }
@@ -0,0 +1,350 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * The rows of a view response, stored compactly.
+ *
+ * The response is still parsed with jettison, which decodes every field
+ * into a string. Those strings are copied into a single char buffer with
+ * an array of field offsets and then dropped, so the response only keeps
+ * the buffer instead of a row object and three strings per row. Each call
+ * of a row accessor creates a new string from the buffer. Documents, if
+ * any, are kept in a parallel array. The rows returned by get are light
+ * views on the buffer.
+ */
+final class CompactViewRows extends AbstractList<ViewRow> implements
+    RandomAccess {
+
+  private static final int FIELDS = 3;
+  private static final int ID = 0;
+  private static final int KEY = 1;
+  private static final int VALUE = 2;
+
+  private final char[] data;
+  private final int[] bounds;
+  private final int size;
+  private final Object[] docs;
+
+  private CompactViewRows(char[] data, int[] bounds, int size,
+      Object[] docs) {
+    this.data = data;
+    this.bounds = bounds;
+    this.size = size;
+    this.docs = docs;
+  }
+
+  /**
+   * Create rows sharing the ids, keys and values of these rows with the
+   * given documents.
+   *
+   * @param documents the documents by id
+   * @return the rows with documents
+   */
+  CompactViewRows withDocuments(Map<String, Object> documents) {
+    Object[] d = new Object[size];
+    for (int i = 0; i < size; i++) {
+      d[i] = documents.get(field(i, ID));
+    }
+    return new CompactViewRows(data, bounds, size, d);
+  }
+
+  boolean hasDocuments() {
+    return docs != null;
+  }
+
+  @Override
+  public ViewRow get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+    }
+    return new Row(index);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Decode a field, mapping the JSON literal null to null like the other
+   * row types do.
+   */
+  private String field(int row, int field) {
+    int start = bounds[row * FIELDS + field];
+    int end = bounds[row * FIELDS + field + 1];
+    if (end - start == 4 && data[start] == 'n' && data[start + 1] == 'u'
+        && data[start + 2] == 'l' && data[start + 3] == 'l') {
+      return null;
+    }
+    return new String(data, start, end - start);
+  }
+
+  private boolean idEquals(int row, String id) {
+    int start = bounds[row * FIELDS + ID];
+    int len = bounds[row * FIELDS + ID + 1] - start;
+    if (id.length() != len) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (data[start + i] != id.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int idHash(int row) {
+    int h = 0;
+    for (int i = bounds[row * FIELDS + ID]; i < bounds[row * FIELDS + ID + 1];
+        i++) {
+      h = 31 * h + data[i];
+    }
+    return h;
+  }
+
+  private Object document(int row) {
+    Object doc = docs[row];
+    return "null".equals(doc) ? null : doc;
+  }
+
+  /**
+   * Get the documents keyed by id without copying them. For ids that occur
+   * in several rows the document of the last row is used.
+   *
+   * @return a read-only map of ids to documents
+   */
+  Map<String, Object> documentMap() {
+    return new DocumentMap();
+  }
+
+  /**
+   * A row of the buffer.
+   */
+  private final class Row implements ViewRow {
+    private final int index;
+
+    private Row(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public String getId() {
+      return field(index, ID);
+    }
+
+    @Override
+    public String getKey() {
+      return field(index, KEY);
+    }
+
+    @Override
+    public String getValue() {
+      return field(index, VALUE);
+    }
+
+    @Override
+    public Object getDocument() {
+      if (docs == null) {
+        throw new UnsupportedOperationException("This view result doesn't "
+            + "contain documents");
+      }
+      return document(index);
+    }
+  }
+
+  /**
+   * A map from ids to documents backed by an open addressing table of row
+   * numbers.
+   */
+  private final class DocumentMap extends AbstractMap<String, Object> {
+    private final int[] table;
+    private final int distinct;
+
+    private DocumentMap() {
+      int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+      table = new int[capacity];
+      Arrays.fill(table, -1);
+      int count = 0;
+      for (int row = 0; row < size; row++) {
+        int slot = idHash(row) & (capacity - 1);
+        while (table[slot] >= 0 && !sameId(table[slot], row)) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        if (table[slot] < 0) {
+          count++;
+        }
+        table[slot] = row;
+      }
+      distinct = count;
+    }
+
+    private boolean sameId(int a, int b) {
+      int startA = bounds[a * FIELDS + ID];
+      int startB = bounds[b * FIELDS + ID];
+      int len = bounds[a * FIELDS + ID + 1] - startA;
+      if (bounds[b * FIELDS + ID + 1] - startB != len) {
+        return false;
+      }
+      for (int i = 0; i < len; i++) {
+        if (data[startA + i] != data[startB + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private int find(Object key) {
+      if (!(key instanceof String)) {
+        return -1;
+      }
+      String id = (String) key;
+      int slot = id.hashCode() & (table.length - 1);
+      while (table[slot] >= 0) {
+        if (idEquals(table[slot], id)) {
+          return table[slot];
+        }
+        slot = (slot + 1) & (table.length - 1);
+      }
+      return -1;
+    }
+
+    @Override
+    public Object get(Object key) {
+      int row = find(key);
+      return row < 0 ? null : document(row);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+      return distinct;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+      return new AbstractSet<Map.Entry<String, Object>>() {
+        @Override
+        public int size() {
+          return distinct;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+          return new Iterator<Map.Entry<String, Object>>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+              int s = from;
+              while (s < table.length && table[s] < 0) {
+                s++;
+              }
+              return s;
+            }
+
+            @Override
+            public boolean hasNext() {
+              return slot < table.length;
+            }
+
+            @Override
+            public Map.Entry<String, Object> next() {
+              if (!hasNext()) {
+                throw new NoSuchElementException();
+              }
+              int row = table[slot];
+              slot = advance(slot + 1);
+              return new AbstractMap.SimpleImmutableEntry<String, Object>(
+                  field(row, ID), document(row));
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException("Read only map");
+            }
+          };
+        }
+      };
+    }
+  }
+
+  /**
+   * Collects rows into a compact buffer.
+   */
+  static final class Builder {
+    private final StringBuilder data = new StringBuilder();
+    private int[] bounds = new int[FIELDS * 16 + 1];
+    private int size;
+    private boolean documents;
+
+    /**
+     * Create a builder for rows that will get documents through
+     * withDocuments, or for rows without documents.
+     *
+     * @param withDocuments true if the rows have documents
+     */
+    Builder(boolean withDocuments) {
+      this.documents = withDocuments;
+    }
+
+    void add(String id, String key, String value) {
+      if (bounds.length < (size + 1) * FIELDS + 1) {
+        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+      }
+      int base = size * FIELDS;
+      append(base, id);
+      append(base + 1, key);
+      append(base + 2, value);
+      size++;
+    }
+
+    private void append(int field, String s) {
+      bounds[field] = data.length();
+      data.append(s == null ? "null" : s);
+      bounds[field + 1] = data.length();
+    }
+
+    CompactViewRows build() {
+      char[] chars = new char[data.length()];
+      data.getChars(0, chars.length, chars, 0);
+      return new CompactViewRows(chars,
+          Arrays.copyOf(bounds, size * FIELDS + 1), size,
+          documents ? new Object[size] : null);
+    }
+  }
+}
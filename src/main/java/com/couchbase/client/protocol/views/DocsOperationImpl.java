@@ -43,7 +43,7 @@ public class DocsOperationImpl extends ViewOperationImpl {
 
   protected ViewResponseWithDocs parseResult(String json)
     throws ParseException {
-    final Collection<ViewRow> rows = new LinkedList<ViewRow>();
+    final CompactViewRows.Builder rows = new CompactViewRows.Builder(true);
     final Collection<RowError> errors = new LinkedList<RowError>();
     if (json != null) {
       try {
@@ -55,7 +55,7 @@ public class DocsOperationImpl extends ViewOperationImpl {
             String id = elem.getString("id");
             String key = elem.getString("key");
             String value = elem.getString("value");
-            rows.add(new ViewRowWithDocs(id, key, value, null));
+            rows.add(id, key, value);
           }
         }
         if (base.has("errors")) {
@@ -71,7 +71,7 @@ public class DocsOperationImpl extends ViewOperationImpl {
         throw new ParseException("Cannot read json: " + json, 0);
       }
     }
-    return new ViewResponseWithDocs(rows, errors);
+    return new ViewResponseWithDocs(rows.build(), errors);
   }
 
   @Override
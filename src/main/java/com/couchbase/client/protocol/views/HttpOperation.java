@@ -22,6 +22,8 @@
 
 package com.couchbase.client.protocol.views;
 
+import com.couchbase.client.http.RequestHandle;
+
 import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationException;
 
@@ -47,6 +49,53 @@ public interface HttpOperation {
 
   void timeOut();
 
+  /**
+   * Set the time after which the operation is timed out, counting from now.
+   *
+   * @param millis the timeout in milliseconds
+   */
+  void setTimeout(long millis);
+
+  /**
+   * Get the time after which the operation is timed out.
+   *
+   * @return the deadline as given by System.nanoTime(), or 0 if none is set
+   */
+  long getDeadline();
+
+  /**
+   * Check whether the deadline of the operation has passed.
+   *
+   * @return true if the operation should be timed out
+   */
+  boolean isExpired();
+
+  /**
+   * Set the exchange carrying the operation, so that cancelling or timing
+   * out the operation can abort it.
+   *
+   * @param handle the exchange, or null once it is over
+   */
+  void setRequestHandle(RequestHandle handle);
+
+  /**
+   * Prepare the operation to be sent again after the node it was sent to
+   * failed.
+   *
+   * @param maxRetries the number of times an operation may be sent again
+   * @return false if the operation can't be retried because it isn't
+   *         idempotent, has used up its retries, has passed its deadline or
+   *         is already over
+   */
+  boolean prepareRetry(int maxRetries);
+
+  /**
+   * Get the number of times the operation has been sent again.
+   *
+   * @return the number of retries
+   */
+  int getRetries();
+
   void addAuthHeader(String auth);
 
   OperationException getException();
@@ -22,16 +22,23 @@
 
 package com.couchbase.client.protocol.views;
 
+import com.couchbase.client.http.RequestHandle;
+
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.spy.memcached.ops.OperationCallback;
 import net.spy.memcached.ops.OperationErrorType;
 import net.spy.memcached.ops.OperationException;
 import net.spy.memcached.ops.OperationStatus;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.nio.entity.ProducingNHttpEntity;
 import org.apache.http.util.EntityUtils;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -47,6 +54,10 @@ public abstract class HttpOperationImpl implements HttpOperation {
   private volatile boolean cancelled;
   private volatile boolean errored;
   private volatile boolean timedOut;
+  private volatile long deadline;
+  private volatile RequestHandle handle;
+  private final AtomicBoolean finished = new AtomicBoolean(false);
+  private volatile int retries;
 
   public HttpOperationImpl(HttpRequest r, OperationCallback cb) {
     request = r;
@@ -79,10 +90,82 @@ public abstract class HttpOperationImpl implements HttpOperation {
 
   public void cancel() {
     cancelled = true;
+    abort("Cancelled");
   }
 
   public void timeOut() {
     timedOut = true;
+    abort("Timed out");
+  }
+
+  public void setTimeout(long millis) {
+    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  public boolean isExpired() {
+    long d = deadline;
+    return d != 0 && System.nanoTime() - d >= 0;
+  }
+
+  public void setRequestHandle(RequestHandle h) {
+    handle = h;
+  }
+
+  public boolean prepareRetry(int maxRetries) {
+    if (finished.get() || isCancelled() || isTimedOut() || isExpired()
+        || retries >= maxRetries) {
+      return false;
+    }
+    HttpEntity entity = null;
+    if (request instanceof HttpEntityEnclosingRequest) {
+      entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    }
+    if (entity == null) {
+      if (!"GET".equals(request.getRequestLine().getMethod())) {
+        return false;
+      }
+    } else if (!entity.isRepeatable()) {
+      return false;
+    } else if (entity instanceof ProducingNHttpEntity) {
+      try {
+        ((ProducingNHttpEntity) entity).finish();
+      } catch (IOException e) {
+        return false;
+      }
+    }
+    handle = null;
+    retries++;
+    return true;
+  }
+
+  public int getRetries() {
+    return retries;
+  }
+
+  /**
+   * Claim the right to complete the callback. The callback is completed
+   * either by the response or by cancelling or timing out the operation,
+   * whichever comes first.
+   *
+   * @return true if the caller should complete the callback
+   */
+  protected boolean finish() {
+    return finished.compareAndSet(false, true);
+  }
+
+  private void abort(String reason) {
+    RequestHandle h = handle;
+    if (h != null) {
+      h.abort();
+    }
+    if (finish()) {
+      callback.receivedStatus(new OperationStatus(false, reason));
+      callback.complete();
+    }
   }
 
   public OperationException getException() {
@@ -95,7 +178,7 @@ public abstract class HttpOperationImpl implements HttpOperation {
   }
 
   public void addAuthHeader(String authzn) {
-    request.addHeader("Authorization", authzn);
+    request.setHeader("Authorization", authzn);
   }
 
   public abstract void handleResponse(HttpResponse response);
@@ -43,7 +43,7 @@ public class NoDocsOperationImpl extends ViewOperationImpl{
 
   protected ViewResponseNoDocs parseResult(String json)
     throws ParseException {
-    final Collection<ViewRow> rows = new LinkedList<ViewRow>();
+    final CompactViewRows.Builder rows = new CompactViewRows.Builder(false);
     final Collection<RowError> errors = new LinkedList<RowError>();
     if (json != null) {
       try {
@@ -55,7 +55,7 @@ public class NoDocsOperationImpl extends ViewOperationImpl{
             String id = elem.getString("id");
             String key = elem.getString("key");
             String value = elem.getString("value");
-            rows.add(new ViewRowNoDocs(id, key, value));
+            rows.add(id, key, value);
           }
         }
         if (base.has("errors")) {
@@ -71,7 +71,7 @@ public class NoDocsOperationImpl extends ViewOperationImpl{
         throw new ParseException("Cannot read json: " + json, 0);
       }
     }
-    return new ViewResponseNoDocs(rows, errors);
+    return new ViewResponseNoDocs(rows.build(), errors);
   }
 
   @Override
@@ -26,57 +26,95 @@ import com.couchbase.client.CouchbaseClient;
 import com.couchbase.client.internal.HttpFuture;
 
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
 
 import net.spy.memcached.compat.SpyObject;
 
 /**
  * A Paginator.
+ *
+ * Each page is requested with one row more than the page size, and the
+ * extra row is the start key of the next page. As soon as a page arrives
+ * the next one is requested, so that while the caller iterates over a page
+ * the following pages are already in flight. The number of pages requested
+ * ahead of the current one is the prefetch depth; with a depth of 0 each
+ * page is only requested when the previous one is used up.
+ *
+ * A caller that stops iterating before the end should close the paginator
+ * to cancel the pages still in flight.
  */
 public class Paginator extends SpyObject
   implements Iterator<ViewRow> {
 
+  /**
+   * The number of pages requested ahead of the current one by default.
+   */
+  public static final int DEFAULT_PREFETCH = 1;
+
   private static final int MIN_RESULTS = 15;
 
   private final CouchbaseClient client;
   private final Query query;
   private final View view;
   private final int docsPerPage;
+  private final int prefetch;
+
+  private final LinkedList<HttpFuture<ViewResponse>> pages;
+  private HttpFuture<ViewResponse> lastRequested;
+  private boolean lastPageRequested;
+  private boolean closed;
 
   private ViewResponse page;
   private Iterator<ViewRow> pageItr;
-  private ViewRow lastRow;
-  private int rowsIterated;
+  private int rowsLeft;
 
   public Paginator(CouchbaseClient client, View view, Query query,
       int numDocs) {
+    this(client, view, query, numDocs, DEFAULT_PREFETCH);
+  }
+
+  public Paginator(CouchbaseClient client, View view, Query query,
+      int numDocs, int prefetchPages) {
+    if (query.willReduce()) {
+      throw new RuntimeException("Pagination is not supported for reduced"
+          + " views");
+    }
+    if (prefetchPages < 0) {
+      throw new IllegalArgumentException("The prefetch depth cannot be"
+          + " negative");
+    }
     this.client = client;
     this.view = view;
-    this.query = query.copy();
     this.docsPerPage = (MIN_RESULTS > numDocs) ? MIN_RESULTS : numDocs;
-    getNextPage(this.query.setLimit(docsPerPage + 1));
+    this.prefetch = prefetchPages;
+    this.query = query.copy().setLimit(docsPerPage + 1);
+    this.pages = new LinkedList<HttpFuture<ViewResponse>>();
+    request(this.query);
   }
 
   @Override
   public boolean hasNext() {
-    if (!pageItr.hasNext() && page.size() < docsPerPage) {
+    while (!closed && rowsLeft == 0) {
+      if (!nextPage()) {
+        return false;
+      }
+    }
+    if (closed) {
       return false;
-    } else if (!(rowsIterated < docsPerPage)) {
-      lastRow = pageItr.next();
-      query.setStartkeyDocID(lastRow.getId());
-      query.setRangeStart(lastRow.getKey());
-      getNextPage(query);
     }
+    prefetch();
     return true;
   }
 
   @Override
   public ViewRow next() {
-    if (rowsIterated <= docsPerPage) {
-      rowsIterated++;
-      lastRow = pageItr.next();
-      return lastRow;
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more rows");
     }
-    return null;
+    rowsLeft--;
+    return pageItr.next();
   }
 
   @Override
@@ -84,14 +122,94 @@ public class Paginator extends SpyObject
     throw new UnsupportedOperationException("Remove is unsupported");
   }
 
-  private HttpFuture<ViewResponse> getNextPage(Query q) {
-    if (query.willReduce()) {
-      throw new RuntimeException("Pagination is not supported for reduced"
-          + " views");
+  /**
+   * Stop iterating and cancel the pages that were requested ahead.
+   */
+  public void close() {
+    closed = true;
+    for (HttpFuture<ViewResponse> page : pages) {
+      page.cancel(true);
+    }
+    pages.clear();
+    page = null;
+    pageItr = null;
+    rowsLeft = 0;
+  }
+
+  /**
+   * Make the next requested page the current one, requesting it first if
+   * it wasn't prefetched.
+   */
+  private boolean nextPage() {
+    if (pages.isEmpty()) {
+      if (lastPageRequested || !requestAfter(page)) {
+        return false;
+      }
     }
-    page = client.query(view, q);
+    page = getPage(pages.removeFirst());
     pageItr = page.iterator();
-    rowsIterated = 0;
-    return null;
+    rowsLeft = Math.min(page.size(), docsPerPage);
+    return true;
+  }
+
+  /**
+   * Request pages ahead of the current one up to the prefetch depth. Only
+   * pages whose predecessor has arrived can be requested, so this is called
+   * on every step of the iteration to keep the pipeline full.
+   */
+  private void prefetch() {
+    while (pages.size() < prefetch && !lastPageRequested
+        && lastRequested.isDone()) {
+      ViewResponse previous;
+      try {
+        previous = lastRequested.get();
+      } catch (Exception e) {
+        // The error is reported once the failed page becomes current.
+        return;
+      }
+      if (!requestAfter(previous)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Request the page following the given one.
+   *
+   * @return false if the given page is the last one
+   */
+  private boolean requestAfter(ViewResponse previous) {
+    ViewRow first = null;
+    int i = 0;
+    for (ViewRow row : previous) {
+      if (i++ == docsPerPage) {
+        first = row;
+        break;
+      }
+    }
+    if (first == null) {
+      lastPageRequested = true;
+      return false;
+    }
+    Query q = query.copy();
+    q.setStartkeyDocID(first.getId());
+    q.setRangeStart(first.getKey());
+    request(q);
+    return true;
+  }
+
+  private void request(Query q) {
+    lastRequested = client.asyncQuery(view, q);
+    pages.add(lastRequested);
+  }
+
+  private ViewResponse getPage(HttpFuture<ViewResponse> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while accessing the view", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to access the view", e);
+    }
   }
 }
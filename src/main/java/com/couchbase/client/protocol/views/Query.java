@@ -22,12 +22,19 @@
 
 package com.couchbase.client.protocol.views;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import net.spy.memcached.util.StringUtils;
 
+import org.codehaus.jettison.json.JSONObject;
+
 /**
  * A Query.
  */
@@ -47,6 +54,8 @@ public class Query {
   private static final String STARTKEYDOCID = "startkey_docid";
   private static final String UPDATESEQ = "update_seq";
   private boolean includedocs = false;
+  private List<String> keys;
+  private long timeout = 0;
 
   private Map<String, Object> args;
 
@@ -63,6 +72,10 @@ public class Query {
     return includedocs;
   }
 
+  public Stale getStale() {
+    return (Stale) args.get(STALE);
+  }
+
   public Query setDescending(boolean descending) {
     args.put(DESCENDING, Boolean.valueOf(descending));
     return this;
@@ -98,6 +111,43 @@ public class Query {
     return this;
   }
 
+  /**
+   * Restrict the query to the given keys. The keys are sent in the body of
+   * a POST request instead of the URL, so the list may be long.
+   *
+   * @param keylist the keys, each in the same form as for setKey
+   * @return this query
+   */
+  public Query setKeys(Collection<String> keylist) {
+    keys = new ArrayList<String>(keylist);
+    return this;
+  }
+
+  /**
+   * Get the JSON request body holding the keys set with setKeys.
+   *
+   * @return the request body or null if no keys are set
+   */
+  public String getKeysJson() {
+    if (keys == null) {
+      return null;
+    }
+    StringBuilder json = new StringBuilder("{\"keys\":[");
+    boolean first = true;
+    for (String key : keys) {
+      if (!first) {
+        json.append(',');
+      }
+      first = false;
+      if (StringUtils.isJsonObject(key)) {
+        json.append(key);
+      } else {
+        json.append(JSONObject.quote(key));
+      }
+    }
+    return json.append("]}").toString();
+  }
+
   public Query setLimit(int limit) {
     args.put(LIMIT, Integer.valueOf(limit));
     return this;
@@ -144,6 +194,156 @@ public class Query {
     return this;
   }
 
+  /**
+   * Set the time the query may take before it is aborted. The time counts
+   * from the moment the query is submitted, including any time it waits for
+   * a connection.
+   *
+   * @param time the timeout, or 0 to use the client default
+   * @param unit the unit of the timeout
+   * @return this query
+   */
+  public Query setTimeout(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("The timeout cannot be negative");
+    }
+    timeout = TimeUnit.MILLISECONDS.convert(time, unit);
+    return this;
+  }
+
+  /**
+   * Get the time the query may take before it is aborted.
+   *
+   * @return the timeout in milliseconds, or 0 if the client default is used
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Get the key set with setKey.
+   *
+   * @return the key or null if not set
+   */
+  public String getKey() {
+    return (String) args.get(KEY);
+  }
+
+  /**
+   * Get the keys set with setKeys.
+   *
+   * @return a read-only view of the keys or null if not set
+   */
+  public List<String> getKeys() {
+    return keys == null ? null : Collections.unmodifiableList(keys);
+  }
+
+  /**
+   * Get the key the range starts at.
+   *
+   * @return the start key or null if not set
+   */
+  public String getRangeStart() {
+    return (String) args.get(STARTKEY);
+  }
+
+  /**
+   * Get the key the range ends at.
+   *
+   * @return the end key or null if not set
+   */
+  public String getRangeEnd() {
+    return (String) args.get(ENDKEY);
+  }
+
+  /**
+   * Get the document id the range starts at within the start key.
+   *
+   * @return the document id or null if not set
+   */
+  public String getStartkeyDocID() {
+    return (String) args.get(STARTKEYDOCID);
+  }
+
+  /**
+   * Get the document id the range ends at within the end key.
+   *
+   * @return the document id or null if not set
+   */
+  public String getEndkeyDocID() {
+    return (String) args.get(ENDKEYDOCID);
+  }
+
+  /**
+   * Get the maximum number of rows to return.
+   *
+   * @return the limit or -1 if not set
+   */
+  public int getLimit() {
+    return args.containsKey(LIMIT) ? ((Integer) args.get(LIMIT)).intValue()
+      : -1;
+  }
+
+  /**
+   * Get the number of rows to skip.
+   *
+   * @return the number of rows, 0 if not set
+   */
+  public int getSkip() {
+    return args.containsKey(SKIP) ? ((Integer) args.get(SKIP)).intValue()
+      : 0;
+  }
+
+  /**
+   * Check whether the rows are returned in descending order.
+   *
+   * @return true if descending, false if not set
+   */
+  public boolean isDescending() {
+    return args.containsKey(DESCENDING)
+      && ((Boolean) args.get(DESCENDING)).booleanValue();
+  }
+
+  /**
+   * Check whether rows with the end key are returned.
+   *
+   * @return true if the end key is included, which is the default
+   */
+  public boolean isInclusiveEnd() {
+    return !args.containsKey(INCLUSIVEEND)
+      || ((Boolean) args.get(INCLUSIVEEND)).booleanValue();
+  }
+
+  /**
+   * Check whether the reduction is grouped by the full key.
+   *
+   * @return true if grouped, false if not set
+   */
+  public boolean willGroup() {
+    return args.containsKey(GROUP)
+      && ((Boolean) args.get(GROUP)).booleanValue();
+  }
+
+  /**
+   * Get the number of elements of array keys to group by.
+   *
+   * @return the group level or -1 if not set
+   */
+  public int getGroupLevel() {
+    return args.containsKey(GROUPLEVEL)
+      ? ((Integer) args.get(GROUPLEVEL)).intValue() : -1;
+  }
+
+  Query clearStartkeyDocID() {
+    args.remove(STARTKEYDOCID);
+    return this;
+  }
+
+  Query clearEndkeyDocID() {
+    args.remove(ENDKEYDOCID);
+    return this;
+  }
+
   public Query copy() {
     Query query = new Query();
 
@@ -190,6 +390,10 @@ public class Query {
       query.setUpdateSeq(((Boolean)args.get(UPDATESEQ)).booleanValue());
     }
     query.setIncludeDocs(willIncludeDocs());
+    if (keys != null) {
+      query.setKeys(keys);
+    }
+    query.timeout = timeout;
 
     return query;
   }
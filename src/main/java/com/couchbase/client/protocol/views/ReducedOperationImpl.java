@@ -43,7 +43,7 @@ public class ReducedOperationImpl extends ViewOperationImpl {
 
   protected ViewResponseReduced parseResult(String json)
     throws ParseException {
-    final Collection<ViewRow> rows = new LinkedList<ViewRow>();
+    final ReducedRows.Builder rows = new ReducedRows.Builder();
     final Collection<RowError> errors = new LinkedList<RowError>();
     if (json != null) {
       try {
@@ -52,9 +52,7 @@ public class ReducedOperationImpl extends ViewOperationImpl {
           JSONArray ids = base.getJSONArray("rows");
           for (int i = 0; i < ids.length(); i++) {
             JSONObject elem = ids.getJSONObject(i);
-            String key = elem.getString("key");
-            String value = elem.getString("value");
-            rows.add(new ViewRowReduced(key, value));
+            rows.add(elem.getString("key"), elem.get("value"));
           }
         }
         if (base.has("errors")) {
@@ -70,7 +68,7 @@ public class ReducedOperationImpl extends ViewOperationImpl {
         throw new ParseException("Cannot read json: " + json, 0);
       }
     }
-    return new ViewResponseReduced(rows, errors);
+    return new ViewResponseReduced(rows.build(), errors);
   }
 
   @Override
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * The rows of a reduced view response, stored by column.
+ *
+ * Numeric values are kept as primitives and _stats values as ViewStats, so
+ * they don't go through strings. The string form of a number is only built
+ * when a row's getValue is called. Other values, _stats results included,
+ * keep the text the JSON parser gave for them, so getValue returns the same
+ * string as before.
+ */
+final class ReducedRows extends AbstractList<ViewRow> implements
+    RandomAccess {
+
+  static final byte NULL = 0;
+  static final byte LONG = 1;
+  static final byte DOUBLE = 2;
+  static final byte STATS = 3;
+  static final byte OTHER = 4;
+
+  private final int size;
+  private final String[] keys;
+  private final byte[] kinds;
+  private final long[] longs;
+  private final double[] doubles;
+  private final String[] texts;
+  private final ViewStats[] stats;
+
+  private ReducedRows(Builder b) {
+    size = b.size;
+    keys = Arrays.copyOf(b.keys, size);
+    kinds = Arrays.copyOf(b.kinds, size);
+    longs = Arrays.copyOf(b.longs, size);
+    doubles = Arrays.copyOf(b.doubles, size);
+    texts = b.texts == null ? null : Arrays.copyOf(b.texts, size);
+    stats = b.stats == null ? null : Arrays.copyOf(b.stats, size);
+  }
+
+  /**
+   * Store rows that were built elsewhere, parsing their values.
+   */
+  static ReducedRows of(Collection<ViewRow> rows) {
+    Builder builder = new Builder();
+    for (ViewRow row : rows) {
+      builder.add(row.getKey(), parse(row.getValue()), row.getValue());
+    }
+    return builder.build();
+  }
+
+  private static Object parse(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.valueOf(value);
+    } catch (NumberFormatException e) {
+      // not an integer
+    }
+    try {
+      return Double.valueOf(value);
+    } catch (NumberFormatException e) {
+      // not a number
+    }
+    if (value.startsWith("{")) {
+      try {
+        return new JSONObject(value);
+      } catch (JSONException e) {
+        return value;
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public ViewRow get(int index) {
+    checkIndex(index);
+    return new ViewRowReduced(keys[index], valueString(index));
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  String getKey(int index) {
+    checkIndex(index);
+    return "null".equals(keys[index]) ? null : keys[index];
+  }
+
+  byte getKind(int index) {
+    checkIndex(index);
+    return kinds[index];
+  }
+
+  long getLong(int index) {
+    checkIndex(index);
+    return longs[index];
+  }
+
+  double getDouble(int index) {
+    checkIndex(index);
+    return doubles[index];
+  }
+
+  ViewStats getStats(int index) {
+    checkIndex(index);
+    return kinds[index] == STATS ? stats[index] : null;
+  }
+
+  String[] getKeys() {
+    String[] result = new String[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = "null".equals(keys[i]) ? null : keys[i];
+    }
+    return result;
+  }
+
+  long[] getLongs() {
+    return longs.clone();
+  }
+
+  double[] getDoubles() {
+    return doubles.clone();
+  }
+
+  private String valueString(int index) {
+    switch (kinds[index]) {
+    case LONG:
+      return Long.toString(longs[index]);
+    case DOUBLE:
+      return Double.toString(doubles[index]);
+    case STATS:
+    case OTHER:
+      return texts[index];
+    default:
+      return null;
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+    }
+  }
+
+  /**
+   * Collects reduced rows by column.
+   */
+  static final class Builder {
+    private int size;
+    private String[] keys = new String[16];
+    private byte[] kinds = new byte[16];
+    private long[] longs = new long[16];
+    private double[] doubles = new double[16];
+    private String[] texts;
+    private ViewStats[] stats;
+
+    /**
+     * Add a row.
+     *
+     * @param key the key as returned by the JSON parser
+     * @param value the value as returned by the JSON parser
+     */
+    void add(String key, Object value) {
+      add(key, value, null);
+    }
+
+    /**
+     * Add a row whose value was parsed from the given text.
+     *
+     * @param key the key as returned by the JSON parser
+     * @param value the value as returned by the JSON parser
+     * @param text the text of the value, or null to use its string form
+     */
+    void add(String key, Object value, String text) {
+      if (size == keys.length) {
+        int capacity = size * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        longs = Arrays.copyOf(longs, capacity);
+        doubles = Arrays.copyOf(doubles, capacity);
+        if (texts != null) {
+          texts = Arrays.copyOf(texts, capacity);
+        }
+        if (stats != null) {
+          stats = Arrays.copyOf(stats, capacity);
+        }
+      }
+      keys[size] = key;
+      if (value == null || JSONObject.NULL.equals(value)) {
+        kinds[size] = NULL;
+      } else if (value instanceof Integer || value instanceof Long) {
+        kinds[size] = LONG;
+        longs[size] = ((Number) value).longValue();
+        doubles[size] = longs[size];
+      } else if (value instanceof Number) {
+        kinds[size] = DOUBLE;
+        doubles[size] = ((Number) value).doubleValue();
+        longs[size] = (long) doubles[size];
+      } else {
+        if (texts == null) {
+          texts = new String[keys.length];
+        }
+        texts[size] = text == null ? value.toString() : text;
+        ViewStats s = value instanceof JSONObject
+            ? toStats((JSONObject) value) : null;
+        if (s != null) {
+          if (stats == null) {
+            stats = new ViewStats[keys.length];
+          }
+          stats[size] = s;
+        }
+        kinds[size] = s == null ? OTHER : STATS;
+      }
+      size++;
+    }
+
+    private static ViewStats toStats(JSONObject o) {
+      if (!o.has("sum") || !o.has("count") || !o.has("min")
+          || !o.has("max") || !o.has("sumsqr")) {
+        return null;
+      }
+      try {
+        return new ViewStats(o.getDouble("sum"), o.getLong("count"),
+            o.getDouble("min"), o.getDouble("max"), o.getDouble("sumsqr"));
+      } catch (JSONException e) {
+        return null;
+      }
+    }
+
+    ReducedRows build() {
+      return new ReducedRows(this);
+    }
+  }
+}
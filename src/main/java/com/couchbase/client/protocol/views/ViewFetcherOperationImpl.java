@@ -56,6 +56,9 @@ public class ViewFetcherOperationImpl extends HttpOperationImpl implements
 
   @Override
   public void handleResponse(HttpResponse response) {
+    if (!finish()) {
+      return;
+    }
     String json = getEntityString(response);
     try {
       View view = parseDesignDocumentForView(bucketName, designDocName,
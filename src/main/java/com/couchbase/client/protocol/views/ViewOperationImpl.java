@@ -45,6 +45,9 @@ public abstract class ViewOperationImpl extends HttpOperationImpl
 
   @Override
   public void handleResponse(HttpResponse response) {
+    if (!finish()) {
+      return;
+    }
     String json = getEntityString(response);
     int errorcode = response.getStatusLine().getStatusCode();
     try {
@@ -24,6 +24,7 @@ package com.couchbase.client.protocol.views;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -52,5 +53,27 @@ public abstract class ViewResponse implements Iterable<ViewRow> {
     return rows.size();
   }
 
+  /**
+   * Get a row by its position in the response. This takes constant time
+   * for responses parsed from the cluster.
+   *
+   * @param index the position of the row
+   * @return the row
+   */
+  public ViewRow get(int index) {
+    if (rows instanceof List) {
+      return ((List<ViewRow>) rows).get(index);
+    }
+    if (index < 0 || index >= rows.size()) {
+      throw new IndexOutOfBoundsException("Row " + index + " of "
+          + rows.size());
+    }
+    Iterator<ViewRow> itr = rows.iterator();
+    for (int i = 0; i < index; i++) {
+      itr.next();
+    }
+    return itr.next();
+  }
+
   public abstract Map<String, Object> getMap();
 }
@@ -28,12 +28,127 @@ import java.util.Map;
 /**
  * Holds the response of a view query where the map and reduce
  * function were called.
+ *
+ * Besides the rows, the response offers typed access to the reduced
+ * values: numbers as long or double and the values of the built-in _stats
+ * reduce as ViewStats, either per row or as whole columns, without going
+ * through strings.
  */
 public class ViewResponseReduced extends ViewResponse {
 
+  private ReducedRows columns;
+
   public ViewResponseReduced(final Collection<ViewRow> rows,
       final Collection<RowError> errors) {
     super(rows, errors);
+    if (rows instanceof ReducedRows) {
+      columns = (ReducedRows) rows;
+    }
+  }
+
+  private synchronized ReducedRows columns() {
+    if (columns == null) {
+      columns = ReducedRows.of(rows);
+    }
+    return columns;
+  }
+
+  /**
+   * Get the key of a row.
+   *
+   * @param index the position of the row
+   * @return the key like ViewRow#getKey returns it: a string key without
+   *         its quotes, any other key as JSON text
+   */
+  public String getKey(int index) {
+    return columns().getKey(index);
+  }
+
+  /**
+   * Check whether the value of a row is a number.
+   *
+   * @param index the position of the row
+   * @return true if the value is a number
+   */
+  public boolean isNumeric(int index) {
+    byte kind = columns().getKind(index);
+    return kind == ReducedRows.LONG || kind == ReducedRows.DOUBLE;
+  }
+
+  /**
+   * Get the value of a row as a long, such as the result of _count or of
+   * _sum over integers. Fractional values are truncated.
+   *
+   * @param index the position of the row
+   * @return the value
+   * @throws IllegalStateException if the value isn't a number
+   */
+  public long getLong(int index) {
+    if (!isNumeric(index)) {
+      throw new IllegalStateException("The value of row " + index
+          + " is not a number");
+    }
+    return columns().getLong(index);
+  }
+
+  /**
+   * Get the value of a row as a double.
+   *
+   * @param index the position of the row
+   * @return the value
+   * @throws IllegalStateException if the value isn't a number
+   */
+  public double getDouble(int index) {
+    if (!isNumeric(index)) {
+      throw new IllegalStateException("The value of row " + index
+          + " is not a number");
+    }
+    return columns().getDouble(index);
+  }
+
+  /**
+   * Get the value of a row reduced by _stats.
+   *
+   * @param index the position of the row
+   * @return the statistics
+   * @throws IllegalStateException if the value isn't a _stats result
+   */
+  public ViewStats getStats(int index) {
+    ViewStats stats = columns().getStats(index);
+    if (stats == null) {
+      throw new IllegalStateException("The value of row " + index
+          + " is not a _stats result");
+    }
+    return stats;
+  }
+
+  /**
+   * Get the keys of all rows.
+   *
+   * @return the keys in row order, in the form of {@link #getKey(int)}
+   */
+  public String[] getKeys() {
+    return columns().getKeys();
+  }
+
+  /**
+   * Get the values of all rows as longs. Rows whose value isn't a number
+   * are 0.
+   *
+   * @return the values in row order
+   */
+  public long[] getLongValues() {
+    return columns().getLongs();
+  }
+
+  /**
+   * Get the values of all rows as doubles. Rows whose value isn't a number
+   * are 0.
+   *
+   * @return the values in row order
+   */
+  public double[] getDoubleValues() {
+    return columns().getDoubles();
   }
 
   @Override
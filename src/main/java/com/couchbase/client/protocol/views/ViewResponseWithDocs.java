@@ -26,6 +26,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 
 /**
@@ -42,9 +43,31 @@ public class ViewResponseWithDocs extends ViewResponse {
     map = null;
   }
 
+  /**
+   * Create a response with the same rows as this one and the given
+   * documents.
+   *
+   * @param documents the documents by id
+   * @return a response whose rows include the documents
+   */
+  public ViewResponseWithDocs withDocuments(Map<String, Object> documents) {
+    if (rows instanceof CompactViewRows) {
+      return new ViewResponseWithDocs(
+          ((CompactViewRows) rows).withDocuments(documents), errors);
+    }
+    Collection<ViewRow> withDocs = new LinkedList<ViewRow>();
+    for (ViewRow r : rows) {
+      withDocs.add(new ViewRowWithDocs(r.getId(), r.getKey(), r.getValue(),
+          documents.get(r.getId())));
+    }
+    return new ViewResponseWithDocs(withDocs, errors);
+  }
+
   @Override
   public Map<String, Object> getMap() {
-    if (map == null) {
+    if (map == null && rows instanceof CompactViewRows) {
+      map = ((CompactViewRows) rows).documentMap();
+    } else if (map == null) {
       map = new HashMap<String, Object>();
       Iterator<ViewRow> itr = iterator();
 
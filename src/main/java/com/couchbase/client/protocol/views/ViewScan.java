@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import com.couchbase.client.CouchbaseClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.spy.memcached.compat.SpyObject;
+
+/**
+ * A scan of a view key range split into sub-ranges that are queried in
+ * parallel.
+ *
+ * The range of the query is cut at the given split keys: each sub-range
+ * starts at a split key and ends right before the next one, and the first
+ * and last sub-ranges keep the start and end of the query. Every sub-range
+ * is paged through by its own Paginator on its own thread, so the requests
+ * of all sub-ranges are spread over the view nodes at the same time.
+ *
+ * The rows can be read in key order through the iterator, in which case
+ * each sub-range buffers up to two pages ahead of the reader, or handed to a
+ * callback from all scanning threads as they arrive. Split keys can be
+ * chosen by the caller or sampled from the view with sampleSplitKeys.
+ *
+ * A scan always reads whole ranges, as the sub-ranges are paged with limit
+ * and skip of their own, so the query must not set a limit or skip.
+ */
+public class ViewScan extends SpyObject implements Iterator<ViewRow> {
+
+  private static final Object END = new Object();
+  private static final long POLL_INTERVAL = 100;
+
+  private final CouchbaseClient client;
+  private final View view;
+  private final List<Query> ranges;
+  private final int docsPerPage;
+
+  private ExecutorService executor;
+  private volatile boolean closed;
+
+  private List<BlockingQueue<Object>> buffers;
+  private int current;
+  private ViewRow nextRow;
+
+  /**
+   * A callback receiving the rows of an unordered scan.
+   */
+  public interface ViewRowCallback {
+    /**
+     * Receive a row. This is called concurrently from the scanning threads.
+     *
+     * @param row the row
+     */
+    void gotRow(ViewRow row);
+  }
+
+  /**
+   * Create a scan of the range of a query.
+   *
+   * @param client the client to query the view with
+   * @param view the view to scan
+   * @param query the query whose range is scanned
+   * @param splitKeys the keys at which the range is split, in the order of
+   *          the query
+   * @param docsPerPage the number of rows requested at a time per sub-range
+   * @throws IllegalArgumentException if the query sets a limit or skip
+   */
+  public ViewScan(CouchbaseClient client, View view, Query query,
+      List<String> splitKeys, int docsPerPage) {
+    if (query.willReduce()) {
+      throw new RuntimeException("Scanning is not supported for reduced"
+          + " views");
+    }
+    checkRange(query);
+    if (docsPerPage < 1) {
+      throw new IllegalArgumentException("At least one row per page is"
+          + " needed");
+    }
+    this.client = client;
+    this.view = view;
+    this.ranges = split(query, splitKeys);
+    this.docsPerPage = docsPerPage;
+  }
+
+  /**
+   * Split the range of a query at the given keys. Equal adjacent split keys
+   * are ignored.
+   */
+  static List<Query> split(Query query, List<String> splitKeys) {
+    List<Query> result = new ArrayList<Query>();
+    Query range = query.copy();
+    String previous = null;
+    for (String key : splitKeys) {
+      if (key == null || key.equals(previous)) {
+        continue;
+      }
+      result.add(range.setRangeEnd(key).setInclusiveEnd(false)
+          .clearEndkeyDocID());
+      range = query.copy().setRangeStart(key).clearStartkeyDocID();
+      previous = key;
+    }
+    result.add(range);
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Sample split keys that cut the range of a query into sub-ranges of
+   * about the same number of rows.
+   *
+   * The number of rows in the range is found with single row probes at
+   * growing skip offsets, followed by a binary search, and the split keys
+   * are read with one probe each. Each probe costs the server a walk over
+   * the skipped rows, so this suits ranges that are scanned in full.
+   *
+   * @param client the client to query the view with
+   * @param view the view to sample
+   * @param query the query whose range is split
+   * @param partitions the number of sub-ranges wanted
+   * @return the split keys, possibly fewer than partitions - 1
+   * @throws IllegalArgumentException if the query sets a limit or skip
+   */
+  public static List<String> sampleSplitKeys(CouchbaseClient client,
+      View view, Query query, int partitions) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("At least one partition is needed");
+    }
+    checkRange(query);
+    List<String> keys = new ArrayList<String>();
+    if (partitions == 1 || probe(client, view, query, 0) == null) {
+      return keys;
+    }
+
+    int found = 0;
+    long missing = 1;
+    while (missing <= Integer.MAX_VALUE
+        && probe(client, view, query, (int) missing) != null) {
+      found = (int) missing;
+      missing *= 2;
+    }
+    while (missing - found > 1) {
+      int mid = (int) ((found + missing) / 2);
+      if (probe(client, view, query, mid) != null) {
+        found = mid;
+      } else {
+        missing = mid;
+      }
+    }
+
+    long count = found + 1L;
+    for (int i = 1; i < partitions; i++) {
+      long skip = count * i / partitions;
+      if (skip == 0) {
+        continue;
+      }
+      ViewRow row = probe(client, view, query, (int) skip);
+      if (row != null && (keys.isEmpty()
+          || !keys.get(keys.size() - 1).equals(row.getKey()))) {
+        keys.add(row.getKey());
+      }
+    }
+    return keys;
+  }
+
+  private static void checkRange(Query query) {
+    if (query.getLimit() >= 0 || query.getSkip() > 0) {
+      throw new IllegalArgumentException("A scan reads whole ranges, the"
+          + " query must not set a limit or skip");
+    }
+  }
+
+  private static ViewRow probe(CouchbaseClient client, View view,
+      Query query, int skip) {
+    Query q = query.copy().setIncludeDocs(false).setLimit(1).setSkip(skip);
+    if (view.hasReduce()) {
+      q.setReduce(false);
+    }
+    Iterator<ViewRow> rows = client.query(view, q).iterator();
+    return rows.hasNext() ? rows.next() : null;
+  }
+
+  /**
+   * Get the number of sub-ranges of this scan.
+   *
+   * @return the number of sub-ranges
+   */
+  public int getPartitions() {
+    return ranges.size();
+  }
+
+  /**
+   * Scan all sub-ranges and hand every row to the callback as soon as it
+   * arrives, in no particular order. Returns once the scan is complete.
+   *
+   * @param callback the callback receiving the rows
+   * @throws InterruptedException if interrupted while waiting for the scan
+   */
+  public void scan(final ViewRowCallback callback)
+    throws InterruptedException {
+    start();
+    final CountDownLatch done = new CountDownLatch(ranges.size());
+    final AtomicReference<RuntimeException> failure =
+        new AtomicReference<RuntimeException>();
+    for (final Query range : ranges) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Paginator rows = null;
+          try {
+            rows = new Paginator(client, view, range, docsPerPage);
+            while (!closed && rows.hasNext()) {
+              callback.gotRow(rows.next());
+            }
+          } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            closed = true;
+          } finally {
+            if (rows != null) {
+              rows.close();
+            }
+            done.countDown();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    try {
+      done.await();
+    } finally {
+      close();
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException("Failed to scan the view", failure.get());
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (buffers == null) {
+      startOrdered();
+    }
+    while (nextRow == null && !closed && current < buffers.size()) {
+      Object next;
+      try {
+        next = buffers.get(current).take();
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while scanning the view", e);
+      }
+      if (next == END) {
+        current++;
+      } else if (next instanceof RuntimeException) {
+        close();
+        throw new RuntimeException("Failed to scan the view",
+            (RuntimeException) next);
+      } else {
+        nextRow = (ViewRow) next;
+      }
+    }
+    return nextRow != null;
+  }
+
+  @Override
+  public ViewRow next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more rows");
+    }
+    ViewRow row = nextRow;
+    nextRow = null;
+    return row;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Remove is unsupported");
+  }
+
+  /**
+   * Stop scanning. Sub-ranges that are still being read are abandoned and
+   * their pages in flight are cancelled.
+   */
+  public void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private void startOrdered() {
+    start();
+    buffers = new ArrayList<BlockingQueue<Object>>();
+    for (final Query range : ranges) {
+      final BlockingQueue<Object> buffer =
+          new ArrayBlockingQueue<Object>(2 * docsPerPage);
+      buffers.add(buffer);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Paginator rows = null;
+          try {
+            rows = new Paginator(client, view, range, docsPerPage);
+            while (!closed && rows.hasNext()) {
+              put(buffer, rows.next());
+            }
+            put(buffer, END);
+          } catch (RuntimeException e) {
+            put(buffer, e);
+          } finally {
+            if (rows != null) {
+              rows.close();
+            }
+          }
+        }
+      });
+    }
+    executor.shutdown();
+  }
+
+  private void put(BlockingQueue<Object> buffer, Object item) {
+    try {
+      while (!closed
+          && !buffer.offer(item, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+        continue;
+      }
+    } catch (InterruptedException e) {
+      closed = true;
+    }
+  }
+
+  private synchronized void start() {
+    if (executor != null) {
+      throw new IllegalStateException("The scan has already been started");
+    }
+    executor = Executors.newFixedThreadPool(ranges.size(),
+        new ThreadFactory() {
+          private int count;
+
+          @Override
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ViewScan " + count++);
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+}
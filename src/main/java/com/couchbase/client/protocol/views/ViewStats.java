@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+/**
+ * The value of a row reduced by the built-in _stats reduce function.
+ */
+public final class ViewStats {
+  private final double sum;
+  private final long count;
+  private final double min;
+  private final double max;
+  private final double sumsqr;
+
+  public ViewStats(double sum, long count, double min, double max,
+      double sumsqr) {
+    this.sum = sum;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.sumsqr = sumsqr;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getSumsqr() {
+    return sumsqr;
+  }
+
+  /**
+   * Get the mean of the reduced values.
+   *
+   * @return the mean, or NaN if no values were reduced
+   */
+  public double getMean() {
+    return count == 0 ? Double.NaN : sum / count;
+  }
+
+  @Override
+  public String toString() {
+    return "{\"sum\":" + format(sum) + ",\"count\":" + count + ",\"min\":"
+        + format(min) + ",\"max\":" + format(max) + ",\"sumsqr\":"
+        + format(sumsqr) + "}";
+  }
+
+  private static String format(double d) {
+    if (d == Math.rint(d) && !Double.isInfinite(d)
+        && Math.abs(d) < Long.MAX_VALUE) {
+      return Long.toString((long) d);
+    }
+    return Double.toString(d);
+  }
+}
@@ -56,6 +56,9 @@ public class ViewsFetcherOperationImpl extends HttpOperationImpl
 
   @Override
   public void handleResponse(HttpResponse response) {
+    if (!finish()) {
+      return;
+    }
     String json = getEntityString(response);
     try {
       int errorcode = response.getStatusLine().getStatusCode();
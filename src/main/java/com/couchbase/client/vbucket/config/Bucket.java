@@ -64,6 +64,10 @@ public class Bucket {
     return streamingURI;
   }
 
+  public List<Node> getNodes() {
+    return nodes;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpCompletionListener;
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.protocol.views.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.ops.OperationStatus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests lookups served by the DesignDocumentCache.
+ */
+public class DesignDocumentCacheTest {
+
+  private static final OperationStatus OK = new OperationStatus(true, "OK");
+
+  private final View first = new View("default", "beer", "by_name", true,
+      false) { };
+  private final View second = new View("default", "beer", "by_abv", true,
+      true) { };
+
+  @Test
+  public void testCachedViewsAnswerBothLookups() throws Exception {
+    DesignDocumentCache cache = new DesignDocumentCache(1, TimeUnit.MINUTES);
+    cache.store("beer", Arrays.asList(first, second), OK, null);
+
+    List<View> views = cache.getViews(null, "beer").get();
+    assertEquals(2, views.size());
+    assertSame(second, cache.getView(null, "beer", "by_abv").get());
+    assertTrue(cache.getView(null, "beer", "by_name").isDone());
+    assertEquals(3, cache.getHits());
+    assertEquals(0, cache.getMisses());
+  }
+
+  @Test
+  public void testHitsRunListeners() {
+    DesignDocumentCache cache = new DesignDocumentCache(1, TimeUnit.MINUTES);
+    cache.store("beer", Arrays.asList(first, second), OK, null);
+    final List<Object> results = new ArrayList<Object>();
+    cache.getViews(null, "beer").addListener(new Runnable() {
+      public void run() {
+        results.add("views");
+      }
+    }, null);
+    cache.getView(null, "beer", "by_abv").addListener(
+        new HttpCompletionListener<View>() {
+          public void onComplete(HttpFuture<View> f) {
+            try {
+              results.add(f.get());
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }, null);
+    assertEquals(Arrays.<Object>asList("views", second), results);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testCachedViewsAreImmutable() throws Exception {
+    DesignDocumentCache cache = new DesignDocumentCache(1, TimeUnit.MINUTES);
+    cache.store("beer", new ArrayList<View>(Arrays.asList(first)), OK, null);
+    cache.getViews(null, "beer").get().clear();
+  }
+
+  @Test
+  public void testInvalidate() {
+    DesignDocumentCache cache = new DesignDocumentCache(1, TimeUnit.MINUTES);
+    cache.store("beer", Arrays.asList(first), OK, null);
+    cache.store("wine", Arrays.asList(second), OK, null);
+    cache.invalidate("beer");
+    assertEquals(1, cache.getSize());
+    cache.clear();
+    assertEquals(0, cache.getSize());
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.tapmessage.RequestMessage;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapResponseFlag;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests frame reassembly and filtering of the FilteredTapOperationImpl.
+ */
+public class FilteredTapOperationImplTest {
+
+  private final List<String> keys = new ArrayList<String>();
+  private final List<Integer> acks = new ArrayList<Integer>();
+  private int rejected;
+
+  private final FilteredTapOperationImpl.Callback callback =
+      new FilteredTapOperationImpl.Callback() {
+    public void receivedStatus(OperationStatus status) {
+    }
+    public void gotData(ResponseMessage message) {
+      keys.add(message.getKey());
+    }
+    public void gotAck(MemcachedNode node, TapOpcode opcode, int opaque) {
+      acks.add(opaque);
+    }
+    public void rejected() {
+      rejected++;
+    }
+    public void complete() {
+    }
+  };
+
+  private final TapMessageFilter prefixFilter = new TapMessageFilter() {
+    public boolean accept(TapMessageView message) {
+      return message.keyStartsWith("keep".getBytes());
+    }
+  };
+
+  @Test
+  public void testFiltersSplitFrames() throws Exception {
+    FilteredTapOperationImpl op = new FilteredTapOperationImpl("t",
+        new RequestMessage(), prefixFilter, callback);
+    ByteBuffer stream = ByteBuffer.allocate(20000);
+    stream.put(TapMessages.mutationFrame(0, "keep1", new byte[10], 1, 0, 0));
+    stream.put(TapMessages.mutationFrame(0, "drop1", new byte[9000], 2,
+        TapResponseFlag.TAP_ACK.getFlags(), 0));
+    stream.put(TapMessages.mutationFrame(1, "keep2", new byte[5000], 3, 0,
+        0));
+    stream.flip();
+
+    // Feed the stream in small reads that split headers and bodies.
+    while (stream.hasRemaining()) {
+      ByteBuffer read = stream.duplicate();
+      read.limit(Math.min(stream.position() + 7, stream.limit()));
+      op.readFromBuffer(read);
+      stream.position(read.position());
+    }
+    assertEquals(2, keys.size());
+    assertEquals("keep1", keys.get(0));
+    assertEquals("keep2", keys.get(1));
+    assertEquals(1, acks.size());
+    assertEquals(2, acks.get(0).intValue());
+    assertEquals(1, rejected);
+  }
+}
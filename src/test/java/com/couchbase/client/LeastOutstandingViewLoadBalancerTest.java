@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.vbucket.config.Status;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the node selection of the LeastOutstandingViewLoadBalancer.
+ */
+public class LeastOutstandingViewLoadBalancerTest {
+
+  @Test
+  public void testPicksFewestOutstanding() {
+    ViewNode busy = new StubNode(5, 100, Status.healthy);
+    ViewNode idle = new StubNode(1, 100, Status.healthy);
+    ViewNode busier = new StubNode(9, 100, Status.healthy);
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    List<ViewNode> nodes = Arrays.asList(busy, idle, busier);
+    for (int i = 0; i < 10; i++) {
+      assertSame(idle, balancer.select(nodes));
+    }
+  }
+
+  @Test
+  public void testLatencyBreaksTies() {
+    ViewNode slow = new StubNode(2, 5000, Status.healthy);
+    ViewNode fast = new StubNode(2, 200, Status.healthy);
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    List<ViewNode> nodes = Arrays.asList(slow, fast);
+    for (int i = 0; i < 10; i++) {
+      assertSame(fast, balancer.select(nodes));
+    }
+  }
+
+  @Test
+  public void testEqualNodesAreUsedInTurn() {
+    List<ViewNode> nodes = Arrays.<ViewNode>asList(
+        new StubNode(0, 0, null), new StubNode(0, 0, null),
+        new StubNode(0, 0, null));
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    Set<ViewNode> seen = new HashSet<ViewNode>();
+    for (int i = 0; i < nodes.size(); i++) {
+      seen.add(balancer.select(nodes));
+    }
+    assertEquals(nodes.size(), seen.size());
+  }
+
+  @Test
+  public void testSkipsUnavailableNodes() {
+    ViewNode warming = new StubNode(0, 0, Status.warmup);
+    ViewNode unhealthy = new StubNode(0, 0, Status.unhealthy);
+    ViewNode healthy = new StubNode(50, 9000, Status.healthy);
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    List<ViewNode> nodes = Arrays.asList(warming, unhealthy, healthy);
+    for (int i = 0; i < 10; i++) {
+      assertSame(healthy, balancer.select(nodes));
+    }
+  }
+
+  @Test
+  public void testFallsBackWhenNoNodeIsAvailable() {
+    ViewNode warming = new StubNode(3, 0, Status.warmup);
+    ViewNode unhealthy = new StubNode(1, 0, Status.unhealthy);
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    assertSame(unhealthy, balancer.select(Arrays.asList(warming, unhealthy)));
+  }
+
+  @Test
+  public void testSkipsFailingNodes() {
+    StubNode failing = new StubNode(0, 0, Status.healthy);
+    failing.failing = true;
+    ViewNode healthy = new StubNode(20, 900, Status.healthy);
+    ViewLoadBalancer balancer = new LeastOutstandingViewLoadBalancer();
+    List<ViewNode> nodes = Arrays.<ViewNode>asList(failing, healthy);
+    for (int i = 0; i < 10; i++) {
+      assertSame(healthy, balancer.select(nodes));
+    }
+  }
+
+  /**
+   * A ViewNode with fixed load figures and no connections.
+   */
+  static class StubNode extends ViewNode {
+    private final int outstanding;
+    private final long latency;
+    private boolean failing;
+
+    StubNode(int outstanding, long latencyMicros, Status status) {
+      super(new InetSocketAddress("localhost", 8092), null, 0, 0, 0,
+          "default", "");
+      this.outstanding = outstanding;
+      this.latency = latencyMicros;
+      setStatus(status);
+    }
+
+    @Override
+    public int getOutstandingOperations() {
+      return outstanding;
+    }
+
+    @Override
+    public long getLatency(TimeUnit unit) {
+      return unit.convert(latency, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public boolean isFailing() {
+      return failing;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseReduced;
+import com.couchbase.client.protocol.views.ViewRow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the rows and reductions of a LocalIndex.
+ */
+public class LocalIndexTest {
+
+  /**
+   * Emits [type, year] with the price of each document.
+   */
+  private static final LocalMapFunction<Object> BY_TYPE =
+      new LocalMapFunction<Object>() {
+        public void map(String id, Object document, Emitter emitter) {
+          try {
+            JSONObject doc = new JSONObject((String) document);
+            emitter.emit(Arrays.asList(doc.getString("type"),
+                doc.getInt("year")), doc.get("price"));
+          } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+          }
+        }
+      };
+
+  @SuppressWarnings("unchecked")
+  private final Transcoder<Object> tc =
+      (Transcoder<Object>) (Transcoder<?>) new SerializingTranscoder();
+  private LocalIndex<Object> index;
+
+  @Before
+  public void setUp() {
+    index = new LocalIndex<Object>(tc, BY_TYPE, LocalIndex.SUM);
+  }
+
+  private void put(String id, String type, int year, double price) {
+    String doc = "{\"type\":\"" + type + "\",\"year\":" + year
+      + ",\"price\":" + price + "}";
+    index.handle(TapMessages.mutation(0, id, doc.getBytes(), 0));
+  }
+
+  private static List<String> ids(ViewResponse response) {
+    List<String> ids = new ArrayList<String>();
+    for (ViewRow row : response) {
+      ids.add(row.getId());
+    }
+    return ids;
+  }
+
+  @Test
+  public void testRowsFollowMutationsAndDeletions() {
+    put("b", "book", 2001, 10);
+    put("c", "cd", 1999, 5);
+    put("a", "book", 2001, 12);
+    put("d", "book", 1990, 7);
+    assertEquals(4, index.size());
+    assertEquals(Arrays.asList("d", "a", "b", "c"),
+        ids(index.query(new Query())));
+
+    put("d", "cd", 1990, 7);
+    index.handle(TapMessages.deletion(0, "a"));
+    index.handle(TapMessages.startCheckpoint(0, 1));
+    assertEquals(3, index.size());
+    assertEquals(6, index.getAppliedCount());
+    ViewResponse response = index.query(new Query());
+    assertEquals(Arrays.asList("b", "d", "c"), ids(response));
+    assertEquals("[\"book\",2001]", response.get(0).getKey());
+    assertEquals("10", response.get(0).getValue());
+  }
+
+  @Test
+  public void testRangeQueries() {
+    put("a", "book", 1990, 1);
+    put("b", "book", 2000, 2);
+    put("c", "book", 2010, 3);
+    put("d", "cd", 2000, 4);
+
+    Query query = new Query().setRange("[\"book\",2000]", "[\"cd\"]");
+    assertEquals(Arrays.asList("b", "c"), ids(index.query(query)));
+    query.setRangeEnd("[\"book\",2010]").setInclusiveEnd(false);
+    assertEquals(Arrays.asList("b"), ids(index.query(query)));
+
+    query = new Query().setDescending(true)
+      .setRange("[\"book\",{}]", "[\"book\"]");
+    assertEquals(Arrays.asList("c", "b", "a"), ids(index.query(query)));
+    query.setSkip(1).setLimit(1);
+    assertEquals(Arrays.asList("b"), ids(index.query(query)));
+
+    query = new Query().setRange("[\"cd\"]", "[\"book\"]");
+    assertEquals(0, index.query(query).size());
+
+    query = new Query().setKeys(Arrays.asList("[\"cd\",2000]",
+        "[\"book\",1990]"));
+    assertEquals(Arrays.asList("d", "a"), ids(index.query(query)));
+    query.setSkip(1).setLimit(1);
+    assertEquals(Arrays.asList("a"), ids(index.query(query)));
+    query = new Query().setKey("[\"book\",2000]");
+    assertEquals(Arrays.asList("b"), ids(index.query(query)));
+  }
+
+  @Test
+  public void testGroupLevels() {
+    put("a", "book", 1990, 1);
+    put("b", "book", 2000, 2);
+    put("c", "book", 2000, 3.5);
+    put("d", "cd", 2000, 4);
+
+    ViewResponseReduced total =
+        (ViewResponseReduced) index.query(new Query().setReduce(true));
+    assertEquals(1, total.size());
+    assertEquals(10.5, total.getDouble(0), 0);
+    assertEquals(null, total.getKey(0));
+
+    ViewResponseReduced byType = (ViewResponseReduced) index.query(
+        new Query().setReduce(true).setGroupLevel(1));
+    assertArrayEquals(new String[] {"[\"book\"]", "[\"cd\"]"},
+        byType.getKeys());
+    assertEquals(6.5, byType.getDouble(0), 0);
+    assertEquals(4, byType.getLong(1));
+
+    ViewResponseReduced grouped = (ViewResponseReduced) index.query(
+        new Query().setReduce(true).setGroup(true).setSkip(1));
+    assertArrayEquals(new String[] {"[\"book\",2000]", "[\"cd\",2000]"},
+        grouped.getKeys());
+    assertEquals(5.5, grouped.getDouble(0), 0);
+  }
+
+  @Test
+  public void testRereducesLargeGroups() {
+    index = new LocalIndex<Object>(tc, BY_TYPE, LocalIndex.COUNT);
+    for (int i = 0; i < 1000; i++) {
+      put("doc" + i, i % 2 == 0 ? "even" : "odd", i, i);
+    }
+    ViewResponseReduced counts = (ViewResponseReduced) index.query(
+        new Query().setReduce(true).setGroupLevel(1));
+    assertEquals(2, counts.size());
+    assertEquals(500, counts.getLong(0));
+    assertEquals(500, counts.getLong(1));
+  }
+
+  @Test
+  public void testDocumentsThatCannotBeMapped() {
+    put("a", "book", 1990, 1);
+    index.handle(TapMessages.mutation(0, "a", "not json".getBytes(), 0));
+    assertEquals(0, index.size());
+    assertEquals(1, index.getFailureCount());
+  }
+
+  @Test
+  public void testCollation() {
+    List<Object> ordered = Arrays.<Object>asList(null, false, true, -1L,
+        2.5, 10L, "A", "a", "b", Arrays.asList("a"),
+        Arrays.asList("a", 1L), new JSONObject());
+    for (int i = 0; i < ordered.size(); i++) {
+      for (int j = 0; j < ordered.size(); j++) {
+        int c = LocalIndex.collate(LocalIndex.normalize(ordered.get(i)),
+            LocalIndex.normalize(ordered.get(j)));
+        assertEquals(i + " vs " + j, Integer.signum(i - j), Integer.signum(c));
+      }
+    }
+    assertEquals("x", LocalIndex.parseKey("x"));
+    assertEquals(Arrays.asList("x", 1L),
+        LocalIndex.parseKey("[\"x\",1]"));
+    assertTrue(LocalIndex.toText(LocalIndex.parseKey("{\"a\":[1,2.5]}"))
+        .equals("{\"a\":[1,2.5]}"));
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how the LocalReplica applies the dump and the live changes.
+ */
+public class LocalReplicaTest {
+
+  private static QueueTapClient client(Object... messages) {
+    QueueTapClient client = new QueueTapClient();
+    for (Object m : messages) {
+      client.add(m);
+    }
+    return client;
+  }
+
+  @Test
+  public void testAppliesLiveChangesDuringDump() throws Exception {
+    QueueTapClient dump = client(
+        TapMessages.mutation(0, "a", "1".getBytes(), 0),
+        TapMessages.mutation(1, "b", "2".getBytes(), 0));
+    QueueTapClient live = client(
+        TapMessages.mutation(0, "a", "3".getBytes(), 0),
+        TapMessages.deletion(1, "b"),
+        TapMessages.startCheckpoint(2, 1),
+        TapMessages.mutation(2, "c", "4".getBytes(), 0));
+    LocalReplica<Object> replica = new LocalReplica<Object>(dump, live,
+        new SerializingTranscoder());
+    assertFalse(replica.isBootstrapped());
+    replica.startReplication();
+    assertTrue(replica.awaitBootstrap(5, TimeUnit.SECONDS));
+
+    // The dumped b is skipped, as it was deleted meanwhile.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (replica.getAppliedCount() < 4
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, replica.getAppliedCount());
+    assertEquals("3", replica.get("a"));
+    assertNull(replica.get("b"));
+    assertEquals("4", replica.get("c"));
+    assertEquals(2, replica.size());
+    assertEquals(0, replica.getLag(TimeUnit.MILLISECONDS));
+    assertEquals(0, replica.getFailureCount());
+  }
+}
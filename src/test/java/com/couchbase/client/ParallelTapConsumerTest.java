@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapAck;
+import net.spy.memcached.tapmessage.TapOpcode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ordering and ack handling of the ParallelTapConsumer.
+ */
+public class ParallelTapConsumerTest {
+
+  @Test
+  public void testKeepsOrderPerVbucket() throws Exception {
+    QueueTapClient client = new QueueTapClient();
+    for (int i = 0; i < 400; i++) {
+      client.add(mutation(i % 8, "key" + i, i));
+    }
+    final Map<Integer, List<Integer>> seen =
+        new HashMap<Integer, List<Integer>>();
+    ParallelTapConsumer consumer = client.consume(4,
+        ParallelTapConsumer.Partitioning.VBUCKET, new TapMessageHandler() {
+          public void handle(ResponseMessage message) {
+            int seq = ByteBuffer.wrap(message.getValue()).getInt();
+            synchronized (seen) {
+              List<Integer> l = seen.get((int) message.getVbucket());
+              if (l == null) {
+                l = new ArrayList<Integer>();
+                seen.put((int) message.getVbucket(), l);
+              }
+              l.add(seq);
+            }
+          }
+        });
+    assertTrue(consumer.awaitCompletion(10, TimeUnit.SECONDS));
+    assertEquals(400, consumer.getProcessedCount());
+    assertEquals(8, seen.size());
+    for (List<Integer> l : seen.values()) {
+      List<Integer> sorted = new ArrayList<Integer>(l);
+      Collections.sort(sorted);
+      assertEquals(sorted, l);
+    }
+  }
+
+  @Test
+  public void testAckWaitsForEarlierMessages() throws Exception {
+    QueueTapClient client = new QueueTapClient();
+    final CountDownLatch release = new CountDownLatch(1);
+    client.add(mutation(0, "slow", 0));
+    client.add(mutation(1, "fast", 1));
+    client.add(new TapDelivery(mutation(2, "acked", 2, 7),
+        ack(TapOpcode.MUTATION, 7)));
+    ParallelTapConsumer consumer = client.consume(3,
+        ParallelTapConsumer.Partitioning.VBUCKET, new TapMessageHandler() {
+          public void handle(ResponseMessage message) {
+            if (message.getKey().equals("slow")) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        });
+    Thread.sleep(300);
+    assertTrue(client.getAcked().isEmpty());
+    assertEquals(1, consumer.getPendingAcks());
+    release.countDown();
+    assertTrue(consumer.awaitCompletion(10, TimeUnit.SECONDS));
+    assertEquals(1, client.getAcked().size());
+    assertEquals(7, client.getAcked().get(0).getOpaque());
+    assertEquals(0, consumer.getPendingAcks());
+  }
+
+  @Test
+  public void testHandlerFailuresAreCountedAndAcked() throws Exception {
+    QueueTapClient client = new QueueTapClient();
+    client.add(new TapDelivery(mutation(0, "bad", 0, 3),
+        ack(TapOpcode.MUTATION, 3)));
+    client.add(ack(TapOpcode.NOOP, 4));
+    ParallelTapConsumer consumer = client.consume(2,
+        ParallelTapConsumer.Partitioning.KEY, new TapMessageHandler() {
+          public void handle(ResponseMessage message) {
+            throw new RuntimeException("boom");
+          }
+        });
+    assertTrue(consumer.awaitCompletion(10, TimeUnit.SECONDS));
+    assertEquals(1, consumer.getFailureCount());
+    assertEquals(2, client.getAcked().size());
+    assertEquals(3, client.getAcked().get(0).getOpaque());
+    assertEquals(4, client.getAcked().get(1).getOpaque());
+  }
+
+  private static TapAck ack(TapOpcode opcode, int opaque) {
+    return new TapAck(null, null, opcode, opaque, null);
+  }
+
+  private static ResponseMessage mutation(int vbucket, String key, int seq) {
+    return mutation(vbucket, key, seq, 0);
+  }
+
+  private static ResponseMessage mutation(int vbucket, String key, int seq,
+      int opaque) {
+    return TapMessages.mutation(vbucket, key,
+        ByteBuffer.allocate(4).putInt(seq).array(), opaque);
+  }
+}
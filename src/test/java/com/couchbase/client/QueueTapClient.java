@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.spy.memcached.tapmessage.TapAck;
+
+/**
+ * A TapClient fed by hand that records the acks it sends.
+ */
+public class QueueTapClient extends TapClient {
+
+  private final List<TapAck> acked =
+      Collections.synchronizedList(new ArrayList<TapAck>());
+
+  public QueueTapClient() {
+    super(Arrays.asList(URI.create("http://localhost:8091/pools")),
+        "default", "");
+  }
+
+  public void add(Object m) {
+    rqueue.add(m);
+  }
+
+  public List<TapAck> getAcked() {
+    return acked;
+  }
+
+  @Override
+  void ack(TapAck ack) {
+    acked.add(ack);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.spy.memcached.tapmessage.RequestMessage;
+import net.spy.memcached.tapmessage.TapRequestFlag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests recording, storing and resuming tap checkpoints.
+ */
+public class TapCheckpointsTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("checkpoints", "");
+    assertTrue(dir.delete());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testRecordsCheckpointMessages() throws IOException {
+    TapCheckpoints cp = new TapCheckpoints("s",
+        new FileTapCheckpointStore(dir));
+    cp.record(TapMessages.startCheckpoint(3, 10));
+    cp.record(TapMessages.mutation(3, "k", new byte[0], 0));
+    assertEquals(Long.valueOf(10), cp.getCheckpoints().get((short) 3));
+    cp.record(TapMessages.endCheckpoint(3, 10));
+    cp.record(TapMessages.startCheckpoint(5, 2));
+    Map<Short, Long> expected = new HashMap<Short, Long>();
+    expected.put((short) 3, 11L);
+    expected.put((short) 5, 2L);
+    assertEquals(expected, cp.getCheckpoints());
+  }
+
+  @Test
+  public void testSavedCheckpointsAreLoaded() throws IOException {
+    TapCheckpointStore store = new FileTapCheckpointStore(dir);
+    TapCheckpoints cp = new TapCheckpoints("s", store);
+    cp.record(TapMessages.endCheckpoint(1, 7));
+    cp.record(TapMessages.startCheckpoint(2, 4));
+    cp.save();
+    cp.record(TapMessages.endCheckpoint(2, 4));
+    cp.save();
+
+    TapCheckpoints restarted = new TapCheckpoints("s", store);
+    assertEquals(cp.getCheckpoints(), restarted.getCheckpoints());
+    assertTrue(new TapCheckpoints("other", store).getCheckpoints().isEmpty());
+  }
+
+  @Test
+  public void testRequestResumesFromCheckpoints() throws IOException {
+    TapCheckpoints cp = new TapCheckpoints("s",
+        new FileTapCheckpointStore(dir));
+    RequestMessage fresh = cp.createRequest();
+    assertTrue(fresh.getFlags().contains(TapRequestFlag.BACKFILL));
+    assertTrue(fresh.getFlags().contains(TapRequestFlag.CHECKPOINT));
+
+    cp.record(TapMessages.startCheckpoint(0, 9));
+    RequestMessage resume = cp.createRequest();
+    assertTrue(resume.getFlags().contains(TapRequestFlag.CHECKPOINT));
+    assertTrue(resume.getFlags().contains(TapRequestFlag.SUPPORT_ACK));
+    assertFalse(resume.getFlags().contains(TapRequestFlag.BACKFILL));
+    assertTrue(resume.getBytes().remaining() > fresh.getBytes().remaining());
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.vbucket.config.Bucket;
+import com.couchbase.client.vbucket.config.Config;
+import com.couchbase.client.vbucket.config.DefaultConfig;
+import com.couchbase.client.vbucket.config.Node;
+import com.couchbase.client.vbucket.config.VBucket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.ops.TapOperation;
+import net.spy.memcached.tapmessage.RequestMessage;
+import net.spy.memcached.tapmessage.TapStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how TapClient follows vbucket moves.
+ */
+public class TapClientTest {
+
+  private static Config config(List<String> servers, int... masters) {
+    List<VBucket> vbuckets = new ArrayList<VBucket>();
+    for (int master : masters) {
+      vbuckets.add(new VBucket(master, new int[] {-1}));
+    }
+    return new DefaultConfig(DefaultHashAlgorithm.NATIVE_HASH,
+        servers.size(), 1, masters.length, servers, vbuckets,
+        new ArrayList<URL>());
+  }
+
+  @Test
+  public void testUnchangedConfigMovesNothing() {
+    List<String> servers = Arrays.asList("a:11210", "b:11210");
+    assertTrue(TapClient.movedVbuckets(config(servers, 0, 1, 0, 1),
+        config(servers, 0, 1, 0, 1)).isEmpty());
+  }
+
+  @Test
+  public void testGroupsMovedVbucketsByNewMaster() {
+    Config old = config(Arrays.asList("a:11210", "b:11210"), 0, 1, 0, 0);
+    Config now = config(Arrays.asList("b:11210", "c:11210", "a:11210"),
+        2, 0, 1, 0);
+    Map<String, List<Short>> moved = TapClient.movedVbuckets(old, now);
+    assertEquals(2, moved.size());
+    assertEquals(Arrays.asList((short) 2), moved.get("c:11210"));
+    assertEquals(Arrays.asList((short) 3), moved.get("b:11210"));
+  }
+
+  @Test
+  public void testVbucketsWithoutMasterAreSkipped() {
+    List<String> servers = Arrays.asList("a:11210", "b:11210");
+    Map<String, List<Short>> moved = TapClient.movedVbuckets(
+        config(servers, 0, 1), config(servers, -1, 0));
+    assertEquals(1, moved.size());
+    assertEquals(Arrays.asList((short) 1), moved.get("a:11210"));
+  }
+
+  @Test
+  public void testReopensOnePartPerMaster() throws Exception {
+    final List<String> opened = new ArrayList<String>();
+    final Set<TapStream> open = new HashSet<TapStream>();
+    TapClient client = new TapClient(
+        Arrays.asList(URI.create("http://localhost:8091/pools")),
+        "default", "") {
+      @Override
+      TapStream openCustom(String id, RequestMessage message, TapStream ts) {
+        ts.addOp(runningOp());
+        return ts;
+      }
+
+      @Override
+      TapStream openPart(String master, String id, RequestMessage request,
+          Bucket bucket) {
+        TapStream part = new TapStream();
+        opened.add(master + " " + id);
+        open.add(part);
+        return part;
+      }
+
+      @Override
+      void closePart(TapStream part) {
+        open.remove(part);
+      }
+    };
+    client.tapResume(new TapCheckpoints("s", new TapCheckpointStore() {
+      public Map<Short, Long> load(String name) {
+        return Collections.emptyMap();
+      }
+
+      public void store(String name, Map<Short, Long> checkpoints) {
+      }
+    }));
+
+    List<String> servers = Arrays.asList("a:11210", "b:11210", "c:11210");
+    TapClient.ConfigListener listener = client.new ConfigListener();
+    listener.reconfigure(bucket(config(servers, 0, 0, 1, 1)));
+    listener.reconfigure(bucket(config(servers, 2, 0, 1, 1)));
+    assertEquals(1, open.size());
+    listener.reconfigure(bucket(config(servers, 2, 2, 1, 1)));
+    assertEquals(1, open.size());
+    assertEquals(Arrays.asList("c:11210 s_0", "c:11210 s_0"), opened);
+
+    // Both vbuckets move on, so the part of c has nothing left to stream.
+    listener.reconfigure(bucket(config(servers, 1, 1, 1, 1)));
+    assertEquals(1, open.size());
+    assertEquals("b:11210 s_1", opened.get(2));
+  }
+
+  /**
+   * A tap operation that is still streaming.
+   */
+  private static TapOperation runningOp() {
+    return (TapOperation) Proxy.newProxyInstance(
+        TapClientTest.class.getClassLoader(),
+        new Class<?>[] {TapOperation.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return method.getReturnType() == boolean.class
+              ? Boolean.FALSE : null;
+          }
+        });
+  }
+
+  private static Bucket bucket(Config config) {
+    return new Bucket("default", config, URI.create("http://a:8091/"),
+        new ArrayList<Node>());
+  }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapAck;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapResponseFlag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests archiving tap messages to segment files and replaying them.
+ */
+public class TapFileSinkTest {
+
+  private File dir;
+  private final List<String> replayed = new ArrayList<String>();
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("segments", "");
+    assertTrue(dir.delete());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * A client that records the sets and deletes replayed into it.
+   */
+  private CouchbaseClientIF recordingClient() {
+    return (CouchbaseClientIF) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {CouchbaseClientIF.class},
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("set")) {
+              CachedData d = (CachedData) args[2];
+              replayed.add("set " + args[0] + " " + d.getFlags() + " "
+                  + new String(d.getData()));
+            } else if (method.getName().equals("delete")) {
+              replayed.add("delete " + args[0]);
+            } else {
+              throw new UnsupportedOperationException(method.getName());
+            }
+            FutureTask<Boolean> done = new FutureTask<Boolean>(
+                new Callable<Boolean>() {
+                  public Boolean call() {
+                    return Boolean.TRUE;
+                  }
+                });
+            done.run();
+            return done;
+          }
+        });
+  }
+
+  private TapFileSink archive(long segmentSize, Object... messages)
+    throws InterruptedException, IOException {
+    QueueTapClient client = new QueueTapClient();
+    for (Object m : messages) {
+      client.add(m);
+    }
+    TapFileSink sink = new TapFileSink(client, dir, segmentSize,
+        1, 0, TimeUnit.HOURS);
+    sink.start();
+    assertTrue(sink.awaitCompletion(10, TimeUnit.SECONDS));
+    return sink;
+  }
+
+  private static ResponseMessage mutation(int vbucket, String key,
+      String value, int itemFlags) {
+    return new ResponseMessage(TapMessages.mutationFrame(vbucket, key,
+        value.getBytes(), 0,
+        TapResponseFlag.TAP_FLAG_NETWORK_BYTE_ORDER.getFlags(), itemFlags));
+  }
+
+  @Test
+  public void testReplaysArchivedChanges() throws Exception {
+    TapFileSink sink = archive(TapFileSink.DEFAULT_SEGMENT_SIZE,
+        mutation(0, "a", "1", 5),
+        TapMessages.startCheckpoint(0, 1),
+        TapMessages.deletion(1, "b"),
+        mutation(1, "a", "2", 0));
+    assertEquals(3, sink.getRecordCount());
+    assertEquals(1, sink.getSegmentCount());
+    assertTrue(sink.getSyncCount() >= 1);
+
+    TapFileReplayer replayer = new TapFileReplayer(dir, 2);
+    assertEquals(3, replayer.replay(recordingClient()));
+    assertEquals(Arrays.asList("set a 5 1", "delete b", "set a 0 2"),
+        replayed);
+    assertEquals(0, replayer.getFailureCount());
+  }
+
+  @Test
+  public void testAcksAfterSync() throws Exception {
+    QueueTapClient client = new QueueTapClient();
+    client.add(new TapDelivery(new ResponseMessage(TapMessages.mutationFrame(
+        0, "k", "v".getBytes(), 7, 0, 0)),
+        new TapAck(null, null, TapOpcode.MUTATION, 7, null)));
+    client.add(new TapAck(null, null, TapOpcode.NOOP, 8, null));
+    TapFileSink sink = new TapFileSink(client, dir);
+    sink.start();
+    assertTrue(sink.awaitCompletion(10, TimeUnit.SECONDS));
+    assertEquals(2, client.getAcked().size());
+    assertEquals(7, client.getAcked().get(0).getOpaque());
+    assertEquals(8, client.getAcked().get(1).getOpaque());
+    assertEquals(0, sink.getPendingAcks());
+    assertEquals(1, sink.getSyncCount());
+  }
+
+  @Test
+  public void testWriteFailureIsReported() throws Exception {
+    QueueTapClient client = new QueueTapClient();
+    client.add(new TapDelivery(new ResponseMessage(TapMessages.mutationFrame(
+        0, "k", "v".getBytes(), 7, 0, 0)),
+        new TapAck(null, null, TapOpcode.MUTATION, 7, null)));
+    TapFileSink sink = new TapFileSink(client, dir);
+    assertTrue(dir.delete());
+    sink.start();
+    try {
+      sink.awaitCompletion(10, TimeUnit.SECONDS);
+      fail("Expected the missing directory to fail the sink");
+    } catch (IOException e) {
+      assertEquals(e, sink.getFailure());
+    }
+    assertTrue(client.getAcked().isEmpty());
+  }
+
+  @Test
+  public void testRotatesSegments() throws Exception {
+    List<Object> messages = new ArrayList<Object>();
+    for (int i = 0; i < 10; i++) {
+      messages.add(mutation(i, "key" + i, "value" + i, 0));
+    }
+    TapFileSink sink = archive(60, messages.toArray());
+    assertEquals(5, sink.getSegmentCount());
+    assertEquals(5, TapFileSink.listSegments(dir).length);
+
+    new TapFileReplayer(dir).replay(recordingClient());
+    assertEquals(10, replayed.size());
+    assertEquals("set key9 0 value9", replayed.get(9));
+
+    // A new sink continues after the existing segments.
+    archive(60, mutation(0, "more", "x", 0));
+    File[] segments = TapFileSink.listSegments(dir);
+    assertEquals(6, segments.length);
+    assertEquals("00000000000000000005.tap", segments[5].getName());
+  }
+
+  @Test
+  public void testIgnoresPartialRecordAtTheEnd() throws Exception {
+    archive(60, mutation(0, "a", "1", 0), mutation(0, "b", "2", 0),
+        mutation(0, "c", "3", 0));
+    File[] segments = TapFileSink.listSegments(dir);
+    assertEquals(2, segments.length);
+    truncate(segments[1], 3);
+
+    assertEquals(2, new TapFileReplayer(dir).replay(recordingClient()));
+    assertEquals(Arrays.asList("set a 0 1", "set b 0 2"), replayed);
+
+    truncate(segments[0], 1);
+    try {
+      new TapFileReplayer(dir).replay(recordingClient());
+      fail("Damaged segment was replayed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testRestartAfterCrash() throws Exception {
+    archive(60, mutation(0, "a", "1", 0), mutation(0, "b", "2", 0),
+        mutation(0, "c", "3", 0));
+    File[] segments = TapFileSink.listSegments(dir);
+    assertEquals(2, segments.length);
+    long length = segments[1].length();
+    truncate(segments[1], 3);
+
+    archive(60, mutation(0, "d", "4", 0));
+    assertEquals(3, TapFileSink.listSegments(dir).length);
+    assertEquals(TapFileSink.FILE_HEADER_SIZE, segments[1].length());
+    assertTrue(length > segments[1].length());
+
+    // A crash right after a segment was created leaves it empty.
+    File empty = new File(dir, "00000000000000000003.tap");
+    assertTrue(empty.createNewFile());
+    archive(60, mutation(0, "e", "5", 0));
+    segments = TapFileSink.listSegments(dir);
+    assertEquals(4, segments.length);
+    assertEquals("00000000000000000003.tap", segments[3].getName());
+
+    assertEquals(4, new TapFileReplayer(dir).replay(recordingClient()));
+    assertEquals(Arrays.asList("set a 0 1", "set b 0 2", "set d 0 4",
+        "set e 0 5"), replayed);
+  }
+
+  private static void truncate(File file, int bytes) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - bytes);
+    } finally {
+      raf.close();
+    }
+  }
+}
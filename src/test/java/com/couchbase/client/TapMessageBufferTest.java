@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.tapmessage.TapAck;
+import net.spy.memcached.tapmessage.TapOpcode;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the watermarks of the TapMessageBuffer.
+ */
+public class TapMessageBufferTest {
+
+  private static final int SIZE = TapMessageBuffer.ACK_SIZE;
+
+  private static TapAck ack(int opaque) {
+    return new TapAck(null, null, TapOpcode.MUTATION, opaque, null);
+  }
+
+  @Test
+  public void testBlocksAtHighWatermarkUntilLowWatermark() throws Exception {
+    TapMessageBuffer buffer = new TapMessageBuffer(4 * SIZE, 2 * SIZE);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(ack(i)));
+    }
+    assertEquals(4 * SIZE, buffer.getBufferedBytes());
+    assertFalse(buffer.offer(ack(4)));
+    assertEquals(1, buffer.getPauseCount());
+
+    buffer.poll();
+    assertFalse(buffer.offer(ack(4)));
+    buffer.poll();
+    assertEquals(2 * SIZE, buffer.getBufferedBytes());
+    assertTrue(buffer.offer(ack(4)));
+    assertEquals(4 * SIZE, buffer.getPeakBufferedBytes());
+  }
+
+  @Test
+  public void testAdmitsIntoEmptyBuffer() throws Exception {
+    TapMessageBuffer buffer = new TapMessageBuffer(SIZE / 2, 0);
+    assertTrue(buffer.offer(ack(0)));
+    assertFalse(buffer.offer(ack(1)));
+    assertEquals(0, ((TapAck) buffer.poll()).getOpaque());
+    assertTrue(buffer.offer(ack(1)));
+  }
+
+  @Test
+  public void testPutResumesWhenDrained() throws Exception {
+    final TapMessageBuffer buffer = new TapMessageBuffer(2 * SIZE, 0);
+    buffer.put(ack(0));
+    buffer.put(ack(1));
+    final CountDownLatch put = new CountDownLatch(1);
+    Thread producer = new Thread() {
+      public void run() {
+        try {
+          buffer.put(ack(2));
+          put.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    producer.start();
+    assertFalse(put.await(100, TimeUnit.MILLISECONDS));
+
+    List<Object> drained = new ArrayList<Object>();
+    assertEquals(2, buffer.drainTo(drained));
+    assertTrue(put.await(1, TimeUnit.SECONDS));
+    assertEquals(2, ((TapAck) buffer.take()).getOpaque());
+    assertNull(buffer.poll());
+    assertEquals(0, buffer.getBufferedBytes());
+    assertTrue(buffer.getPausedTime(TimeUnit.NANOSECONDS) > 0);
+  }
+}
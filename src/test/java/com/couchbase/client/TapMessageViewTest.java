@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.nio.ByteBuffer;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+import net.spy.memcached.tapmessage.TapOpcode;
+import net.spy.memcached.tapmessage.TapResponseFlag;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that TapMessageView decodes frames like ResponseMessage does.
+ */
+public class TapMessageViewTest {
+
+  private static final int NETWORK_ORDER =
+      TapResponseFlag.TAP_FLAG_NETWORK_BYTE_ORDER.getFlags();
+
+  private static byte[] bytes(ByteBuffer b) {
+    byte[] copy = new byte[b.remaining()];
+    b.get(copy);
+    return copy;
+  }
+
+  @Test
+  public void testDecodesMutation() {
+    byte[] frame = TapMessages.mutationFrame(12, "user::1",
+        "{\"a\":1}".getBytes(), 99, NETWORK_ORDER, 0x02000006);
+    ResponseMessage expected = new ResponseMessage(frame);
+    TapMessageView view = new TapMessageView().wrap(ByteBuffer.wrap(frame));
+
+    assertEquals(TapOpcode.MUTATION, view.getOpcode());
+    assertTrue(view.is(TapOpcode.MUTATION));
+    assertEquals(expected.getVbucket(), view.getVbucket());
+    assertEquals(expected.getOpaque(), view.getOpaque());
+    assertEquals(expected.getItemFlags(), view.getItemFlags());
+    assertEquals(frame.length, view.getLength());
+    assertArrayEquals(expected.getKey().getBytes(), bytes(view.getKey()));
+    assertArrayEquals(expected.getValue(), bytes(view.getValue()));
+    assertTrue(view.hasFlag(TapResponseFlag.TAP_FLAG_NETWORK_BYTE_ORDER));
+    assertFalse(view.hasFlag(TapResponseFlag.TAP_ACK));
+  }
+
+  @Test
+  public void testReadsFrameAtBufferPosition() {
+    byte[] frame = TapMessages.mutationFrame(1, "abc", new byte[] {7}, 0, 0,
+        0);
+    ByteBuffer buf = ByteBuffer.allocate(frame.length + 10);
+    buf.position(10);
+    buf.put(frame);
+    buf.position(10);
+    TapMessageView view = new TapMessageView().wrap(buf);
+    assertTrue(view.keyStartsWith("ab".getBytes()));
+    assertFalse(view.keyStartsWith("abd".getBytes()));
+    assertFalse(view.keyStartsWith("abcd".getBytes()));
+    assertEquals(1, view.getValueLength());
+    assertEquals(10, buf.position());
+
+    ResponseMessage copy = view.copy();
+    buf.put(10 + frame.length - 1, (byte) 8);
+    assertEquals("abc", copy.getKey());
+    assertArrayEquals(new byte[] {7}, copy.getValue());
+    assertEquals(8, view.getValue().get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsIncompleteFrame() {
+    byte[] frame = TapMessages.mutationFrame(1, "abc", new byte[4], 0, 0, 0);
+    new TapMessageView().wrap(ByteBuffer.wrap(frame, 0, frame.length - 1));
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+
+package com.couchbase.client;
+
+import java.nio.ByteBuffer;
+
+import net.spy.memcached.tapmessage.ResponseMessage;
+
+/**
+ * Builds tap messages as the server would send them.
+ */
+public final class TapMessages {
+
+  private static final byte MAGIC_REQ = (byte) 0x80;
+  private static final byte MUTATION = 0x41;
+  private static final byte DELETE = 0x42;
+  private static final byte START_CHECKPOINT = 0x46;
+  private static final byte END_CHECKPOINT = 0x47;
+  private static final int EXTRAS = 16;
+  private static final int DELETE_EXTRAS = 8;
+
+  private TapMessages() {
+    // utility class
+  }
+
+  /**
+   * Build a mutation.
+   */
+  public static ResponseMessage mutation(int vbucket, String key,
+      byte[] value, int opaque) {
+    return new ResponseMessage(mutationFrame(vbucket, key, value, opaque,
+        0, 0));
+  }
+
+  /**
+   * Build the frame of a mutation with the given tap and item flags.
+   */
+  public static byte[] mutationFrame(int vbucket, String key, byte[] value,
+      int opaque, int tapFlags, int itemFlags) {
+    byte[] k = key.getBytes();
+    ByteBuffer b = header(MUTATION, vbucket, EXTRAS, k.length, value.length,
+        opaque, tapFlags);
+    b.putInt(itemFlags);
+    b.putInt(0);
+    b.put(k);
+    b.put(value);
+    return b.array();
+  }
+
+  /**
+   * Build a deletion.
+   */
+  public static ResponseMessage deletion(int vbucket, String key) {
+    byte[] k = key.getBytes();
+    ByteBuffer b = header(DELETE, vbucket, DELETE_EXTRAS, k.length, 0, 0, 0);
+    b.put(k);
+    return new ResponseMessage(b.array());
+  }
+
+  /**
+   * Build the start of a checkpoint.
+   */
+  public static ResponseMessage startCheckpoint(int vbucket, long id) {
+    return checkpoint(START_CHECKPOINT, vbucket, id);
+  }
+
+  /**
+   * Build the end of a checkpoint.
+   */
+  public static ResponseMessage endCheckpoint(int vbucket, long id) {
+    return checkpoint(END_CHECKPOINT, vbucket, id);
+  }
+
+  private static ResponseMessage checkpoint(byte opcode, int vbucket,
+      long id) {
+    ByteBuffer b = header(opcode, vbucket, EXTRAS, 0, 8, 0, 0);
+    b.putLong(0);
+    b.putLong(id);
+    return new ResponseMessage(b.array());
+  }
+
+  /**
+   * Write the header and the common extras, leaving the position after
+   * the reserved bytes.
+   */
+  private static ByteBuffer header(byte opcode, int vbucket, int extras,
+      int keylen, int valuelen, int opaque, int tapFlags) {
+    ByteBuffer b = ByteBuffer.allocate(24 + extras + keylen + valuelen);
+    b.put(MAGIC_REQ);
+    b.put(opcode);
+    b.putShort((short) keylen);
+    b.put((byte) extras);
+    b.put((byte) 0);
+    b.putShort((short) vbucket);
+    b.putInt(extras + keylen + valuelen);
+    b.putInt(opaque);
+    b.putLong(0);
+    b.putShort((short) 0);
+    b.putShort((short) tapFlags);
+    b.put((byte) 0);
+    b.put(new byte[3]);
+    return b;
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.protocol.views.HttpOperation;
+import com.couchbase.client.protocol.views.NoDocsOperationImpl;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.Stale;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewOperation.ViewCallback;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseNoDocs;
+import com.couchbase.client.protocol.views.ViewResponseReduced;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowNoDocs;
+import com.couchbase.client.protocol.views.ViewRowReduced;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.ops.OperationStatus;
+
+import org.apache.http.message.BasicHttpRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests how the ViewKeyBatcher groups lookups and splits the responses.
+ */
+public class ViewKeyBatcherTest {
+
+  private static final OperationStatus OK = new OperationStatus(true, "OK");
+
+  private final View view = new View("default", "beer", "by_name", true,
+      false) { };
+  private final View reduceView = new View("default", "beer", "by_type",
+      true, true) { };
+
+  /**
+   * Records the queries the batcher sends.
+   */
+  private static class RecordingSender implements ViewKeyBatcher.Sender {
+    private final List<Query> queries = new ArrayList<Query>();
+    private final List<ViewCallback> callbacks =
+        new ArrayList<ViewCallback>();
+    private final List<HttpOperation> ops = new ArrayList<HttpOperation>();
+
+    public long getViewTimeout(Query query) {
+      return 5000;
+    }
+
+    public synchronized HttpOperation createViewOperation(View view,
+        Query query, ViewCallback callback) {
+      HttpOperation op = new NoDocsOperationImpl(
+          new BasicHttpRequest("GET", "/"), callback);
+      queries.add(query);
+      callbacks.add(callback);
+      ops.add(op);
+      return op;
+    }
+
+    public void addOp(HttpOperation op) {
+    }
+
+    private synchronized int sent() {
+      return queries.size();
+    }
+
+    private void respond(int index, ViewResponse response) {
+      callbacks.get(index).gotData(response);
+      callbacks.get(index).receivedStatus(OK);
+      callbacks.get(index).complete();
+    }
+  }
+
+  private final RecordingSender sender = new RecordingSender();
+  private ViewKeyBatcher batcher;
+
+  @After
+  public void tearDown() {
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+  }
+
+  private static ViewResponse rows(String... keys) {
+    Collection<ViewRow> rows = new LinkedList<ViewRow>();
+    for (int i = 0; i < keys.length; i++) {
+      rows.add(new ViewRowNoDocs("doc" + i, keys[i], "v" + i));
+    }
+    return new ViewResponseNoDocs(rows, new LinkedList<RowError>());
+  }
+
+  private static List<String> ids(HttpFuture<ViewResponse> future)
+    throws Exception {
+    List<String> ids = new ArrayList<String>();
+    for (ViewRow row : future.get()) {
+      ids.add(row.getId());
+    }
+    return ids;
+  }
+
+  @Test
+  public void testSendsEarlyWhenFull() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 3);
+    HttpFuture<ViewResponse> string = batcher.lookup(view, new Query(), "a");
+    HttpFuture<ViewResponse> other = batcher.lookup(view,
+        new Query().setStale(Stale.OK), "a");
+    HttpFuture<ViewResponse> number = batcher.lookup(view, new Query(), "5");
+    assertEquals(0, sender.sent());
+    HttpFuture<ViewResponse> array = batcher.lookup(view, new Query(),
+        "[\"x\", 1]");
+    assertEquals(1, sender.sent());
+    assertEquals(Arrays.asList("a", "5", "[\"x\",1]"),
+        sender.queries.get(0).getKeys());
+
+    sender.respond(0, rows("5", "a", "[\"x\",1]", "a"));
+    assertEquals(Arrays.asList("doc1", "doc3"), ids(string));
+    assertEquals(Arrays.asList("doc0"), ids(number));
+    assertEquals(Arrays.asList("doc2"), ids(array));
+    assertTrue(string.getStatus().isSuccess());
+    assertFalse(other.isDone());
+  }
+
+  @Test
+  public void testTimerSendsBatch() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 20, TimeUnit.MILLISECONDS, 100);
+    batcher.lookup(view, new Query(), "a");
+    batcher.lookup(view, new Query(), "b");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sender.sent() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, sender.sent());
+    assertEquals(2, sender.queries.get(0).getKeys().size());
+  }
+
+  @Test
+  public void testDuplicateAndMissingKeys() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 100);
+    HttpFuture<ViewResponse> first = batcher.lookup(view, new Query(), "a");
+    HttpFuture<ViewResponse> second = batcher.lookup(view, new Query(), "a");
+    HttpFuture<ViewResponse> missing = batcher.lookup(view, new Query(), "b");
+    batcher.shutdown();
+    assertEquals(Arrays.asList("a", "b"), sender.queries.get(0).getKeys());
+
+    sender.respond(0, rows("a"));
+    assertEquals(Arrays.asList("doc0"), ids(first));
+    assertEquals(Arrays.asList("doc0"), ids(second));
+    assertEquals(0, missing.get().size());
+    assertTrue(missing.getStatus().isSuccess());
+  }
+
+  @Test
+  public void testErrorFailsEveryWaiter() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 100);
+    HttpFuture<ViewResponse> a = batcher.lookup(view, new Query(), "a");
+    HttpFuture<ViewResponse> b = batcher.lookup(view, new Query(), "b");
+    batcher.shutdown();
+    sender.callbacks.get(0).receivedStatus(
+        new OperationStatus(false, "boom"));
+    sender.callbacks.get(0).complete();
+    assertNull(a.get());
+    assertNull(b.get());
+    assertFalse(a.getStatus().isSuccess());
+    assertFalse(b.getStatus().isSuccess());
+  }
+
+  @Test
+  public void testTimeoutFailsEveryWaiter() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 100);
+    HttpFuture<ViewResponse> a = batcher.lookup(view, new Query(), "a");
+    HttpFuture<ViewResponse> b = batcher.lookup(view, new Query(), "b");
+    batcher.shutdown();
+    sender.ops.get(0).timeOut();
+    for (HttpFuture<ViewResponse> f : Arrays.asList(a, b)) {
+      try {
+        f.get();
+        fail("Expected the lookup to time out");
+      } catch (ExecutionException e) {
+        assertFalse(f.getStatus().isSuccess());
+      }
+    }
+  }
+
+  @Test
+  public void testReduceLookupsAreGrouped() throws Exception {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 2);
+    HttpFuture<ViewResponse> a = batcher.lookup(reduceView,
+        new Query().setReduce(true), "a");
+    HttpFuture<ViewResponse> b = batcher.lookup(reduceView,
+        new Query().setReduce(true), "b");
+    assertTrue(sender.queries.get(0).willGroup());
+
+    Collection<ViewRow> reduced = new LinkedList<ViewRow>();
+    reduced.add(new ViewRowReduced("b", "2"));
+    reduced.add(new ViewRowReduced("a", "1"));
+    sender.respond(0, new ViewResponseReduced(reduced,
+        new LinkedList<RowError>()));
+    assertTrue(a.get() instanceof ViewResponseReduced);
+    assertEquals("1", a.get().iterator().next().getValue());
+    assertEquals("2", b.get().iterator().next().getValue());
+
+    batcher.lookup(reduceView, new Query(), "a");
+    batcher.lookup(reduceView, new Query(), "b");
+    assertFalse(sender.queries.get(1).willReduce());
+    assertTrue(sender.queries.get(1).toString().contains("reduce=false"));
+  }
+
+  @Test
+  public void testRejectsQueriesThatCannotBeBatched() {
+    batcher = new ViewKeyBatcher(sender, 1, TimeUnit.HOURS, 100);
+    List<Query> rejected = Arrays.asList(
+        new Query().setIncludeDocs(true),
+        new Query().setKey("a"),
+        new Query().setKeys(Arrays.asList("a")),
+        new Query().setRange("a", "b"),
+        new Query().setReduce(true).setGroupLevel(1));
+    for (Query query : rejected) {
+      try {
+        batcher.lookup(reduceView, query, "a");
+        fail("Expected " + query + " to be rejected");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    assertEquals(0, sender.sent());
+  }
+}
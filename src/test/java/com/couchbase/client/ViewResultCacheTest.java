@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client;
+
+import com.couchbase.client.internal.HttpCompletionListener;
+import com.couchbase.client.internal.HttpFuture;
+import com.couchbase.client.protocol.views.Query;
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.Stale;
+import com.couchbase.client.protocol.views.View;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseNoDocs;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowNoDocs;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.ops.OperationStatus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the bookkeeping of the ViewResultCache.
+ */
+public class ViewResultCacheTest {
+
+  private static final OperationStatus OK = new OperationStatus(true, "OK");
+
+  private final View view = new View("default", "beer", "by_name", true,
+      false) { };
+
+  @Test
+  public void testOnlyStaleQueriesAreCacheable() {
+    ViewResultCache cache = new ViewResultCache(1 << 20, 10, TimeUnit.SECONDS);
+    assertFalse(cache.isCacheable(view, new Query()));
+    assertFalse(cache.isCacheable(view, new Query().setStale(Stale.FALSE)));
+    assertTrue(cache.isCacheable(view, new Query().setStale(Stale.OK)));
+    assertTrue(cache.isCacheable(view,
+        new Query().setStale(Stale.UPDATE_AFTER)));
+    assertFalse(cache.isCacheable(view,
+        new Query().setStale(Stale.OK).setIncludeDocs(true)));
+  }
+
+  @Test
+  public void testZeroTtlDisablesView() {
+    ViewResultCache cache = new ViewResultCache(1 << 20, 10, TimeUnit.SECONDS);
+    cache.setTtl(view, 0, TimeUnit.SECONDS);
+    assertFalse(cache.isCacheable(view, new Query().setStale(Stale.OK)));
+  }
+
+  @Test
+  public void testExpiredEntriesAreNotServed() throws Exception {
+    ViewResultCache cache = new ViewResultCache(1 << 20, 10, TimeUnit.SECONDS);
+    ViewResponse response = response(3);
+    cache.store("a", response, OK, null, TimeUnit.SECONDS.toNanos(10));
+    assertSame(response, cache.peek("a"));
+    cache.store("b", response, OK, null, 0);
+    assertNull(cache.peek("b"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    long size = ViewResultCache.estimate(response(10));
+    ViewResultCache cache = new ViewResultCache(size * 2, 10,
+        TimeUnit.SECONDS);
+    long ttl = TimeUnit.SECONDS.toNanos(10);
+    cache.store("a", response(10), OK, null, ttl);
+    cache.store("b", response(10), OK, null, ttl);
+    cache.peek("a");
+    cache.store("c", response(10), OK, null, ttl);
+    assertEquals(2, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+    assertNull(cache.peek("b"));
+    assertTrue(cache.peek("a") != null);
+    assertTrue(cache.getBytes() <= size * 2);
+  }
+
+  @Test
+  public void testInvalidateView() {
+    ViewResultCache cache = new ViewResultCache(1 << 20, 10, TimeUnit.SECONDS);
+    long ttl = TimeUnit.SECONDS.toNanos(10);
+    cache.store(view.getURI() + "?stale=ok", response(1), OK, null, ttl);
+    cache.store("/other?stale=ok", response(1), OK, null, ttl);
+    cache.store(view.getURI() + "_and_age?stale=ok", response(1), OK, null,
+        ttl);
+    cache.invalidate(view);
+    assertEquals(2, cache.getSize());
+    assertNull(cache.peek(view.getURI() + "?stale=ok"));
+  }
+
+  @Test
+  public void testHitRunsListeners() throws Exception {
+    ViewResultCache cache = new ViewResultCache(1 << 20, 10, TimeUnit.SECONDS);
+    Query query = new Query().setStale(Stale.OK);
+    ViewResponse response = response(1);
+    cache.store(view.getURI() + query.toString(), response, OK, null,
+        TimeUnit.SECONDS.toNanos(10));
+    HttpFuture<ViewResponse> future = cache.get(null, view, query);
+    final List<ViewResponse> results = new LinkedList<ViewResponse>();
+    future.addListener(new HttpCompletionListener<ViewResponse>() {
+      public void onComplete(HttpFuture<ViewResponse> f) {
+        try {
+          results.add(f.get());
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }, null);
+    assertEquals(1, results.size());
+    assertSame(response, results.get(0));
+    assertEquals(1, cache.getHits());
+  }
+
+  private static ViewResponse response(int rows) {
+    List<ViewRow> r = new LinkedList<ViewRow>();
+    for (int i = 0; i < rows; i++) {
+      r.add(new ViewRowNoDocs("doc" + i, "\"key" + i + "\"", "null"));
+    }
+    return new ViewResponseNoDocs(r, new LinkedList<RowError>());
+  }
+}
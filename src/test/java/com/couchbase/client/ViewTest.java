@@ -587,7 +587,8 @@ public class ViewTest {
     Query query = new Query();
     query.setReduce(false);
     query.setStale(Stale.FALSE);
-    Paginator op = client.paginatedQuery(view, query, 10);
+    // Without prefetching so the page after the delete is requested later.
+    Paginator op = client.paginatedQuery(view, query, 10, 0);
 
     int count = 0;
     while (op.hasNext()) {
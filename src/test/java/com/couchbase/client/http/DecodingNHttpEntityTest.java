@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.util.EntityUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests decoding of compressed response bodies.
+ */
+public class DecodingNHttpEntityTest {
+
+  private static final String BODY;
+
+  static {
+    StringBuilder sb = new StringBuilder("{\"rows\":[");
+    for (int i = 0; i < 2000; i++) {
+      sb.append("{\"id\":\"doc").append(i).append("\",\"key\":").append(i)
+        .append(",\"value\":null},");
+    }
+    BODY = sb.append("{}]}").toString();
+  }
+
+  @Test
+  public void testIdentity() throws Exception {
+    assertEquals(BODY, decode(BODY.getBytes("UTF-8"), null, 1000));
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(BODY.getBytes("UTF-8"));
+    gzip.close();
+    assertEquals(BODY, decode(out.toByteArray(), "gzip", 3));
+  }
+
+  @Test
+  public void testDeflate() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate = new DeflaterOutputStream(out);
+    deflate.write(BODY.getBytes("UTF-8"));
+    deflate.close();
+    assertEquals(BODY, decode(out.toByteArray(), "deflate", 1));
+  }
+
+  @Test
+  public void testRawDeflate() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflate = new DeflaterOutputStream(out,
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    deflate.write(BODY.getBytes("UTF-8"));
+    deflate.close();
+    assertEquals(BODY, decode(out.toByteArray(), "deflate", 512));
+  }
+
+  @Test
+  public void testGzipHeaderWithName() throws Exception {
+    byte[] header = {0x1f, (byte) 0x8b, 8, 8, 0, 0, 0, 0, 0, 3, 'a', 0};
+    assertEquals(12, DecodingNHttpEntity.gzipHeaderLength(header));
+    byte[] partial = new byte[11];
+    System.arraycopy(header, 0, partial, 0, 11);
+    assertEquals(-1, DecodingNHttpEntity.gzipHeaderLength(partial));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupportedEncoding() throws Exception {
+    decode(new byte[0], "br", 1);
+  }
+
+  private static String decode(byte[] body, String encoding, int chunk)
+    throws IOException {
+    BasicHttpEntity raw = new BasicHttpEntity();
+    raw.setContentType("application/json; charset=utf-8");
+    raw.setContentEncoding(encoding);
+    DecodingNHttpEntity entity = new DecodingNHttpEntity(raw, null);
+    ChunkedDecoder decoder = new ChunkedDecoder(body, chunk);
+    while (!decoder.isCompleted()) {
+      entity.consumeContent(decoder, null);
+    }
+    assertNull(entity.getContentEncoding());
+    return EntityUtils.toString(entity);
+  }
+
+  /**
+   * Hands out the body a few bytes per read, like a slow connection.
+   */
+  private static final class ChunkedDecoder implements ContentDecoder {
+    private final byte[] body;
+    private final int chunk;
+    private int pos;
+    private boolean paused;
+
+    private ChunkedDecoder(byte[] body, int chunk) {
+      this.body = body;
+      this.chunk = chunk;
+    }
+
+    public int read(ByteBuffer dst) {
+      if (paused || pos == body.length) {
+        paused = false;
+        return 0;
+      }
+      int n = Math.min(Math.min(chunk, dst.remaining()), body.length - pos);
+      dst.put(body, pos, n);
+      pos += n;
+      paused = true;
+      return n;
+    }
+
+    public boolean isCompleted() {
+      return pos == body.length;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.http;
+
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the sharing of the view I/O reactor.
+ */
+public class ViewIOReactorTest {
+
+  @Test
+  public void testSharedReactorIsReferenceCounted() throws Exception {
+    HttpParams params = new SyncBasicHttpParams();
+    ViewIOReactor first = ViewIOReactor.acquireShared(1, params);
+    ViewIOReactor second = ViewIOReactor.acquireShared(1, params);
+    assertSame(first, second);
+    first.release(1000);
+    assertFalse(first.isShutdown());
+    second.release(1000);
+    assertTrue(first.isShutdown());
+    second.release(1000);
+
+    ViewIOReactor third = ViewIOReactor.acquireShared(1, params);
+    assertNotSame(first, third);
+    assertFalse(third.isShutdown());
+    third.release(1000);
+    assertTrue(third.isShutdown());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNeedsAThread() throws Exception {
+    new ViewIOReactor(0, new SyncBasicHttpParams(), "test");
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.internal;
+
+import com.couchbase.client.protocol.views.RowError;
+import com.couchbase.client.protocol.views.ViewResponse;
+import com.couchbase.client.protocol.views.ViewResponseWithDocs;
+import com.couchbase.client.protocol.views.ViewRow;
+import com.couchbase.client.protocol.views.ViewRowWithDocs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.ops.OperationStatus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the completion listeners of HTTP futures.
+ */
+public class HttpFutureTest {
+
+  @Test
+  public void testListenerAddedBeforeCompletion() throws Exception {
+    final HttpFuture<String> future =
+        new HttpFuture<String>(new CountDownLatch(1), 1000);
+    final List<String> results = new ArrayList<String>();
+    future.addListener(new HttpCompletionListener<String>() {
+      @Override
+      public void onComplete(HttpFuture<String> f) {
+        results.add(f.objRef.get());
+      }
+    }, null);
+    assertEquals(0, results.size());
+    future.set("value", new OperationStatus(true, "OK"));
+    future.signalComplete();
+    assertEquals(1, results.size());
+    assertEquals("value", results.get(0));
+  }
+
+  @Test
+  public void testListenerAddedAfterCompletion() {
+    HttpFuture<String> future =
+        new HttpFuture<String>(new CountDownLatch(1), 1000);
+    future.signalComplete();
+    final AtomicInteger runs = new AtomicInteger();
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, null);
+    assertEquals(1, runs.get());
+    future.signalComplete();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testExecutor() {
+    HttpFuture<String> future =
+        new HttpFuture<String>(new CountDownLatch(1), 1000);
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    final AtomicInteger runs = new AtomicInteger();
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    });
+    future.signalComplete();
+    assertEquals(0, runs.get());
+    assertEquals(1, queued.size());
+    queued.get(0).run();
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testSharedFutureCancel() throws Exception {
+    SharedHttpFuture<String> future = new SharedHttpFuture<String>(null, 1000);
+    final CountDownLatch done = new CountDownLatch(1);
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    }, null);
+    assertTrue(future.cancel(true));
+    assertTrue(done.await(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testListenerOnPrecompletedSharedFuture() throws Exception {
+    SharedHttpFuture<String> future = new SharedHttpFuture<String>("value",
+        new OperationStatus(true, "OK"), null);
+    assertTrue(future.isDone());
+    final List<String> results = new ArrayList<String>();
+    future.addListener(new HttpCompletionListener<String>() {
+      @Override
+      public void onComplete(HttpFuture<String> f) {
+        results.add(f.objRef.get());
+      }
+    }, null);
+    assertEquals(1, results.size());
+    assertEquals("value", results.get(0));
+    assertEquals("value", future.get());
+  }
+
+  @Test
+  public void testViewFutureWithDocuments() throws Exception {
+    ViewFuture future = new ViewFuture(new CountDownLatch(1), 1000);
+    Collection<ViewRow> rows = new ArrayList<ViewRow>();
+    rows.add(new ViewRowWithDocs("id", "key", "value", null));
+    future.set(new ViewResponseWithDocs(rows, new ArrayList<RowError>()),
+        new OperationStatus(true, "OK"));
+    final List<Object> docs = new ArrayList<Object>();
+    future.addListener(new HttpCompletionListener<ViewResponse>() {
+      @Override
+      public void onComplete(HttpFuture<ViewResponse> f) {
+        try {
+          docs.add(f.get(0, TimeUnit.MILLISECONDS).iterator().next()
+              .getDocument());
+        } catch (Exception e) {
+          docs.add(e);
+        }
+      }
+    }, null);
+    future.setDocuments(Collections.<String, Object>singletonMap("id",
+        "doc"));
+    assertEquals(0, docs.size());
+    future.signalComplete();
+    assertEquals(Arrays.<Object>asList("doc"), docs);
+  }
+}
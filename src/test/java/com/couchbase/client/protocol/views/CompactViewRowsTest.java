@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the compact row storage of view responses.
+ */
+public class CompactViewRowsTest {
+
+  @Test
+  public void testIndexedAccess() {
+    CompactViewRows.Builder builder = new CompactViewRows.Builder(false);
+    for (int i = 0; i < 100; i++) {
+      builder.add("doc" + i, "[" + i + ",\"k\"]", "null");
+    }
+    CompactViewRows rows = builder.build();
+    assertEquals(100, rows.size());
+    assertEquals("doc42", rows.get(42).getId());
+    assertEquals("[42,\"k\"]", rows.get(42).getKey());
+    assertNull(rows.get(42).getValue());
+    assertEquals("doc99", rows.get(99).getId());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testNoDocuments() {
+    CompactViewRows.Builder builder = new CompactViewRows.Builder(false);
+    builder.add("doc", "key", "value");
+    builder.build().get(0).getDocument();
+  }
+
+  @Test
+  public void testDocumentMap() {
+    CompactViewRows.Builder builder = new CompactViewRows.Builder(true);
+    builder.add("a", "1", "null");
+    builder.add("b", "2", "null");
+    builder.add("a", "3", "null");
+    builder.add("c", "4", "null");
+    Map<String, Object> docs = new HashMap<String, Object>();
+    docs.put("a", "{\"name\":\"a\"}");
+    docs.put("b", "null");
+    docs.put("c", "{\"name\":\"c\"}");
+
+    CompactViewRows rows = builder.build().withDocuments(docs);
+    assertEquals("{\"name\":\"a\"}", rows.get(2).getDocument());
+    assertNull(rows.get(1).getDocument());
+
+    Map<String, Object> map = rows.documentMap();
+    assertEquals(3, map.size());
+    assertEquals("{\"name\":\"c\"}", map.get("c"));
+    assertTrue(map.containsKey("b"));
+    assertFalse(map.containsKey("d"));
+    Map<String, Object> expected = new HashMap<String, Object>();
+    expected.put("a", "{\"name\":\"a\"}");
+    expected.put("b", null);
+    expected.put("c", "{\"name\":\"c\"}");
+    assertEquals(expected, new HashMap<String, Object>(map));
+  }
+
+  @Test
+  public void testResponseGet() {
+    CompactViewRows.Builder builder = new CompactViewRows.Builder(false);
+    builder.add("a", "1", "x");
+    builder.add("b", "2", "y");
+    ViewResponse response = new ViewResponseNoDocs(builder.build(),
+        new LinkedList<RowError>());
+    assertEquals("y", response.get(1).getValue());
+  }
+}
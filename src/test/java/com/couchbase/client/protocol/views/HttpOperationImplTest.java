@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import com.couchbase.client.protocol.views.ViewOperation.ViewCallback;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.ops.OperationStatus;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.entity.NStringEntity;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests cancelling, timing out and retrying view operations.
+ */
+public class HttpOperationImplTest {
+
+  private static class CountingCallback implements ViewCallback {
+    private int completions;
+    private OperationStatus status;
+    private ViewResponse response;
+
+    @Override
+    public void receivedStatus(OperationStatus s) {
+      status = s;
+    }
+
+    @Override
+    public void complete() {
+      completions++;
+    }
+
+    @Override
+    public void gotData(ViewResponse vr) {
+      response = vr;
+    }
+  }
+
+  private static HttpOperation createOperation(CountingCallback cb) {
+    return new NoDocsOperationImpl(new BasicHttpRequest("GET",
+        "/default/_design/d/_view/v", HttpVersion.HTTP_1_1), cb);
+  }
+
+  private static HttpResponse okResponse() throws Exception {
+    HttpResponse response =
+        new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setEntity(new StringEntity("{\"total_rows\":0,\"rows\":[]}"));
+    return response;
+  }
+
+  @Test
+  public void testCancelCompletesCallback() throws Exception {
+    CountingCallback cb = new CountingCallback();
+    HttpOperation op = createOperation(cb);
+    op.cancel();
+    assertTrue(op.isCancelled());
+    assertEquals(1, cb.completions);
+    assertFalse(cb.status.isSuccess());
+    op.handleResponse(okResponse());
+    op.timeOut();
+    assertEquals(1, cb.completions);
+    assertNull(cb.response);
+  }
+
+  @Test
+  public void testResponseWinsOverLateTimeout() throws Exception {
+    CountingCallback cb = new CountingCallback();
+    HttpOperation op = createOperation(cb);
+    op.handleResponse(okResponse());
+    op.timeOut();
+    assertEquals(1, cb.completions);
+    assertTrue(cb.status.isSuccess());
+    assertEquals(0, cb.response.size());
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    HttpOperation op = createOperation(new CountingCallback());
+    assertEquals(0, op.getDeadline());
+    assertFalse(op.isExpired());
+    op.setTimeout(60000);
+    assertFalse(op.isExpired());
+    op.setTimeout(0);
+    assertTrue(op.isExpired());
+  }
+
+  @Test
+  public void testRetriesAreBounded() {
+    HttpOperation op = createOperation(new CountingCallback());
+    op.addAuthHeader("Basic a");
+    assertTrue(op.prepareRetry(2));
+    op.addAuthHeader("Basic a");
+    assertTrue(op.prepareRetry(2));
+    assertFalse(op.prepareRetry(2));
+    assertEquals(2, op.getRetries());
+    assertEquals(1, op.getRequest().getHeaders("Authorization").length);
+  }
+
+  @Test
+  public void testOnlyRepeatableRequestsAreRetried() throws Exception {
+    BasicHttpEntityEnclosingRequest post = new BasicHttpEntityEnclosingRequest(
+        "POST", "/default/_design/d/_view/v", HttpVersion.HTTP_1_1);
+    post.setEntity(new NStringEntity("{\"keys\":[1]}"));
+    assertTrue(new NoDocsOperationImpl(post, new CountingCallback())
+        .prepareRetry(1));
+    post.setEntity(new InputStreamEntity(
+        new ByteArrayInputStream(new byte[1]), 1));
+    assertFalse(new NoDocsOperationImpl(post, new CountingCallback())
+        .prepareRetry(1));
+  }
+
+  @Test
+  public void testFinishedOperationsAreNotRetried() throws Exception {
+    HttpOperation op = createOperation(new CountingCallback());
+    op.setTimeout(0);
+    assertFalse(op.prepareRetry(1));
+    op = createOperation(new CountingCallback());
+    op.cancel();
+    assertFalse(op.prepareRetry(1));
+    op = createOperation(new CountingCallback());
+    op.handleResponse(okResponse());
+    assertFalse(op.prepareRetry(1));
+  }
+
+  @Test
+  public void testQueryTimeout() {
+    Query query = new Query().setTimeout(2, TimeUnit.SECONDS);
+    assertEquals(2000, query.getTimeout());
+    assertEquals(2000, query.copy().getTimeout());
+    assertEquals(0, new Query().getTimeout());
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the keys of a Query, which are sent in the request body.
+ */
+public class QueryTest {
+
+  @Test
+  public void testKeysJson() {
+    Query query = new Query().setKeys(Arrays.asList("beer", "[\"a\",1]",
+        "42", "say \"hi\""));
+    assertEquals("{\"keys\":[\"beer\",[\"a\",1],42,\"say \\\"hi\\\"\"]}",
+        query.getKeysJson());
+  }
+
+  @Test
+  public void testKeysStayOutOfTheUrl() {
+    Query query = new Query().setKeys(Arrays.asList("beer"));
+    assertFalse(query.toString().contains("keys"));
+    assertEquals(query.getKeysJson(), query.copy().getKeysJson());
+  }
+
+  @Test
+  public void testGetters() {
+    Query query = new Query();
+    assertNull(query.getKey());
+    assertNull(query.getKeys());
+    assertEquals(-1, query.getLimit());
+    assertEquals(0, query.getSkip());
+    assertEquals(-1, query.getGroupLevel());
+    assertTrue(query.isInclusiveEnd());
+    assertFalse(query.isDescending());
+
+    query.setRange("a", "b").setLimit(5).setSkip(2).setInclusiveEnd(false)
+      .setDescending(true).setGroup(true);
+    assertEquals("a", query.getRangeStart());
+    assertEquals("b", query.getRangeEnd());
+    assertEquals(5, query.getLimit());
+    assertEquals(2, query.getSkip());
+    assertFalse(query.isInclusiveEnd());
+    assertTrue(query.isDescending());
+    assertTrue(query.willGroup());
+  }
+
+  @Test
+  public void testNoKeys() {
+    assertNull(new Query().setKey("beer").getKeysJson());
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the typed storage of reduced view results.
+ */
+public class ReducedRowsTest {
+
+  private static ViewResponseReduced parse(String json) throws Exception {
+    ReducedRows.Builder builder = new ReducedRows.Builder();
+    JSONObject elem = new JSONObject(json);
+    builder.add(elem.getString("key"), elem.get("value"));
+    return new ViewResponseReduced(builder.build(),
+        new LinkedList<RowError>());
+  }
+
+  @Test
+  public void testNumbers() throws Exception {
+    ReducedRows.Builder builder = new ReducedRows.Builder();
+    for (int i = 0; i < 40; i++) {
+      builder.add("\"k" + i + "\"", Integer.valueOf(i));
+    }
+    builder.add("null", Double.valueOf(2.5));
+    ViewResponseReduced response = new ViewResponseReduced(builder.build(),
+        new LinkedList<RowError>());
+    assertEquals(41, response.size());
+    assertEquals(39, response.getLong(39));
+    assertEquals("\"k39\"", response.getKey(39));
+    assertEquals("39", response.get(39).getValue());
+    assertEquals(2.5, response.getDouble(40), 0.0);
+    assertEquals(2, response.getLong(40));
+    assertNull(response.getKey(40));
+    assertEquals("2.5", response.get(40).getValue());
+    assertEquals(41, response.getLongValues().length);
+    assertEquals(39.0, response.getDoubleValues()[39], 0.0);
+  }
+
+  @Test
+  public void testStats() throws Exception {
+    ViewResponseReduced response = parse("{\"key\":null,\"value\":"
+        + "{\"sum\":10,\"count\":4,\"min\":1,\"max\":4,\"sumsqr\":30}}");
+    assertFalse(response.isNumeric(0));
+    ViewStats stats = response.getStats(0);
+    assertEquals(10.0, stats.getSum(), 0.0);
+    assertEquals(4, stats.getCount());
+    assertEquals(2.5, stats.getMean(), 0.0);
+    JSONObject value = new JSONObject(response.get(0).getValue());
+    assertEquals(30, value.getInt("sumsqr"));
+
+    // The string value is the parser's text, as before typed storage.
+    JSONObject elem = new JSONObject("{\"value\":"
+        + "{\"sum\":10,\"count\":4,\"min\":1,\"max\":4,\"sumsqr\":30}}");
+    assertEquals(elem.getString("value"), response.get(0).getValue());
+  }
+
+  @Test
+  public void testOtherValues() throws Exception {
+    ViewResponseReduced response = parse("{\"key\":\"a\",\"value\":[1,2]}");
+    assertEquals("a", response.getKey(0));
+    assertFalse(response.isNumeric(0));
+    assertEquals("[1,2]", response.get(0).getValue());
+    response = parse("{\"key\":\"a\",\"value\":null}");
+    assertNull(response.get(0).getValue());
+    try {
+      response.getLong(0);
+      assertTrue("Expected an IllegalStateException", false);
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testFromStringRows() {
+    Collection<ViewRow> rows = new ArrayList<ViewRow>();
+    rows.add(new ViewRowReduced("\"a\"", "7"));
+    rows.add(new ViewRowReduced("\"b\"", "0.5"));
+    ViewResponseReduced response = new ViewResponseReduced(rows,
+        new LinkedList<RowError>());
+    assertArrayEquals(new String[] {"\"a\"", "\"b\""}, response.getKeys());
+    assertEquals(7, response.getLong(0));
+    assertEquals(0.5, response.getDouble(1), 0.0);
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2009-2012 Couchbase, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALING
+ * IN THE SOFTWARE.
+ */
+
+
+package com.couchbase.client.protocol.views;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how a ViewScan splits the range of a query.
+ */
+public class ViewScanTest {
+
+  @Test
+  public void testSplitsAtKeys() {
+    Query query = new Query().setRange("a", "z").setInclusiveEnd(true);
+    List<Query> ranges = ViewScan.split(query, Arrays.asList("g", "m"));
+    assertEquals(3, ranges.size());
+
+    String first = ranges.get(0).toString();
+    assertTrue(first.contains("startkey=\"a\""));
+    assertTrue(first.contains("endkey=\"g\""));
+    assertTrue(first.contains("inclusive_end=false"));
+
+    String second = ranges.get(1).toString();
+    assertTrue(second.contains("startkey=\"g\""));
+    assertTrue(second.contains("endkey=\"m\""));
+    assertTrue(second.contains("inclusive_end=false"));
+
+    String last = ranges.get(2).toString();
+    assertTrue(last.contains("startkey=\"m\""));
+    assertTrue(last.contains("endkey=\"z\""));
+    assertTrue(last.contains("inclusive_end=true"));
+  }
+
+  @Test
+  public void testIgnoresRepeatedKeys() {
+    Query query = new Query().setRange("a", "z");
+    List<Query> ranges = ViewScan.split(query, Arrays.asList("g", "g", "m"));
+    assertEquals(3, ranges.size());
+  }
+
+  @Test
+  public void testDocIdsOnlyBoundTheOuterRanges() {
+    Query query = new Query().setRange("a", "z").setStartkeyDocID("doc1")
+        .setEndkeyDocID("doc9");
+    List<Query> ranges = ViewScan.split(query, Arrays.asList("m"));
+    assertTrue(ranges.get(0).toString().contains("startkey_docid=doc1"));
+    assertFalse(ranges.get(0).toString().contains("endkey_docid"));
+    assertFalse(ranges.get(1).toString().contains("startkey_docid"));
+    assertTrue(ranges.get(1).toString().contains("endkey_docid=\"doc9\""));
+  }
+
+  @Test
+  public void testNoSplitKeys() {
+    Query query = new Query().setRange("a", "z");
+    List<Query> ranges = ViewScan.split(query,
+        Collections.<String>emptyList());
+    assertEquals(1, ranges.size());
+    assertEquals(query.toString().length(), ranges.get(0).toString().length());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsLimit() {
+    new ViewScan(null, null, new Query().setLimit(10),
+        Collections.<String>emptyList(), 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSkip() {
+    new ViewScan(null, null, new Query().setSkip(10),
+        Collections.<String>emptyList(), 100);
+  }
+}